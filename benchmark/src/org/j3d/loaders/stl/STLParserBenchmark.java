@@ -0,0 +1,100 @@
+package org.j3d.loaders.stl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.util.Random;
+
+import replicatorg.benchmark.Benchmark;
+
+/**
+ * Reading every facet of a made-up STL file, binary or ASCII.  Lives in the
+ * parsers' package, as they aren't public.
+ */
+public class STLParserBenchmark extends Benchmark {
+
+	private static final int FACETS = 20000;
+
+	private final boolean binary;
+	private File file;
+	private URL url;
+	private final double[] normal = new double[3];
+	private final double[][] vertices = new double[3][3];
+
+	public STLParserBenchmark(boolean binary) {
+		super(binary ? "STLBinaryParser" : "STLASCIIParser");
+		this.binary = binary;
+	}
+
+	@Override
+	public int getOperations() {
+		return FACETS;
+	}
+
+	@Override
+	public void setUp() throws IOException {
+		file = File.createTempFile("benchmark", ".stl");
+		file.deleteOnExit();
+		Random random = new Random(4);
+		if (binary) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.write(new byte[80]);
+				out.writeInt(Integer.reverseBytes(FACETS));
+				for (int f = 0; f < FACETS; f++) {
+					for (int i = 0; i < 12; i++) {
+						out.writeInt(Integer.reverseBytes(Float.floatToIntBits(random.nextFloat() * 100)));
+					}
+					out.writeShort(0);
+				}
+			} finally {
+				out.close();
+			}
+		} else {
+			PrintWriter out = new PrintWriter(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.println("solid benchmark");
+				for (int f = 0; f < FACETS; f++) {
+					out.println("  facet normal " + random.nextFloat() + " " + random.nextFloat() + " " + random.nextFloat());
+					out.println("    outer loop");
+					for (int v = 0; v < 3; v++) {
+						out.println("      vertex " + random.nextFloat() * 100 + " "
+								+ random.nextFloat() * 100 + " " + random.nextFloat() * 100);
+					}
+					out.println("    endloop");
+					out.println("  endfacet");
+				}
+				out.println("endsolid benchmark");
+			} finally {
+				out.close();
+			}
+		}
+		url = file.toURI().toURL();
+	}
+
+	@Override
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Override
+	public long run() throws IOException {
+		STLParser parser = binary ? new STLBinaryParser() : new STLASCIIParser();
+		long sum = 0;
+		try {
+			parser.parse(url);
+			int facets = parser.getNumOfFacets()[0];
+			for (int f = 0; f < facets; f++) {
+				parser.getNextFacet(normal, vertices);
+				sum += (long)vertices[2][2];
+			}
+		} finally {
+			parser.close();
+		}
+		return sum;
+	}
+}
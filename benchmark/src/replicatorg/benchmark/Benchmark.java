@@ -0,0 +1,36 @@
+package replicatorg.benchmark;
+
+/**
+ * One thing to time.  The runner calls run() over and over for a fixed time
+ * and reports the average time per operation.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/// Operations done by each call to run(), so the time is reported per line, packet and so on
+	public int getOperations() {
+		return 1;
+	}
+
+	/// Build whatever run() works on; not timed
+	public void setUp() throws Exception {
+	}
+
+	public void tearDown() throws Exception {
+	}
+
+	/**
+	 * Do the work once.
+	 * @return something computed from the work, so it can't be optimized away
+	 */
+	public abstract long run() throws Exception;
+}
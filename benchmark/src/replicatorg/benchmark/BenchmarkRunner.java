@@ -0,0 +1,233 @@
+package replicatorg.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+
+import org.j3d.loaders.stl.STLParserBenchmark;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.gen3.PacketBenchmark;
+
+/**
+ * Runs the benchmarks and writes what they measured as JSON.
+ *
+ * Each benchmark is warmed up for a few iterations, so the JIT has done its
+ * work, then timed for some more.  An iteration calls the benchmark over and
+ * over for a fixed time; its score is the average time per operation.  The
+ * JSON follows the layout JMH writes, with the scores in ns/op, so the
+ * results of two commits can be compared with the tools made for JMH.
+ *
+ * Usage: BenchmarkRunner [--warmup N] [--iterations N] [--time MS]
+ *   [--include REGEX] [--label TEXT] [--output FILE]
+ *
+ * Run it from the ReplicatorG directory, as some benchmarks load a machine
+ * from the machines directory.
+ */
+public class BenchmarkRunner {
+
+	// Sum of what the benchmarks returned, so the JIT can't drop their work
+	static volatile long sink;
+
+	static List<Benchmark> all() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new GCodeCommandBenchmark());
+		benchmarks.add(new GCodeParserBenchmark(false));
+		benchmarks.add(new GCodeParserBenchmark(true));
+		benchmarks.add(new PacketBenchmark(true));
+		benchmarks.add(new PacketBenchmark(false));
+		benchmarks.add(new IButtonCrcBenchmark());
+		benchmarks.add(new STLParserBenchmark(true));
+		benchmarks.add(new STLParserBenchmark(false));
+		benchmarks.add(new EstimationBenchmark());
+		for (PostProcessingBenchmark.Pass pass : PostProcessingBenchmark.Pass.values()) {
+			benchmarks.add(new PostProcessingBenchmark(pass));
+		}
+		return benchmarks;
+	}
+
+	static class Result {
+		final Benchmark benchmark;
+		final double[] scores;
+
+		Result(Benchmark benchmark, double[] scores) {
+			this.benchmark = benchmark;
+			this.scores = scores;
+		}
+
+		double mean() {
+			double sum = 0;
+			for (double s : scores) {
+				sum += s;
+			}
+			return sum / scores.length;
+		}
+
+		/// Half the width of the 99.9% confidence interval of the mean
+		double error() {
+			if (scores.length < 2) {
+				return Double.NaN;
+			}
+			double mean = mean();
+			double squares = 0;
+			for (double s : scores) {
+				squares += (s - mean) * (s - mean);
+			}
+			return 3.29 * Math.sqrt(squares / (scores.length - 1)) / Math.sqrt(scores.length);
+		}
+	}
+
+	private int warmup = 5;
+	private int iterations = 10;
+	private long iterationMillis = 1000;
+
+	/// Average ns per operation over one iteration
+	private double iterate(Benchmark benchmark) throws Exception {
+		long deadline = System.nanoTime() + iterationMillis * 1000000L;
+		long calls = 0;
+		long sum = 0;
+		long start = System.nanoTime();
+		long now;
+		do {
+			sum += benchmark.run();
+			calls++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		sink += sum;
+		return (double)(now - start) / (calls * benchmark.getOperations());
+	}
+
+	Result run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < warmup; i++) {
+				iterate(benchmark);
+			}
+			double[] scores = new double[iterations];
+			for (int i = 0; i < iterations; i++) {
+				scores[i] = iterate(benchmark);
+			}
+			return new Result(benchmark, scores);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String number(double d) {
+		return Double.isNaN(d) ? "\"NaN\"" : String.format(Locale.US, "%.3f", d);
+	}
+
+	void write(List<Result> results, String label, PrintWriter out) {
+		out.println("[");
+		for (int r = 0; r < results.size(); r++) {
+			Result result = results.get(r);
+			out.println("    {");
+			out.println("        \"benchmark\" : " + quote(result.benchmark.getName()) + ",");
+			out.println("        \"mode\" : \"avgt\",");
+			out.println("        \"threads\" : 1,");
+			out.println("        \"forks\" : 1,");
+			out.println("        \"jvm\" : " + quote(System.getProperty("java.home")) + ",");
+			out.println("        \"vmVersion\" : " + quote(System.getProperty("java.vm.version")) + ",");
+			out.println("        \"warmupIterations\" : " + warmup + ",");
+			out.println("        \"warmupTime\" : \"" + iterationMillis + " ms\",");
+			out.println("        \"measurementIterations\" : " + iterations + ",");
+			out.println("        \"measurementTime\" : \"" + iterationMillis + " ms\",");
+			if (label != null) {
+				out.println("        \"params\" : { \"label\" : " + quote(label) + " },");
+			}
+			out.println("        \"primaryMetric\" : {");
+			out.println("            \"score\" : " + number(result.mean()) + ",");
+			out.println("            \"scoreError\" : " + number(result.error()) + ",");
+			out.println("            \"scoreUnit\" : \"ns/op\",");
+			StringBuilder raw = new StringBuilder();
+			for (int i = 0; i < result.scores.length; i++) {
+				raw.append(i == 0 ? "" : ", ").append(number(result.scores[i]));
+			}
+			out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+			out.println("        }");
+			out.println("    }" + (r < results.size() - 1 ? "," : ""));
+		}
+		out.println("]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		Base.logger.setLevel(Level.WARNING);
+
+		BenchmarkRunner runner = new BenchmarkRunner();
+		Pattern include = null;
+		String label = null;
+		File output = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 >= args.length) {
+				System.err.println("Missing value for " + arg);
+				System.exit(1);
+			}
+			if (arg.equals("--warmup")) {
+				runner.warmup = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--iterations")) {
+				runner.iterations = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (arg.equals("--time")) {
+				runner.iterationMillis = Long.parseLong(args[++i]);
+			} else if (arg.equals("--include")) {
+				include = Pattern.compile(args[++i]);
+			} else if (arg.equals("--label")) {
+				label = args[++i];
+			} else if (arg.equals("--output")) {
+				output = new File(args[++i]);
+			} else {
+				System.err.println("Unknown option " + arg);
+				System.exit(1);
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for (Benchmark benchmark : all()) {
+			if (include != null && !include.matcher(benchmark.getName()).find()) {
+				continue;
+			}
+			Result result = runner.run(benchmark);
+			results.add(result);
+			System.out.println(String.format(Locale.US, "%-45s %12.3f +- %8.3f ns/op",
+					benchmark.getName(), result.mean(), result.error()));
+		}
+
+		if (output != null) {
+			File dir = output.getAbsoluteFile().getParentFile();
+			if (dir != null) {
+				dir.mkdirs();
+			}
+			PrintWriter out = new PrintWriter(new FileWriter(output));
+			try {
+				runner.write(results, label, out);
+			} finally {
+				out.close();
+			}
+			if (out.checkError()) {
+				throw new IOException("Could not write " + output);
+			}
+			System.out.println("Results written to " + output);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package replicatorg.benchmark;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+
+/** Estimating the build time of a large file, as the build estimate does. */
+public class EstimationBenchmark extends Benchmark {
+
+	private static final int LINES = 100000;
+
+	private List<String> lines;
+	private MachineModel model;
+	private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+	public EstimationBenchmark() {
+		super("EstimationDriver");
+	}
+
+	@Override
+	public int getOperations() {
+		return LINES;
+	}
+
+	@Override
+	public void setUp() {
+		lines = SampleGCode.lines(LINES, 5, true);
+		model = SampleGCode.machine();
+	}
+
+	@Override
+	public long run() throws RetryException, StopException {
+		EstimationDriver driver = new EstimationDriver();
+		driver.setMachine(model);
+		GCodeParser parser = new GCodeParser();
+		parser.init(driver);
+		for (String line : lines) {
+			parser.parse(line, queue);
+			for (DriverCommand command : queue) {
+				command.run(driver);
+			}
+			queue.clear();
+		}
+		return (long)driver.getBuildTime();
+	}
+}
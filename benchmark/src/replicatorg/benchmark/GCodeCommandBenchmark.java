@@ -0,0 +1,38 @@
+package replicatorg.benchmark;
+
+import java.util.List;
+
+import replicatorg.app.gcode.GCodeCommand;
+
+/** Tokenizing lines of gcode into GCodeCommands. */
+public class GCodeCommandBenchmark extends Benchmark {
+
+	private static final int LINES = 10000;
+
+	private List<String> lines;
+
+	public GCodeCommandBenchmark() {
+		super("GCodeCommand.new");
+	}
+
+	@Override
+	public int getOperations() {
+		return LINES;
+	}
+
+	@Override
+	public void setUp() {
+		lines = SampleGCode.lines(LINES, 1, false);
+	}
+
+	@Override
+	public long run() {
+		long codes = 0;
+		for (String line : lines) {
+			if (new GCodeCommand(line).hasCode('X')) {
+				codes++;
+			}
+		}
+		return codes;
+	}
+}
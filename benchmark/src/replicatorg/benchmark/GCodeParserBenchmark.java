@@ -0,0 +1,67 @@
+package replicatorg.benchmark;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.util.Point5d;
+
+/**
+ * Turning gcode into driver commands, against a driver that does nothing
+ * with them.  With arcs, about one line in six is a G2 or G3, so most of the
+ * time goes into drawArc.
+ */
+public class GCodeParserBenchmark extends Benchmark {
+
+	private static final int LINES = 10000;
+
+	private final boolean arcs;
+	private List<GCodeCommand> commands;
+	private NullDriver driver;
+	private GCodeParser parser;
+	private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+	public GCodeParserBenchmark(boolean arcs) {
+		super(arcs ? "GCodeParser.parse+arcs" : "GCodeParser.parse");
+		this.arcs = arcs;
+	}
+
+	@Override
+	public int getOperations() {
+		return LINES;
+	}
+
+	@Override
+	public void setUp() {
+		commands = new LinkedList<GCodeCommand>();
+		for (String line : SampleGCode.lines(LINES, 2, arcs)) {
+			commands.add(new GCodeCommand(line));
+		}
+		driver = new NullDriver();
+		driver.setMachine(SampleGCode.machine());
+	}
+
+	@Override
+	public long run() throws RetryException, StopException {
+		driver.setCurrentPosition(new Point5d());
+		parser = new GCodeParser();
+		parser.init(driver);
+		long count = 0;
+		for (GCodeCommand command : commands) {
+			parser.parse(command, queue);
+			// Moves have to reach the driver, or every line starts from the same place
+			for (DriverCommand c : queue) {
+				c.run(driver);
+			}
+			count += queue.size();
+			queue.clear();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,40 @@
+package replicatorg.benchmark;
+
+import java.util.Random;
+
+import replicatorg.app.tools.IButtonCrc;
+
+/** The packet CRC, over payloads of the largest size, a byte at a time. */
+public class IButtonCrcBenchmark extends Benchmark {
+
+	private final byte[] payload = new byte[32];
+	private static final int PAYLOADS = 1000;
+
+	public IButtonCrcBenchmark() {
+		super("IButtonCrc.update");
+	}
+
+	@Override
+	public int getOperations() {
+		return PAYLOADS * payload.length;
+	}
+
+	@Override
+	public void setUp() {
+		new Random(3).nextBytes(payload);
+	}
+
+	@Override
+	public long run() {
+		IButtonCrc crc = new IButtonCrc();
+		long sum = 0;
+		for (int n = 0; n < PAYLOADS; n++) {
+			crc.reset();
+			for (int i = 0; i < payload.length; i++) {
+				crc.update(payload[i]);
+			}
+			sum += crc.getCrc();
+		}
+		return sum;
+	}
+}
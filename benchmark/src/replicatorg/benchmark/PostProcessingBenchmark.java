@@ -0,0 +1,54 @@
+package replicatorg.benchmark;
+
+import java.util.List;
+
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.model.ToolheadAlias;
+
+/** The passes MutableGCodeSource makes over a sliced file before it's built. */
+public class PostProcessingBenchmark extends Benchmark {
+
+	public enum Pass {
+		CHANGE_TOOLHEAD,
+		COOL_UNUSED_TOOLHEAD,
+		ADD_PROGRESS_UPDATES
+	}
+
+	private static final int LINES = 50000;
+
+	private final Pass pass;
+	private List<String> lines;
+
+	public PostProcessingBenchmark(Pass pass) {
+		super("MutableGCodeSource." + pass.name().toLowerCase());
+		this.pass = pass;
+	}
+
+	@Override
+	public int getOperations() {
+		return LINES;
+	}
+
+	@Override
+	public void setUp() {
+		lines = SampleGCode.lines(LINES, 6, false);
+	}
+
+	@Override
+	public long run() {
+		// Each pass replaces the source, so start from a fresh copy each time
+		MutableGCodeSource source = new MutableGCodeSource(lines);
+		switch (pass) {
+		case CHANGE_TOOLHEAD:
+			source.changeToolhead(ToolheadAlias.LEFT);
+			break;
+		case COOL_UNUSED_TOOLHEAD:
+			source.coolUnusedToolhead();
+			break;
+		case ADD_PROGRESS_UPDATES:
+			source.addProgressUpdates();
+			break;
+		}
+		return source.getLineCount();
+	}
+}
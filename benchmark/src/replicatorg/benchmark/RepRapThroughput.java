@@ -0,0 +1,249 @@
+package replicatorg.benchmark;
+
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Filter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.LatencyHistogram;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.drivers.reprap.RepRapEmulator;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.builder.Direct;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.StringListSource;
+
+/**
+ * Builds made-up gcode on a RepRap machine, end to end: through the
+ * builder, the driver and the serial port to emulated gcode firmware that
+ * garbles some of the lines it gets.  Reports how many lines a second got
+ * through, how often lines were asked for again, and how long it took to
+ * get them.  The build is run once waiting for each line's "ok" and once
+ * counting characters, unless the flow control is given.
+ *
+ * Usage: RepRapThroughput [--machine NAME] [--driver NAME]
+ *   [--flavor marlin|sprinter|teacup] [--flow pingpong|counting] [--lines N] [--seed N] [--errors RATE]
+ *   [--baud N] [--rx BYTES] [--planner MOVES] [--latency US] [--speedup X]
+ *   [--verbose]
+ *
+ * The machine is by default one whose driver settings suit the flavor of
+ * firmware; another driver for gcode firmware, such as serialpassthrough,
+ * can be used in its place.  The serial line runs at its real speed, and the moves faster
+ * by the speedup; with the default, the line is what's slow, as it is with
+ * small segments on a real machine.  Run it from the ReplicatorG directory, as the machine is
+ * loaded from the machines directory.
+ */
+public class RepRapThroughput {
+
+	static final String PORT = "emulated-reprap";
+
+	// Times the driver had to restart the line numbers, counted rather than logged
+	static final AtomicLong restarts = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		Base.logger.setLevel(Level.WARNING);
+
+		String machine = null;
+		String driverName = null;
+		int count = 5000;
+		long seed = 1;
+		double errorRate = 0;
+		int rxBufferSize = 128;
+		String flow = null;
+		boolean verbose = false;
+		RepRapEmulator.Flavor flavor = RepRapEmulator.Flavor.MARLIN;
+		RepRapEmulator firmware = new RepRapEmulator();
+		firmware.setSpeedup(1000);
+		// About what an AVR takes to parse a line and a USB frame to answer it
+		firmware.setLatencyMicros(1000);
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--verbose")) {
+				verbose = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				System.err.println("Missing value for " + arg);
+				System.exit(1);
+			}
+			String value = args[++i];
+			if (arg.equals("--machine")) {
+				machine = value;
+			} else if (arg.equals("--driver")) {
+				driverName = value;
+			} else if (arg.equals("--flow")) {
+				flow = value;
+			} else if (arg.equals("--flavor")) {
+				flavor = RepRapEmulator.Flavor.valueOf(value.toUpperCase());
+			} else if (arg.equals("--lines")) {
+				count = Integer.parseInt(value);
+			} else if (arg.equals("--seed")) {
+				seed = Long.parseLong(value);
+			} else if (arg.equals("--errors")) {
+				errorRate = Double.parseDouble(value);
+			} else if (arg.equals("--baud")) {
+				firmware.setBaudRate(Integer.parseInt(value));
+			} else if (arg.equals("--rx")) {
+				rxBufferSize = Integer.parseInt(value);
+			} else if (arg.equals("--planner")) {
+				firmware.setPlannerSize(Integer.parseInt(value));
+			} else if (arg.equals("--latency")) {
+				firmware.setLatencyMicros(Long.parseLong(value));
+			} else if (arg.equals("--speedup")) {
+				firmware.setSpeedup(Double.parseDouble(value));
+			} else {
+				System.err.println("Unknown option " + arg);
+				System.exit(1);
+			}
+		}
+		firmware.setFlavor(flavor);
+		firmware.setRxBufferSize(rxBufferSize);
+		if (machine == null) {
+			machine = flavor == RepRapEmulator.Flavor.TEACUP ? "Teacup (115200 Baud)" : "Klimentkip (115200 Baud)";
+		}
+		if (!verbose) {
+			quiet();
+		}
+
+		Node machineNode = MachineFactory.getMachineNode(machine);
+		if (machineNode == null) {
+			System.err.println("No machine called '" + machine + "'");
+			System.exit(1);
+		}
+		Node driverNode = XML.getChildNodeByName(machineNode, "driver");
+		// The driver fills the buffer the firmware has, and knows its quirks
+		setOption(driverNode, "bufferSize", Integer.toString(rxBufferSize));
+		setOption(driverNode, "okAfterResend", Boolean.toString(firmware.isOkAfterResend()));
+		setOption(driverNode, "okAfterStart", Boolean.toString(firmware.isOkAfterStart()));
+		Vector<String> lines = new Vector<String>(SampleGCode.lines(count, seed, false));
+
+		Serial.addVirtualDevice(PORT, firmware);
+		try {
+			for (String mode : new String[] { "pingpong", "counting" }) {
+				if (flow != null && !flow.equals(mode)) {
+					continue;
+				}
+				System.out.println(mode.equals("counting") ? "Character counting:" : "Ping-pong:");
+				setOption(driverNode, "characterCounting", Boolean.toString(mode.equals("counting")));
+				// The same noise each time
+				firmware.setNoiseRate(0);
+				firmware.setSeed(seed);
+				restarts.set(0);
+
+				MachineModel model = new MachineModel();
+				model.loadXML(machineNode);
+				Driver driver = driverName == null ? DriverFactory.factory(driverNode)
+						: DriverFactory.factory(driverName, driverNode);
+				if (!(driver instanceof UsesSerial)) {
+					System.err.println("'" + machine + "' isn't driven over a serial port");
+					System.exit(1);
+				}
+				driver.setMachine(model);
+				try {
+					((UsesSerial)driver).openSerial(PORT);
+					driver.initialize();
+					if (!driver.isInitialized()) {
+						System.err.println("Could not connect to the emulator");
+						System.exit(1);
+					}
+					// Noise only from here on, so connecting goes the same every time
+					firmware.setNoiseRate(errorRate);
+					build(driver, firmware, lines);
+				} finally {
+					driver.dispose();
+				}
+			}
+		} finally {
+			Serial.removeVirtualDevice(PORT);
+		}
+	}
+
+	/// Set one of the driver's options, as if the machine had it
+	static void setOption(Node driverNode, String name, String value) {
+		Node option = XML.getChildNodeByName(driverNode, name);
+		if (option == null) {
+			option = driverNode.getOwnerDocument().createElement(name);
+			driverNode.appendChild(option);
+		}
+		option.setTextContent(value);
+	}
+
+	/// Count the driver's complaints about resends instead of logging them
+	static void quiet() {
+		Base.logger.setFilter(new Filter() {
+			public boolean isLoggable(LogRecord record) {
+				String message = record.getMessage();
+				if (message == null) {
+					return true;
+				}
+				if (message.startsWith("Unknown: error:")) {
+					// The firmware saying why it wants a line again
+					return false;
+				}
+				if (message.startsWith("resend for line")) {
+					restarts.incrementAndGet();
+					return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	static void build(Driver driver, RepRapEmulator firmware, Vector<String> lines) throws InterruptedException {
+		long acceptedBefore = firmware.getLinesAccepted();
+		long resendsBefore = firmware.getResends();
+		long garbledBefore = firmware.getGarbled();
+		long overrunsBefore = firmware.getOverruns();
+		long idleBefore = firmware.getIdleNanos();
+		long movesBefore = firmware.getMovesMicros();
+		LatencyHistogram recovery = firmware.getRecovery();
+		recovery.reset();
+
+		Direct builder = new Direct(driver, null, new StringListSource(lines));
+		long waitedMillis = 0;
+		long start = System.nanoTime();
+		long sent = 0;
+		while (!builder.finished()) {
+			builder.runNext();
+			if (sent == 0 && builder.getLinesProcessed() >= builder.getLinesTotal()) {
+				sent = System.nanoTime();
+			}
+			long wait = builder.getWaitMillis();
+			if (wait > 0) {
+				waitedMillis += wait;
+				Thread.sleep(wait);
+			}
+		}
+		firmware.awaitFinished();
+		long end = System.nanoTime();
+		builder.dispose();
+		if (sent == 0) {
+			sent = end;
+		}
+
+		double sendSeconds = (sent - start) / 1e9;
+		long accepted = firmware.getLinesAccepted() - acceptedBefore;
+		System.out.println(String.format(Locale.US, "%d lines sent in %.2fs: %.0f lines/s; firmware took %d commands",
+				lines.size(), sendSeconds, lines.size() / sendSeconds, accepted));
+		System.out.println(String.format(Locale.US, "Build finished after %.2fs; the moves take %.0fs on the machine",
+				(end - start) / 1e9, (firmware.getMovesMicros() - movesBefore) / 1e6));
+		System.out.println(String.format(Locale.US, "Host held back %dms; machine idle %.0fms",
+				waitedMillis, (firmware.getIdleNanos() - idleBefore) / 1e6));
+		System.out.println(String.format(Locale.US, "%d lines garbled, %d resends asked for, %d restarted with M110, %d bytes overrun",
+				firmware.getGarbled() - garbledBefore, firmware.getResends() - resendsBefore,
+				restarts.get(), firmware.getOverruns() - overrunsBefore));
+		System.out.println(String.format(Locale.US, "Recovery %d times, median %dus, 99th %dus, max %dus",
+				recovery.getCount(), recovery.getPercentileMicros(0.5),
+				recovery.getPercentileMicros(0.99), recovery.getMaxMicros()));
+	}
+}
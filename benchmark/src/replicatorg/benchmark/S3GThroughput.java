@@ -0,0 +1,170 @@
+package replicatorg.benchmark;
+
+import java.util.Locale;
+import java.util.Vector;
+import java.util.logging.Level;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.PipelineStats;
+import replicatorg.drivers.UsesSerial;
+import replicatorg.drivers.gen3.S3GEmulator;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.builder.Direct;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.StringListSource;
+
+/**
+ * Builds made-up gcode on an S3G machine, end to end: through the builder,
+ * the driver and the serial port to an emulated motherboard.  Reports how
+ * many lines a second got through, how long the host spent held back, and
+ * how long the machine sat waiting for the host.
+ *
+ * Usage: S3GThroughput [--machine NAME] [--lines N] [--seed N]
+ *   [--buffer BYTES] [--latency US] [--speedup X] [--crc RATE] [--timeouts RATE]
+ *   [--late RATE]
+ *
+ * Moves take as long as they would on the machine, divided by the speedup;
+ * with a large enough speedup the machine is never what's slow, and the
+ * lines per second are what the host can manage.  Run it from the
+ * ReplicatorG directory, as the machine is loaded from the machines
+ * directory.
+ */
+public class S3GThroughput {
+
+	static final String PORT = "emulated-s3g";
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		Base.logger.setLevel(Level.WARNING);
+
+		String machine = SampleGCode.MACHINE;
+		int count = 20000;
+		long seed = 1;
+		double crcErrorRate = 0;
+		double timeoutRate = 0;
+		double lateRate = 0;
+		S3GEmulator firmware = new S3GEmulator();
+		firmware.setSpeedup(1000);
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (i + 1 >= args.length) {
+				System.err.println("Missing value for " + arg);
+				System.exit(1);
+			}
+			String value = args[++i];
+			if (arg.equals("--machine")) {
+				machine = value;
+			} else if (arg.equals("--lines")) {
+				count = Integer.parseInt(value);
+			} else if (arg.equals("--seed")) {
+				seed = Long.parseLong(value);
+			} else if (arg.equals("--buffer")) {
+				firmware.setBufferSize(Integer.parseInt(value));
+			} else if (arg.equals("--latency")) {
+				firmware.setLatencyMicros(Long.parseLong(value));
+			} else if (arg.equals("--speedup")) {
+				firmware.setSpeedup(Double.parseDouble(value));
+			} else if (arg.equals("--crc")) {
+				crcErrorRate = Double.parseDouble(value);
+			} else if (arg.equals("--timeouts")) {
+				timeoutRate = Double.parseDouble(value);
+			} else if (arg.equals("--late")) {
+				lateRate = Double.parseDouble(value);
+			} else {
+				System.err.println("Unknown option " + arg);
+				System.exit(1);
+			}
+		}
+		firmware.setSeed(seed);
+
+		Node machineNode = MachineFactory.getMachineNode(machine);
+		if (machineNode == null) {
+			System.err.println("No machine called '" + machine + "'");
+			System.exit(1);
+		}
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		Driver driver = DriverFactory.factory(XML.getChildNodeByName(machineNode, "driver"));
+		if (!(driver instanceof UsesSerial)) {
+			System.err.println("'" + machine + "' isn't driven over a serial port");
+			System.exit(1);
+		}
+		driver.setMachine(model);
+
+		Serial.addVirtualDevice(PORT, firmware);
+		try {
+			((UsesSerial)driver).openSerial(PORT);
+			driver.initialize();
+			if (!driver.isInitialized()) {
+				System.err.println("Could not connect to the emulator");
+				System.exit(1);
+			}
+			// Faults only from here on, so connecting goes the same every time
+			firmware.setCrcErrorRate(crcErrorRate);
+			firmware.setTimeoutRate(timeoutRate);
+			firmware.setLateRate(lateRate);
+			build(driver, firmware, new Vector<String>(SampleGCode.lines(count, seed, false)));
+		} finally {
+			driver.dispose();
+			Serial.removeVirtualDevice(PORT);
+		}
+	}
+
+	static void build(Driver driver, S3GEmulator firmware, Vector<String> lines) throws InterruptedException {
+		PipelineStats stats = driver.getPipelineStats();
+		stats.update();
+		stats.reset();
+		long idleBefore = firmware.getIdleNanos();
+		long packetsBefore = firmware.getPackets();
+		long commandsBefore = firmware.getCommands();
+		long movesBefore = firmware.getMovesMicros();
+
+		Direct builder = new Direct(driver, null, new StringListSource(lines));
+		long waitedMillis = 0;
+		long start = System.nanoTime();
+		long sent = 0;
+		while (!builder.finished()) {
+			builder.runNext();
+			if (sent == 0 && builder.getLinesProcessed() >= builder.getLinesTotal()) {
+				sent = System.nanoTime();
+			}
+			long wait = builder.getWaitMillis();
+			if (wait > 0) {
+				waitedMillis += wait;
+				Thread.sleep(wait);
+			}
+		}
+		firmware.awaitFinished();
+		long end = System.nanoTime();
+		builder.dispose();
+		if (sent == 0) {
+			sent = end;
+		}
+
+		double sendSeconds = (sent - start) / 1e9;
+		double moveSeconds = (firmware.getMovesMicros() - movesBefore) / 1e6;
+		System.out.println(String.format(Locale.US, "%d lines sent in %.2fs: %.0f lines/s",
+				lines.size(), sendSeconds, lines.size() / sendSeconds));
+		System.out.println(String.format(Locale.US, "Build finished after %.2fs; the moves take %.0fs on the machine",
+				(end - start) / 1e9, moveSeconds));
+		System.out.println(String.format(Locale.US, "Host held back %dms in %d retries; machine idle %.0fms",
+				waitedMillis, stats.getRetries(), (firmware.getIdleNanos() - idleBefore) / 1e6));
+		System.out.println(String.format(Locale.US, "%d packets, round trip median %dus, 99th %dus, max %dus",
+				firmware.getPackets() - packetsBefore, stats.getRoundTripMedianMicros(),
+				stats.getRoundTrip99thMicros(), stats.getRoundTripMaxMicros()));
+		System.out.println(String.format(Locale.US, "Queries answered in %.2fms, waiting up to %dms",
+				stats.getQueryRoundTripMillis(), stats.getQueryTimeoutMillis()));
+		stats.update();
+		System.out.println(String.format(Locale.US, "Buffer overflows %d, CRC mismatches %d, packets dropped %d, answered late %d, read timeouts %d",
+				stats.getBufferOverflows(), firmware.getCrcErrors(), firmware.getTimeouts(), firmware.getLate(),
+				stats.getReadTimeouts()));
+		System.out.println(String.format(Locale.US, "Firmware took %d commands",
+				firmware.getCommands() - commandsBefore));
+	}
+}
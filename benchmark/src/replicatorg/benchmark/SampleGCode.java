@@ -0,0 +1,71 @@
+package replicatorg.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.w3c.dom.Node;
+
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Made-up gcode that looks like a sliced build: layers of extruding moves
+ * with the odd travel move, retraction, temperature change and comment.
+ * Always the same for the same seed, so runs can be compared.
+ */
+public class SampleGCode {
+
+	/// The machine benchmarks parse for; any with a tool will do
+	public static final String MACHINE = "The Replicator Dual";
+
+	public static List<String> lines(int count, long seed, boolean arcs) {
+		Random random = new Random(seed);
+		List<String> lines = new ArrayList<String>(count);
+		lines.add("G21");
+		lines.add("G90");
+		lines.add("G92 X0 Y0 Z0 A0 B0");
+		double z = 0.2;
+		double e = 0;
+		while (lines.size() < count) {
+			int kind = random.nextInt(100);
+			double x = random.nextInt(10000) / 100.0 - 50;
+			double y = random.nextInt(10000) / 100.0 - 50;
+			if (kind == 0) {
+				z += 0.2;
+				lines.add("(<layer> " + format(z) + " )");
+				lines.add("G1 Z" + format(z) + " F1380");
+			} else if (kind < 3) {
+				lines.add("G1 A" + format(e - 1) + " F1800 (retract)");
+				lines.add("G1 X" + format(x) + " Y" + format(y) + " F9000");
+				lines.add("G1 A" + format(e) + " F1800");
+			} else if (kind == 3) {
+				lines.add("M104 S" + (220 + random.nextInt(10)) + " T0");
+			} else if (arcs && kind < 20) {
+				lines.add((kind % 2 == 0 ? "G2" : "G3") + " X" + format(x) + " Y" + format(y)
+						+ " I" + format(random.nextInt(500) / 100.0) + " J" + format(random.nextInt(500) / 100.0)
+						+ " F1800");
+			} else {
+				e += random.nextInt(100) / 1000.0;
+				lines.add("G1 X" + format(x) + " Y" + format(y) + " A" + format(e) + " F1800");
+			}
+		}
+		return lines.subList(0, count);
+	}
+
+	private static String format(double v) {
+		return String.valueOf(Math.round(v * 1000) / 1000.0);
+	}
+
+	/// The model of the benchmark machine, from the machines directory
+	public static MachineModel machine() {
+		Node node = MachineFactory.getMachineNode(MACHINE);
+		if (node == null) {
+			throw new IllegalStateException("No machine called '" + MACHINE
+					+ "'; run the benchmarks from the ReplicatorG directory");
+		}
+		MachineModel model = new MachineModel();
+		model.loadXML(node);
+		return model;
+	}
+}
@@ -0,0 +1,189 @@
+package replicatorg.drivers.gen3;
+
+import replicatorg.benchmark.Benchmark;
+
+/**
+ * Building a queue-point packet, as the driver does for every move, and
+ * reading the firmware's answer back through the PacketProcessor, as the
+ * driver does for every response.  Lives in the driver's package to reach
+ * the packet classes.
+ *
+ * The baseline does it the way the driver used to: a new builder and a new
+ * array for every packet, the CRC a bit at a time, and a new payload array
+ * and PacketResponse for every answer.  Run both to see what reusing the
+ * builder and the processor's buffer buys.
+ */
+public class PacketBenchmark extends Benchmark {
+
+	private static final int PACKETS = 1000;
+
+	private final boolean baseline;
+
+	private final PacketBuilder builder = new PacketBuilder(0);
+	private final PacketProcessor processor = new PacketProcessor();
+	// What the firmware sends back for a queued move
+	private final byte[] answer;
+
+	public PacketBenchmark(boolean baseline) {
+		super(baseline ? "PacketBuilder+PacketProcessor.baseline" : "PacketBuilder+PacketProcessor");
+		this.baseline = baseline;
+		PacketBuilder ok = new PacketBuilder(0x81);
+		answer = ok.getPacket();
+	}
+
+	@Override
+	public int getOperations() {
+		return PACKETS;
+	}
+
+	@Override
+	public long run() throws PacketProcessor.CRCException {
+		return baseline ? runBaseline() : runReused();
+	}
+
+	/// As the driver sends a command now: one builder, finished in place
+	private long runReused() throws PacketProcessor.CRCException {
+		long sum = 0;
+		for (int n = 0; n < PACKETS; n++) {
+			builder.reset(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
+			addPoint(builder, n);
+			int length = builder.finish();
+			sum += builder.data[length - 1];
+
+			processor.reset();
+			for (int i = 0; i < answer.length; i++) {
+				if (processor.processByte(answer[i])) {
+					if (processor.getResponseCode() == PacketResponse.ResponseCode.OK) {
+						sum += PacketResponse.okResponse().getResponseCode().ordinal();
+					}
+					break;
+				}
+			}
+		}
+		return sum;
+	}
+
+	/// As the driver sent a command before the builder and buffers were reused
+	private long runBaseline() throws PacketProcessor.CRCException {
+		long sum = 0;
+		for (int n = 0; n < PACKETS; n++) {
+			OldPacketBuilder pb = new OldPacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
+			pb.add32(n);
+			pb.add32(-n);
+			pb.add32(n * 2);
+			pb.add32(0);
+			pb.add32(0);
+			pb.add32(1000 + n);
+			pb.add8(0);
+			byte[] packet = pb.getPacket();
+			sum += packet[packet.length - 1];
+
+			OldPacketProcessor pp = new OldPacketProcessor();
+			for (int i = 0; i < answer.length; i++) {
+				if (pp.processByte(answer[i])) {
+					sum += new PacketResponse(pp.payload).getResponseCode().ordinal();
+					break;
+				}
+			}
+		}
+		return sum;
+	}
+
+	private static void addPoint(PacketBuilder pb, int n) {
+		pb.add32(n);
+		pb.add32(-n);
+		pb.add32(n * 2);
+		pb.add32(0);
+		pb.add32(0);
+		pb.add32(1000 + n);
+		pb.add8(0);
+	}
+
+	/// The CRC as it was, a bit at a time
+	private static int updateCrc(int crc, byte data) {
+		crc = (crc ^ data) & 0xff;
+		for (int i = 0; i < 8; i++) {
+			if ((crc & 0x01) != 0) {
+				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
+			} else {
+				crc = (crc >>> 1) & 0xff;
+			}
+		}
+		return crc;
+	}
+
+	/// The builder as it was: its own buffer, the CRC kept up byte by byte
+	private static class OldPacketBuilder {
+		byte[] data = new byte[PacketBuilder.MAX_PACKET_LENGTH];
+		int idx = 2;
+		int crc = 0;
+
+		OldPacketBuilder(int command) {
+			data[0] = PacketConstants.START_BYTE;
+			add8(command);
+		}
+
+		void add8(int v) {
+			data[idx++] = (byte) v;
+			crc = updateCrc(crc, (byte) v);
+		}
+
+		void add16(int v) {
+			add8((byte) (v & 0xff));
+			add8((byte) ((v >> 8) & 0xff));
+		}
+
+		void add32(long v) {
+			add16((int) (v & 0xffff));
+			add16((int) ((v >> 16) & 0xffff));
+		}
+
+		byte[] getPacket() {
+			data[idx] = (byte) crc;
+			data[1] = (byte) (idx - 2);
+			byte[] rv = new byte[idx + 1];
+			System.arraycopy(data, 0, rv, 0, idx + 1);
+			return rv;
+		}
+	}
+
+	/// The processor as it was: a new payload and CRC for every packet
+	private static class OldPacketProcessor {
+		int state = 0;
+		int payloadLength;
+		int payloadIdx = 0;
+		byte[] payload;
+		int crc;
+
+		boolean processByte(byte b) throws PacketProcessor.CRCException {
+			switch (state) {
+			case 0:
+				if (b == PacketConstants.START_BYTE) {
+					state = 1;
+				}
+				break;
+			case 1:
+				payloadLength = b & 0xff;
+				payload = new byte[payloadLength];
+				crc = 0;
+				state = payloadLength > 0 ? 2 : 3;
+				break;
+			case 2:
+				if (payloadIdx < payloadLength) {
+					payload[payloadIdx++] = b;
+					crc = updateCrc(crc, b);
+				}
+				if (payloadIdx >= payloadLength) {
+					state = 3;
+				}
+				break;
+			case 3:
+				if ((byte) crc != b) {
+					throw new PacketProcessor.CRCException(crc, b);
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package replicatorg.drivers.gen3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.VirtualDevice;
+
+/**
+ * A stand-in for S3G firmware, for running the driver against without a
+ * machine.  Added to Serial as a virtual device, it answers packets the way
+ * a motherboard does, closely enough for a driver to connect and build.
+ *
+ * Commands go into a buffer of limited size and leave it as the moves in it
+ * would finish, each taking as long as the packet says it does (sped up by
+ * a given factor), one after another.  A command that doesn't fit is turned
+ * away with BUFFER_OVERFLOW.  Every answer can be held back a while, as by
+ * a slow link, and faults can be injected: a packet can be answered with
+ * CRC_MISMATCH without being run, or ignored altogether so the host times
+ * out.  What happened is counted, including how long the machine sat with
+ * nothing to do while the host had more to send.
+ *
+ * Lives in the driver's package to reach the packet classes.
+ */
+public class S3GEmulator implements VirtualDevice, Runnable {
+
+	// Response codes
+	static final int OK = 0x81;
+	static final int BUFFER_OVERFLOW = 0x82;
+	static final int CRC_MISMATCH = 0x83;
+
+	// Settings
+	private int bufferSize = 512;
+	private long latencyMicros = 0;
+	private double speedup = 1;
+	private double crcErrorRate = 0;
+	private double timeoutRate = 0;
+	private double lateRate = 0;
+	private long lateMicros = 100000;
+	private int version = 700;
+	private Random random = new Random(1);
+
+	private InputStream in;
+	private OutputStream out;
+	private Thread thread = null;
+
+	private final PacketProcessor processor = new PacketProcessor();
+	private final PacketBuilder reply = new PacketBuilder(OK);
+	private final byte[] readBuffer = new byte[256];
+
+	// What's in the command buffer: payload lengths and when each leaves it
+	private final ArrayDeque<long[]> queue = new ArrayDeque<long[]>();
+	private int queuedBytes = 0;
+	// When the last command in the buffer finishes, in ns
+	private long busyUntil = 0;
+	private final long[] position = new long[5];
+	private final byte[] eeprom = new byte[4096];
+
+	// What happened, guarded by this
+	private long packets, commands, overflows, crcErrors, timeouts, late;
+	private long movesMicros = 0;
+	private long idleNanos = 0;
+
+	/// Bytes the command buffer holds
+	public void setBufferSize(int bytes) { bufferSize = bytes; }
+	/// How long to wait before answering each packet
+	public void setLatencyMicros(long micros) { latencyMicros = micros; }
+	/// Run moves this many times faster than they'd really take
+	public void setSpeedup(double factor) { speedup = factor; }
+	/// Fraction of packets to answer with CRC_MISMATCH, as if they'd come in garbled
+	public void setCrcErrorRate(double rate) { crcErrorRate = rate; }
+	/// Fraction of packets to ignore, as if they'd been lost
+	public void setTimeoutRate(double rate) { timeoutRate = rate; }
+	/// Fraction of packets to answer only after a delay, as a busy toolhead would
+	public void setLateRate(double rate) { lateRate = rate; }
+	/// How long a late answer is held back, on top of the latency
+	public void setLateMicros(long micros) { lateMicros = micros; }
+	/// Firmware version to report, as major * 100 + minor
+	public void setVersion(int version) { this.version = version; }
+	/// Seed for the injected faults, so runs can be repeated
+	public void setSeed(long seed) { random = new Random(seed); }
+
+	public synchronized void open(InputStream fromHost, OutputStream toHost) {
+		in = fromHost;
+		out = toHost;
+		processor.reset();
+		clearQueue();
+		thread = new Thread(this, "S3G Emulator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+		}
+		if (t != null) {
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			int count;
+			while ((count = in.read(readBuffer)) != -1) {
+				for (int i = 0; i < count; i++) {
+					try {
+						if (processor.processByte(readBuffer[i])) {
+							handle(processor.getPayloadBuffer());
+							processor.reset();
+						}
+					} catch (PacketProcessor.CRCException e) {
+						synchronized (this) {
+							crcErrors++;
+						}
+						processor.reset();
+						answer(reply.reset(CRC_MISMATCH));
+					}
+				}
+			}
+		} catch (IOException e) {
+			// The port's been closed
+		}
+	}
+
+	private void answer(PacketBuilder pb) throws IOException {
+		if (latencyMicros > 0) {
+			LockSupport.parkNanos(latencyMicros * 1000);
+		}
+		out.write(pb.getPacket());
+	}
+
+	private void handle(ByteBuffer payload) throws IOException {
+		if (!payload.hasRemaining()) {
+			return;
+		}
+		int code = payload.get() & 0xff;
+		boolean answerLate = false;
+		synchronized (this) {
+			packets++;
+			if (timeoutRate > 0 && random.nextDouble() < timeoutRate) {
+				timeouts++;
+				return;
+			}
+			if (crcErrorRate > 0 && random.nextDouble() < crcErrorRate) {
+				crcErrors++;
+				reply.reset(CRC_MISMATCH);
+			} else if ((code & 0x80) != 0) {
+				command(code, payload);
+			} else {
+				query(code, payload);
+			}
+			if (lateRate > 0 && random.nextDouble() < lateRate) {
+				late++;
+				answerLate = true;
+			}
+		}
+		if (answerLate) {
+			LockSupport.parkNanos(lateMicros * 1000);
+		}
+		answer(reply);
+	}
+
+	// Take whatever's finished out of the buffer
+	private void drain(long now) {
+		while (!queue.isEmpty() && queue.peek()[1] <= now) {
+			queuedBytes -= (int)queue.poll()[0];
+		}
+	}
+
+	private void clearQueue() {
+		queue.clear();
+		queuedBytes = 0;
+		busyUntil = 0;
+	}
+
+	private void command(int code, ByteBuffer payload) {
+		long now = System.nanoTime();
+		drain(now);
+		int length = payload.limit();
+		if (queuedBytes + length > bufferSize) {
+			overflows++;
+			reply.reset(BUFFER_OVERFLOW);
+			return;
+		}
+		long micros = run(code, payload);
+		movesMicros += micros;
+		if (busyUntil != 0 && busyUntil < now) {
+			// The machine ran out of things to do before this came
+			idleNanos += now - busyUntil;
+		}
+		busyUntil = Math.max(busyUntil, now) + (long)(micros * 1000 / speedup);
+		queue.add(new long[] { length, busyUntil });
+		queuedBytes += length;
+		commands++;
+		reply.reset(OK);
+	}
+
+	/// Carry out a buffered command, as far as position goes
+	/// @return how long it takes, in us
+	private long run(int code, ByteBuffer payload) {
+		if (code == MotherboardCommandCode.QUEUE_POINT_ABS.getCode()) {
+			return moveTo(payload, 3, 0) * (payload.getInt() & 0xffffffffL);
+		} else if (code == MotherboardCommandCode.QUEUE_POINT_EXT.getCode()) {
+			return moveTo(payload, 5, 0) * (payload.getInt() & 0xffffffffL);
+		} else if (code == MotherboardCommandCode.QUEUE_POINT_NEW.getCode()) {
+			int[] target = readAxes(payload, 5);
+			long micros = payload.getInt() & 0xffffffffL;
+			moveTo(target, payload.get());
+			return micros;
+		} else if (code == MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode()) {
+			int[] target = readAxes(payload, 5);
+			payload.getInt(); // dda rate
+			moveTo(target, payload.get());
+			float distance = payload.getFloat();
+			// in mm/s
+			double feedrate = (payload.getShort() & 0xffff) / 64.0;
+			return feedrate > 0 ? (long)(distance / feedrate * 1000000.0) : 0;
+		} else if (code == MotherboardCommandCode.SET_POSITION.getCode()) {
+			setPosition(readAxes(payload, 3));
+		} else if (code == MotherboardCommandCode.SET_POSITION_EXT.getCode()) {
+			setPosition(readAxes(payload, 5));
+		} else if (code == MotherboardCommandCode.DELAY.getCode()) {
+			return (payload.getInt() & 0xffffffffL) * 1000;
+		}
+		return 0;
+	}
+
+	private int[] readAxes(ByteBuffer payload, int count) {
+		int[] axes = new int[count];
+		for (int i = 0; i < count; i++) {
+			axes[i] = payload.getInt();
+		}
+		return axes;
+	}
+
+	private void setPosition(int[] axes) {
+		for (int i = 0; i < axes.length; i++) {
+			position[i] = axes[i];
+		}
+	}
+
+	/// Move to an absolute position; return the steps the longest axis takes
+	private long moveTo(ByteBuffer payload, int count, int relative) {
+		return moveTo(readAxes(payload, count), relative);
+	}
+
+	private long moveTo(int[] target, int relative) {
+		long longest = 0;
+		for (int i = 0; i < target.length; i++) {
+			long to = ((relative >> i) & 1) != 0 ? position[i] + target[i] : target[i];
+			longest = Math.max(longest, Math.abs(to - position[i]));
+			position[i] = to;
+		}
+		return longest;
+	}
+
+	private void query(int code, ByteBuffer payload) {
+		reply.reset(OK);
+		long now = System.nanoTime();
+		drain(now);
+		if (code == MotherboardCommandCode.VERSION.getCode()) {
+			reply.add16(version);
+		} else if (code == MotherboardCommandCode.GET_BUFFER_SIZE.getCode()) {
+			reply.add32(bufferSize - queuedBytes);
+		} else if (code == MotherboardCommandCode.CLEAR_BUFFER.getCode()
+				|| code == MotherboardCommandCode.ABORT.getCode()
+				|| code == MotherboardCommandCode.RESET.getCode()
+				|| code == MotherboardCommandCode.EXTENDED_STOP.getCode()) {
+			clearQueue();
+			if (code == MotherboardCommandCode.EXTENDED_STOP.getCode()) {
+				reply.add8(0);
+			}
+		} else if (code == MotherboardCommandCode.GET_POSITION.getCode()) {
+			for (int i = 0; i < 3; i++) {
+				reply.add32(position[i]);
+			}
+			reply.add8(0);
+		} else if (code == MotherboardCommandCode.GET_POSITION_EXT.getCode()) {
+			for (int i = 0; i < 5; i++) {
+				reply.add32(position[i]);
+			}
+			reply.add16(0);
+		} else if (code == MotherboardCommandCode.IS_FINISHED.getCode()) {
+			reply.add8(queue.isEmpty() ? 1 : 0);
+		} else if (code == MotherboardCommandCode.TOOL_QUERY.getCode()) {
+			payload.get(); // tool index
+			int toolCode = payload.hasRemaining() ? payload.get() & 0xff : -1;
+			if (toolCode == ToolCommandCode.VERSION.getCode()) {
+				reply.add16(version);
+			} else if (toolCode == ToolCommandCode.IS_TOOL_READY.getCode()) {
+				reply.add8(1);
+			} else {
+				reply.add32(0);
+			}
+		} else if (code == MotherboardCommandCode.READ_EEPROM.getCode()) {
+			int offset = payload.getShort() & 0xffff;
+			int count = payload.get() & 0xff;
+			for (int i = 0; i < count; i++) {
+				reply.add8(offset + i < eeprom.length ? eeprom[offset + i] : 0);
+			}
+		} else if (code == MotherboardCommandCode.WRITE_EEPROM.getCode()) {
+			int offset = payload.getShort() & 0xffff;
+			int count = payload.get() & 0xff;
+			for (int i = 0; i < count && payload.hasRemaining(); i++) {
+				byte b = payload.get();
+				if (offset + i < eeprom.length) {
+					eeprom[offset + i] = b;
+				}
+			}
+			reply.add8(count);
+		} else if (code == MotherboardCommandCode.GET_BUILD_NAME.getCode()) {
+			// Without the terminator, which the driver would print
+			for (char c : "Emulated".toCharArray()) {
+				reply.add8(c);
+			}
+		} else if (code == MotherboardCommandCode.GET_COMMUNICATION_STATS.getCode()) {
+			reply.add32(packets);
+			reply.add32(packets - timeouts);
+			reply.add32(crcErrors);
+			reply.add32(0);
+			reply.add32(0);
+		} else if (code != MotherboardCommandCode.INIT.getCode()) {
+			Base.logger.fine("S3G emulator: no answer for query " + code + "; sending zeros");
+			reply.add32(0);
+		}
+	}
+
+	/// Wait until everything in the command buffer has finished
+	public void awaitFinished() throws InterruptedException {
+		while (true) {
+			long left;
+			synchronized (this) {
+				left = busyUntil - System.nanoTime();
+			}
+			if (left <= 0) {
+				return;
+			}
+			Thread.sleep(Math.max(1, left / 1000000));
+		}
+	}
+
+	public synchronized long getPackets() { return packets; }
+	public synchronized long getCommands() { return commands; }
+	public synchronized long getOverflows() { return overflows; }
+	/// Packets answered with CRC_MISMATCH, whether garbled or made out to be
+	public synchronized long getCrcErrors() { return crcErrors; }
+	/// Packets ignored on purpose
+	public synchronized long getTimeouts() { return timeouts; }
+	/// Packets answered late on purpose
+	public synchronized long getLate() { return late; }
+	/// How long the moves received would take on a real machine, in us
+	public synchronized long getMovesMicros() { return movesMicros; }
+	/**
+	 * How long the machine has sat with nothing to do between commands, in
+	 * ns of emulated (sped up) time; the host not keeping up.
+	 */
+	public synchronized long getIdleNanos() { return idleNanos; }
+}
@@ -0,0 +1,511 @@
+package replicatorg.drivers.reprap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import replicatorg.app.util.serial.VirtualDevice;
+import replicatorg.drivers.LatencyHistogram;
+
+/**
+ * A stand-in for RepRap gcode firmware, for running the driver against
+ * without a machine.  Added to Serial as a virtual device, it answers lines
+ * the way Marlin, Sprinter or Teacup do, closely enough for the driver to
+ * connect and build.
+ *
+ * Bytes arrive at the rate of the serial line into a receive buffer of the
+ * firmware's size; what doesn't fit is lost.  Lines are checked for their
+ * number and checksum as the firmware does, and a bad one is asked for
+ * again in that firmware's words, with or without the "ok" some of them
+ * add.  Each line after it is turned away in the same way until the one
+ * asked for comes.  (Old firmware cleared its receive buffer on a bad
+ * line, but Serial.flush() only drains what's being sent since Arduino
+ * 1.0.)  Moves go into a planner of a few blocks that empties as the moves
+ * would finish; while it's full, no more lines are read, and no "ok" sent.
+ *
+ * Line noise can be injected: a line can be garbled on its way in, so the
+ * firmware finds it bad and asks for it again.  What happened is counted,
+ * including how long it took from asking for a line again to getting it,
+ * and how long the machine sat with nothing to do.
+ */
+public class RepRapEmulator implements VirtualDevice {
+
+	/** How the firmwares differ in what they say. */
+	public enum Flavor {
+		/** "Error:..." then "Resend: N" then "ok" */
+		MARLIN("Resend: %d", true, false),
+		/** As Marlin, with less spacing */
+		SPRINTER("Resend:%d", true, false),
+		/** "rs N" and nothing more; says "ok" after "start" */
+		TEACUP("rs %d", false, true);
+
+		final String resend;
+		final boolean okAfterResend;
+		final boolean okAfterStart;
+
+		Flavor(String resend, boolean okAfterResend, boolean okAfterStart) {
+			this.resend = resend;
+			this.okAfterResend = okAfterResend;
+			this.okAfterStart = okAfterStart;
+		}
+	}
+
+	// Settings
+	private Flavor flavor = Flavor.MARLIN;
+	private boolean okAfterResend = flavor.okAfterResend;
+	private boolean okAfterStart = flavor.okAfterStart;
+	private boolean advancedOk = false;
+	private int rxBufferSize = 128;
+	private int plannerSize = 16;
+	private int baudRate = 115200;
+	private double speedup = 1;
+	private long latencyMicros = 0;
+	private long bootMillis = 500;
+	private double noiseRate = 0;
+	private Random random = new Random(1);
+
+	private InputStream in;
+	private OutputStream out;
+	private Thread receiver = null;
+	private Thread firmware = null;
+	private volatile boolean open = false;
+
+	// The receive buffer, guarded by itself
+	private final byte[] rx = new byte[1024];
+	private int rxHead = 0, rxCount = 0, rxLines = 0;
+	private final StringBuilder line = new StringBuilder();
+
+	// When each move in the planner finishes, in ns; only the firmware thread uses these
+	private final ArrayDeque<Long> planner = new ArrayDeque<Long>();
+	private long busyUntil = 0;
+	private final double[] position = new double[4];
+	private double feedrate = 1000;
+	private boolean relative = false;
+	private int lastLine = 0;
+	// When we first asked for lastLine + 1 again, or 0
+	private long resendSince = 0;
+
+	// What happened, guarded by this
+	private long linesAccepted, errors, resends, overruns, garbled;
+	private long movesMicros = 0;
+	private long idleNanos = 0;
+	private final LatencyHistogram recovery = new LatencyHistogram();
+
+	public void setFlavor(Flavor flavor) {
+		this.flavor = flavor;
+		okAfterResend = flavor.okAfterResend;
+		okAfterStart = flavor.okAfterStart;
+	}
+	/// Say "ok" after asking for a line again, or not, whatever the flavor does
+	public void setOkAfterResend(boolean ok) { okAfterResend = ok; }
+	/// Say "ok" after "start", or not, whatever the flavor does
+	public void setOkAfterStart(boolean ok) { okAfterStart = ok; }
+	public boolean isOkAfterResend() { return okAfterResend; }
+	public boolean isOkAfterStart() { return okAfterStart; }
+	/// Say "ok N<line> P<planner free> B<buffer free>", as Marlin's ADVANCED_OK does
+	public void setAdvancedOk(boolean advanced) { advancedOk = advanced; }
+	/// Bytes the receive buffer holds
+	public void setRxBufferSize(int bytes) { rxBufferSize = Math.min(rx.length, bytes); }
+	/// Moves the planner holds
+	public void setPlannerSize(int moves) { plannerSize = Math.max(1, moves); }
+	public void setBaudRate(int baud) { baudRate = baud; }
+	/// How long the bootloader runs after the port's opened, ignoring what it's sent
+	public void setBootMillis(long millis) { bootMillis = millis; }
+	/// How long each line takes to handle and answer, on top of its moves
+	public void setLatencyMicros(long micros) { latencyMicros = micros; }
+	/// Run the moves this many times faster than they'd really go
+	public void setSpeedup(double factor) { speedup = factor; }
+	/// Fraction of lines to garble on their way in
+	public void setNoiseRate(double rate) { noiseRate = rate; }
+	/// Seed for the noise, so runs can be repeated
+	public void setSeed(long seed) { random = new Random(seed); }
+
+	public synchronized void open(InputStream fromHost, OutputStream toHost) {
+		in = fromHost;
+		out = toHost;
+		synchronized (rx) {
+			rxHead = rxCount = rxLines = 0;
+		}
+		planner.clear();
+		busyUntil = 0;
+		lastLine = 0;
+		resendSince = 0;
+		open = true;
+
+		receiver = new Thread("RepRap Emulator Receiver") {
+			public void run() {
+				receive();
+			}
+		};
+		firmware = new Thread("RepRap Emulator") {
+			public void run() {
+				try {
+					// Opening the port resets the board; what's sent while
+					// the bootloader runs is lost
+					Thread.sleep(bootMillis);
+					synchronized (rx) {
+						rxHead = rxCount = rxLines = 0;
+					}
+					// What the firmware says when it comes out of reset
+					say("start");
+					if (okAfterStart) {
+						say("ok");
+					}
+					while (true) {
+						String next = nextLine();
+						if (next == null) {
+							return;
+						}
+						process(next);
+					}
+				} catch (IOException e) {
+					// The port's been closed
+				} catch (InterruptedException e) {
+					// Closing
+				}
+			}
+		};
+		receiver.setDaemon(true);
+		firmware.setDaemon(true);
+		receiver.start();
+		firmware.start();
+	}
+
+	public void close() {
+		Thread r, f;
+		synchronized (this) {
+			open = false;
+			r = receiver;
+			f = firmware;
+			receiver = firmware = null;
+		}
+		synchronized (rx) {
+			rx.notifyAll();
+		}
+		if (f != null) {
+			f.interrupt();
+		}
+		try {
+			if (r != null) {
+				r.join(1000);
+			}
+			if (f != null) {
+				f.join(1000);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/// Time on the line for so many bytes, at 10 bits a byte
+	private long lineNanos(int bytes) {
+		return (long)(bytes * 10 * 1e9 / baudRate);
+	}
+
+	// Stands in for the UART: bytes arrive as fast as the line carries them,
+	// and are lost if the buffer's full when they do
+	private void receive() {
+		byte[] chunk = new byte[16];
+		long arrival = 0;
+		try {
+			int count;
+			while ((count = in.read(chunk)) != -1) {
+				arrival = Math.max(arrival, System.nanoTime()) + lineNanos(count);
+				long wait = arrival - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				synchronized (rx) {
+					for (int i = 0; i < count; i++) {
+						if (rxCount >= rxBufferSize) {
+							synchronized (this) {
+								overruns++;
+							}
+							continue;
+						}
+						rx[(rxHead + rxCount) % rx.length] = chunk[i];
+						rxCount++;
+						if (chunk[i] == '\n') {
+							rxLines++;
+						}
+					}
+					rx.notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			// The port's been closed
+		}
+		synchronized (rx) {
+			open = false;
+			rx.notifyAll();
+		}
+	}
+
+	// The next line from the receive buffer, without its end; null once closed
+	private String nextLine() throws InterruptedException {
+		synchronized (rx) {
+			while (rxLines == 0) {
+				if (!open) {
+					return null;
+				}
+				rx.wait();
+			}
+			line.setLength(0);
+			while (true) {
+				byte b = rx[rxHead];
+				rxHead = (rxHead + 1) % rx.length;
+				rxCount--;
+				if (b == '\n') {
+					rxLines--;
+					break;
+				}
+				if (b != '\r') {
+					line.append((char)b);
+				}
+			}
+		}
+		String next = line.toString();
+		if (noiseRate > 0 && next.length() > 0 && random.nextDouble() < noiseRate) {
+			// Flip a bit of one character, as line noise does
+			char[] chars = next.toCharArray();
+			int at = random.nextInt(chars.length);
+			chars[at] = (char)((chars[at] ^ (1 << random.nextInt(7))) & 0x7f);
+			next = new String(chars);
+			synchronized (this) {
+				garbled++;
+			}
+		}
+		return next;
+	}
+
+	private void say(String text) throws IOException {
+		out.write((text + "\n").getBytes("US-ASCII"));
+	}
+
+	private void ok() throws IOException {
+		if (advancedOk) {
+			int free;
+			synchronized (rx) {
+				free = rxBufferSize - rxCount;
+			}
+			say("ok N" + lastLine + " P" + (plannerSize - planner.size()) + " B" + free);
+		} else {
+			say("ok");
+		}
+	}
+
+	// Check a line as the firmware does, and run it if it's good
+	private void process(String text) throws IOException, InterruptedException {
+		text = text.trim();
+		if (text.length() == 0) {
+			return;
+		}
+		if (latencyMicros > 0) {
+			LockSupport.parkNanos(latencyMicros * 1000);
+		}
+		int star = text.lastIndexOf('*');
+		if (text.charAt(0) == 'N') {
+			int space = text.indexOf(' ');
+			int number;
+			try {
+				number = Integer.parseInt(text.substring(1, space < 0 ? text.length() : space).trim());
+			} catch (NumberFormatException e) {
+				requestResend("Line Number is not a number");
+				return;
+			}
+			boolean reset = text.contains("M110");
+			if (number != lastLine + 1 && !reset) {
+				requestResend("Line Number is not Last Line Number+1");
+				return;
+			}
+			if (star < 0) {
+				requestResend("No Checksum with line number");
+				return;
+			}
+			int checksum = 0;
+			for (int i = 0; i < star; i++) {
+				checksum ^= text.charAt(i);
+			}
+			int given;
+			try {
+				given = Integer.parseInt(text.substring(star + 1).trim());
+			} catch (NumberFormatException e) {
+				given = -1;
+			}
+			if (given != (checksum & 0xff)) {
+				requestResend("checksum mismatch");
+				return;
+			}
+			lastLine = number;
+			if (resendSince != 0) {
+				recovery.record(System.nanoTime() - resendSince);
+				resendSince = 0;
+			}
+			text = text.substring(space < 0 ? text.length() : space + 1, star).trim();
+		} else if (star >= 0) {
+			requestResend("No Line Number with checksum");
+			return;
+		}
+		synchronized (this) {
+			linesAccepted++;
+		}
+		run(text);
+	}
+
+	private void requestResend(String why) throws IOException {
+		synchronized (this) {
+			errors++;
+			resends++;
+		}
+		if (resendSince == 0) {
+			resendSince = System.nanoTime();
+		}
+		if (flavor != Flavor.TEACUP) {
+			say("Error:" + why + ", Last Line: " + lastLine);
+		}
+		say(String.format(flavor.resend, lastLine + 1));
+		if (okAfterResend) {
+			ok();
+		}
+	}
+
+	// A letter and its number, with or without spaces between words
+	private static final Pattern WORD = Pattern.compile("([A-Za-z])\\s*([-+]?[0-9]*\\.?[0-9]+)");
+
+	private static double value(String command, char letter, double otherwise) {
+		Matcher m = WORD.matcher(command);
+		while (m.find()) {
+			if (Character.toUpperCase(m.group(1).charAt(0)) == letter) {
+				return Double.parseDouble(m.group(2));
+			}
+		}
+		return otherwise;
+	}
+
+	private static boolean has(String command, char letter) {
+		return !Double.isNaN(value(command, letter, Double.NaN));
+	}
+
+	private void run(String command) throws IOException, InterruptedException {
+		String code = "";
+		Matcher m = WORD.matcher(command);
+		while (m.find()) {
+			char letter = Character.toUpperCase(m.group(1).charAt(0));
+			// Skip a tool change ahead of the command proper
+			if (letter == 'G' || letter == 'M') {
+				code = letter + Integer.toString((int)Double.parseDouble(m.group(2)));
+				break;
+			}
+		}
+		if (code.equals("G0") || code.equals("G1")) {
+			feedrate = value(command, 'F', feedrate);
+			double squares = 0;
+			char[] axes = { 'X', 'Y', 'Z', 'E' };
+			for (int i = 0; i < axes.length; i++) {
+				if (has(command, axes[i])) {
+					double to = value(command, axes[i], 0) + (relative ? position[i] : 0);
+					double delta = to - position[i];
+					if (i < 3 || squares == 0) {
+						squares += delta * delta;
+					}
+					position[i] = to;
+				}
+			}
+			plan((long)(Math.sqrt(squares) / feedrate * 60e6));
+		} else if (code.equals("G4")) {
+			plan((long)(value(command, 'P', 0) * 1000 + value(command, 'S', 0) * 1e6));
+		} else if (code.equals("G90")) {
+			relative = false;
+		} else if (code.equals("G91")) {
+			relative = true;
+		} else if (code.equals("G92")) {
+			char[] axes = { 'X', 'Y', 'Z', 'E' };
+			for (int i = 0; i < axes.length; i++) {
+				position[i] = value(command, axes[i], position[i]);
+			}
+		} else if (code.equals("M105")) {
+			say("ok T:200.0 /200.0 B:60.0 /60.0 @:0");
+			return;
+		} else if (code.equals("M114")) {
+			say(String.format(Locale.US, "X:%.2f Y:%.2f Z:%.2f E:%.2f",
+					position[0], position[1], position[2], position[3]));
+		} else if (code.equals("M115")) {
+			say("FIRMWARE_NAME:" + flavor.name().charAt(0) + flavor.name().substring(1).toLowerCase()
+					+ " FIRMWARE_URL:http://reprap.org PROTOCOL_VERSION:0.9 MACHINE_TYPE:Mendel EXTRUDER_COUNT:1");
+		} else if (code.equals("M400") || code.equals("M109") || code.equals("M190")) {
+			// Waits for the moves to finish
+			while (!planner.isEmpty()) {
+				drain(System.nanoTime());
+				if (!planner.isEmpty()) {
+					sleepUntil(planner.peekLast());
+				}
+			}
+		}
+		ok();
+	}
+
+	private void drain(long now) {
+		while (!planner.isEmpty() && planner.peek() <= now) {
+			planner.poll();
+		}
+	}
+
+	private void sleepUntil(long nanos) throws InterruptedException {
+		long wait = nanos - System.nanoTime();
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		}
+	}
+
+	// Put a move in the planner, waiting for room first
+	private void plan(long micros) throws InterruptedException {
+		long now = System.nanoTime();
+		drain(now);
+		while (planner.size() >= plannerSize) {
+			sleepUntil(planner.peek());
+			now = System.nanoTime();
+			drain(now);
+		}
+		synchronized (this) {
+			movesMicros += micros;
+			if (busyUntil != 0 && busyUntil < now) {
+				// The machine ran out of moves before this one came
+				idleNanos += now - busyUntil;
+			}
+		}
+		busyUntil = Math.max(busyUntil, now) + (long)(micros * 1000 / speedup);
+		planner.add(busyUntil);
+	}
+
+	/// Wait until the moves sent so far have finished
+	public void awaitFinished() throws InterruptedException {
+		while (true) {
+			long left = busyUntil - System.nanoTime();
+			if (left <= 0) {
+				return;
+			}
+			Thread.sleep(Math.max(1, left / 1000000));
+		}
+	}
+
+	/// Good lines, not counting any seen again
+	public synchronized long getLinesAccepted() { return linesAccepted; }
+	/// Lines found bad, and so asked for again
+	public synchronized long getResends() { return resends; }
+	/// Lines garbled on purpose
+	public synchronized long getGarbled() { return garbled; }
+	/// Bytes lost to a full receive buffer
+	public synchronized long getOverruns() { return overruns; }
+	/// How long the moves received would take on a real machine, in us
+	public synchronized long getMovesMicros() { return movesMicros; }
+	/// How long the machine sat with nothing to do, in ns of emulated time
+	public synchronized long getIdleNanos() { return idleNanos; }
+	/// From first asking for a line again to getting it good
+	public LatencyHistogram getRecovery() { return recovery; }
+}
@@ -61,6 +61,7 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.logging.FileHandler;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
@@ -77,6 +78,7 @@ import javax.swing.UIManager;
 
 import replicatorg.app.ui.MainWindow;
 import replicatorg.app.ui.NotificationHandler;
+import replicatorg.app.util.AsyncLogHandler;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.machine.MachineLoader;
 import replicatorg.machine.MachineInterface;
@@ -129,7 +131,12 @@ public class Base {
 	 * The general-purpose logging object.
 	 */
 	public static Logger logger = Logger.getLogger("replicatorg.log");
-	public static FileHandler logFileHandler = null;
+	/**
+	 * Per-packet and per-byte tracing of machine connections.  Its records go
+	 * wherever the general logger's do, but the log file can sample them.
+	 */
+	public static Logger serialLogger = Logger.getLogger("replicatorg.log.serial");
+	public static Handler logFileHandler = null;
 	public static String logFilePath = null;
 	
 	
@@ -155,6 +162,7 @@ public class Base {
 		
 		if (logFileHandler != null) {
 			logger.removeHandler(logFileHandler);
+			logFileHandler.close();
 			logFileHandler = null;
 		}
 		
@@ -167,8 +175,17 @@ public class Base {
 				FileHandler fh = new FileHandler(logFilePath, append);
 				fh.setFormatter(new SimpleFormatter());
 				fh.setLevel(Level.ALL);
-				logFileHandler = fh;
-				logger.addHandler(fh);
+				if (Base.preferences.getBoolean("replicatorg.log.async", true)) {
+					// Write the file from a thread of its own, off the machine threads
+					AsyncLogHandler async = new AsyncLogHandler(fh,
+							Base.preferences.getInt("replicatorg.log.ringSize", AsyncLogHandler.DEFAULT_CAPACITY));
+					async.setSampling(serialLogger.getName(),
+							Base.preferences.getInt("replicatorg.log.serialSampling", 1));
+					logFileHandler = async;
+				} else {
+					logFileHandler = fh;
+				}
+				logger.addHandler(logFileHandler);
 			} catch (IOException ioe) {
 				String msg = "LOG INIT ERROR: Could not open file.\n"+ioe.getMessage();
 				System.err.println(msg); // In case logging is not yet enabled
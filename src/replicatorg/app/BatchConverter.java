@@ -0,0 +1,254 @@
+package replicatorg.app;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.MappedGCodeSource;
+import replicatorg.app.tools.XML;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.SDCardCapture;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.StringListSource;
+
+/**
+ * Converts a directory of gcode files to .s3g or .x3g files for a machine,
+ * without a display, an editor or a connection to the machine.
+ *
+ * Each file is built just as "Build to file" would build it: padded with the
+ * machine's warmup and cooldown code and captured by a driver of the
+ * machine's type.  Files are converted on a pool of threads, each with a
+ * driver and model of its own.
+ */
+public class BatchConverter {
+
+	static final String USAGE = "Usage: BatchConverter [--x3g|--s3g] [--threads N] "
+		+ "[--debug] MACHINE_NAME INPUT_DIR [OUTPUT_DIR]";
+
+	private final Node machineNode;
+	private final int buildToFileVersion;
+	private final Vector<String> warmupCommands;
+	private final Vector<String> cooldownCommands;
+
+	public BatchConverter(Node machineNode, boolean x3g) {
+		this.machineNode = machineNode;
+		this.buildToFileVersion = x3g ? 4 : 3;
+		warmupCommands = readCommands(machineNode, "warmup");
+		cooldownCommands = readCommands(machineNode, "cooldown");
+	}
+
+	/// The lines of the given child of the machine's node, as MachineThread reads them
+	private static Vector<String> readCommands(Node machineNode, String name) {
+		Vector<String> commands = new Vector<String>();
+		if (XML.hasChildNode(machineNode, name)) {
+			for (String command : XML.getChildNodeValue(machineNode, name).split("\n")) {
+				commands.add(command.trim());
+			}
+		}
+		return commands;
+	}
+
+	/// Make a driver of the machine's type that nobody else is using
+	private Driver createDriver() {
+		// The machine's DOM isn't safe to read from two threads at once
+		synchronized (machineNode) {
+			Driver driver = DriverFactory.factory(XML.getChildNodeByName(machineNode, "driver"));
+			MachineModel model = new MachineModel();
+			model.loadXML(machineNode);
+			driver.setMachine(model);
+			driver.setBuildToFileVersion(buildToFileVersion);
+			return driver;
+		}
+	}
+
+	public String getExtension() {
+		return buildToFileVersion >= 4 ? ".x3g" : ".s3g";
+	}
+
+	/**
+	 * Convert one file.
+	 * @return the number of lines built
+	 */
+	public int convert(File input, File output) throws IOException {
+		Driver driver = createDriver();
+		try {
+			if (!(driver instanceof SDCardCapture)) {
+				throw new IOException("This machine's driver can't build to a file");
+			}
+			SDCardCapture sdcc = (SDCardCapture)driver;
+
+			Vector<GCodeSource> sources = new Vector<GCodeSource>();
+			sources.add(new StringListSource(warmupCommands));
+			sources.add(new MappedGCodeSource(input));
+			sources.add(new StringListSource(cooldownCommands));
+			GCodeSource source = new GCodeSourceCollection(sources);
+
+			GCodeParser parser = new GCodeParser();
+			parser.init((DriverQueryInterface)driver);
+			Queue<DriverCommand> driverQueue = new LinkedList<DriverCommand>();
+
+			int lines = 0;
+			sdcc.beginFileCapture(output.getPath());
+			try {
+				build:
+				for (String line : source) {
+					lines++;
+					GCodeCommand gcode = new GCodeCommand();
+					gcode.parse(line);
+					parser.parse(gcode, driverQueue);
+					while (!driverQueue.isEmpty()) {
+						try {
+							driverQueue.peek().run(driver);
+							driverQueue.remove();
+						} catch (RetryException e) {
+							// Capturing never runs out of room, but go round again if it did
+						} catch (StopException e) {
+							// Nobody is here to be asked, so only an optional halt lets us carry on
+							if (e.getType() != StopException.StopType.OPTIONAL_HALT) {
+								Base.logger.info(input.getName() + ": build ended at line "
+										+ lines + ": " + e.getMessage());
+								break build;
+							}
+							driverQueue.remove();
+						}
+					}
+				}
+			} finally {
+				sdcc.endFileCapture();
+			}
+			return lines;
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	/**
+	 * Convert every gcode file in a directory, on the given number of threads.
+	 * @return the number of files that couldn't be converted
+	 */
+	public int convertAll(File inputDir, final File outputDir, int threads) throws InterruptedException {
+		File[] inputs = inputDir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				String name = f.getName().toLowerCase();
+				return f.isFile() && (name.endsWith(".gcode") || name.endsWith(".ngc"));
+			}
+		});
+		if (inputs == null || inputs.length == 0) {
+			Base.logger.warning("No gcode files found in " + inputDir);
+			return 0;
+		}
+		Arrays.sort(inputs);
+
+		final AtomicInteger failures = new AtomicInteger();
+		final long[] totals = new long[2]; // lines, bytes
+		long start = System.currentTimeMillis();
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, inputs.length));
+		for (final File input : inputs) {
+			pool.execute(new Runnable() {
+				public void run() {
+					String name = input.getName();
+					File output = new File(outputDir, name.substring(0, name.lastIndexOf('.')) + getExtension());
+					long fileStart = System.currentTimeMillis();
+					try {
+						int lines = convert(input, output);
+						long millis = Math.max(1, System.currentTimeMillis() - fileStart);
+						long bytes = output.length();
+						synchronized (totals) {
+							totals[0] += lines;
+							totals[1] += bytes;
+						}
+						Base.logger.info(String.format("%s -> %s: %d lines, %d bytes in %.2fs (%.0f lines/s, %.1f KB/s)",
+								name, output.getName(), lines, bytes, millis / 1000.0,
+								lines * 1000.0 / millis, bytes / 1.024 / millis));
+					} catch (Exception e) {
+						failures.incrementAndGet();
+						Base.logger.log(Level.SEVERE, "Could not convert " + name + ": " + e.getMessage(), e);
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		Base.logger.info(String.format("Converted %d of %d files: %d lines, %d bytes in %.2fs (%.0f lines/s)",
+				inputs.length - failures.get(), inputs.length, totals[0], totals[1],
+				millis / 1000.0, totals[0] * 1000.0 / millis));
+		return failures.get();
+	}
+
+	public static void main(String args[]) throws InterruptedException {
+		System.setProperty("java.awt.headless", "true");
+
+		boolean x3g = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		Level level = Level.INFO;
+		Vector<String> positional = new Vector<String>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--x3g")) {
+				x3g = true;
+			} else if (args[i].equals("--s3g")) {
+				x3g = false;
+			} else if (args[i].equals("--threads") && (i+1) < args.length) {
+				try {
+					threads = Math.max(1, Integer.parseInt(args[++i]));
+				} catch (NumberFormatException e) {
+					System.out.println(USAGE);
+					System.exit(1);
+				}
+			} else if (args[i].equals("--debug")) {
+				level = Level.FINE;
+			} else if (args[i].startsWith("-")) {
+				System.out.println(USAGE);
+				System.exit(1);
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		if (positional.size() < 2 || positional.size() > 3) {
+			System.out.println(USAGE);
+			System.exit(1);
+		}
+
+		Base.logger.setLevel(level);
+
+		Node machineNode = MachineFactory.getMachineNode(positional.get(0));
+		if (machineNode == null) {
+			System.out.println("Unknown machine: " + positional.get(0));
+			System.exit(1);
+		}
+		File inputDir = new File(positional.get(1));
+		File outputDir = positional.size() > 2 ? new File(positional.get(2)) : inputDir;
+		if (!inputDir.isDirectory() || !(outputDir.isDirectory() || outputDir.mkdirs())) {
+			System.out.println(USAGE);
+			System.exit(1);
+		}
+
+		BatchConverter converter = new BatchConverter(machineNode, x3g);
+		int failures = converter.convertAll(inputDir, outputDir, threads);
+		System.exit(failures == 0 ? 0 : 2);
+	}
+}
@@ -2,7 +2,9 @@ package replicatorg.app;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.EnumSet;
 
+import replicatorg.machine.MachineCallbackHandler;
 import replicatorg.machine.MachineListener;
 import replicatorg.machine.MachineProgressEvent;
 import replicatorg.machine.MachineStateChangeEvent;
@@ -30,7 +32,8 @@ public class DataCapture implements MachineListener {
 			Base.logger.severe("Couldn't open data capture file for writing:" + e.getMessage());
 		}
 		// Listen to the machine, do you hear what it is telling you? 
-		Base.getMachineLoader().addMachineListener(this);
+		Base.getMachineLoader().addMachineListener(this,
+				EnumSet.of(MachineCallbackHandler.EventType.TOOL_STATUS));
 	}
 
 	/**
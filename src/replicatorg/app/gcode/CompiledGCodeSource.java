@@ -0,0 +1,371 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.model.GCodeSource;
+
+/**
+ * A GCode program stored in pre-tokenized binary form, so that it can be
+ * built again without scanning the text of every line.
+ *
+ * The file starts with a header of the magic bytes "RGC", a version byte and
+ * the number of lines.  Each line is then one record:
+ * <pre>
+ *   byte    opcode   OP_COMMAND or OP_RAW
+ *   int     mask     (OP_COMMAND only) bit n set if GCodeCommand.codes[n] is present
+ *   double  value    (OP_COMMAND only) one for each bit set in mask, lowest bit first
+ *   int     length   number of bytes of UTF-8 text that follow
+ *   byte[]  text     the original line, comments and all
+ * </pre>
+ * Lines that could not be tokenized when compiling are stored as OP_RAW and
+ * are parsed from their text when read back.  If that still fails, next()
+ * throws an UnparseableLineException with the line's text, so the reader
+ * reports or fails on the line as it would have lexing the text itself.
+ *
+ * The records are streamed from disk; nothing but the header is held in memory.
+ */
+public class CompiledGCodeSource implements GCodeSource {
+
+	/// Extension given to compiled files
+	public static final String EXTENSION = ".rgc";
+
+	private static final byte[] MAGIC = { 'R', 'G', 'C' };
+	private static final int VERSION = 1;
+
+	/// Record holding a tokenized line
+	static final int OP_COMMAND = 0;
+	/// Record holding only text, to be parsed when read
+	static final int OP_RAW = 1;
+
+	private final File file;
+	private final int lineCount;
+
+	/**
+	 * Open a compiled file, checking its header.
+	 * @throws IOException if the file can't be read or isn't a compiled GCode file
+	 */
+	public CompiledGCodeSource(File file) throws IOException {
+		this.file = file;
+		DataInputStream in = open();
+		try {
+			lineCount = in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the given source out in compiled form.
+	 * @return a source reading back the compiled file
+	 */
+	public static CompiledGCodeSource compile(GCodeSource source, File target) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(target), 64 * 1024));
+		try {
+			writeHeader(out, source.getLineCount());
+			Compiler compiler = new Compiler(out);
+			for (String line : source) {
+				compiler.write(line);
+			}
+		} finally {
+			out.close();
+		}
+		return new CompiledGCodeSource(target);
+	}
+
+	private static void writeHeader(DataOutputStream out, int lineCount) throws IOException {
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(lineCount);
+	}
+
+	/// The compiled file that goes along with the given GCode file
+	public static File compiledFileFor(File gcodeFile) {
+		String name = gcodeFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return new File(gcodeFile.getParentFile(), name + EXTENSION);
+	}
+
+	/**
+	 * Get a compiled version of the given GCode file, reusing the one next
+	 * to it if that is newer than the GCode, and compiling it otherwise.
+	 */
+	public static CompiledGCodeSource forFile(File gcodeFile) throws IOException {
+		File compiled = compiledFileFor(gcodeFile);
+		if (compiled.exists() && compiled.lastModified() >= gcodeFile.lastModified()) {
+			try {
+				return new CompiledGCodeSource(compiled);
+			} catch (IOException e) {
+				Base.logger.log(Level.INFO, "Recompiling " + gcodeFile.getName() + ": " + e.getMessage());
+			}
+		}
+
+		// Stream the text through the compiler a line at a time, into a
+		// scratch file so a half-written one is never mistaken for up to date
+		File scratch = new File(compiled.getPath() + ".tmp");
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(gcodeFile), "UTF-8"));
+		DataOutputStream out = null;
+		int lines = 0;
+		boolean written = false;
+		try {
+			out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(scratch), 64 * 1024));
+			writeHeader(out, 0);
+			Compiler compiler = new Compiler(out);
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				compiler.write(line);
+				lines++;
+			}
+			written = true;
+		} finally {
+			reader.close();
+			if (out != null) {
+				out.close();
+			}
+			if (!written) {
+				scratch.delete();
+			}
+		}
+
+		// Now we know how many lines there were, fix up the header
+		RandomAccessFile raf = new RandomAccessFile(scratch, "rw");
+		try {
+			raf.seek(MAGIC.length + 1);
+			raf.writeInt(lines);
+		} finally {
+			raf.close();
+		}
+		compiled.delete();
+		if (!scratch.renameTo(compiled)) {
+			throw new IOException("Couldn't rename " + scratch.getPath() + " to " + compiled.getName());
+		}
+		return new CompiledGCodeSource(compiled);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		final CommandIterator commands = commandIterator();
+		return new Iterator<String>() {
+			public boolean hasNext() {
+				return commands.hasNext();
+			}
+			public String next() {
+				return commands.nextLine();
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public List<String> asList() {
+		List<String> result = new ArrayList<String>(lineCount);
+		for (String line : this) {
+			result.add(line);
+		}
+		return result;
+	}
+
+	@Override
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Iterate over the tokenized lines.  The same GCodeCommand is handed back
+	 * on every call to next(), refilled with the next line, so callers must
+	 * be done with it, or copy() it, before asking for another.
+	 */
+	public CommandIterator commandIterator() {
+		return new CommandIterator();
+	}
+
+	private DataInputStream open() throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		byte[] magic = new byte[MAGIC.length];
+		try {
+			in.readFully(magic);
+			int version = in.readUnsignedByte();
+			if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2]) {
+				throw new IOException(file.getName() + " is not a compiled GCode file");
+			}
+			if (version != VERSION) {
+				throw new IOException(file.getName() + " has unsupported version " + version);
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	public class CommandIterator implements Iterator<GCodeCommand> {
+		private DataInputStream in;
+		private int linesRead = 0;
+		private final GCodeCommand gcode = new GCodeCommand();
+		private final double[] values = new double[GCodeCommand.getCodeCount()];
+		private byte[] text = new byte[256];
+		// Set when the record just read couldn't be tokenized
+		private UnparseableLineException unparseable = null;
+
+		CommandIterator() {
+			try {
+				in = open();
+				in.readInt();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		public boolean hasNext() {
+			return in != null && linesRead < lineCount;
+		}
+
+		public GCodeCommand next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			try {
+				int opcode = in.readUnsignedByte();
+				if (opcode == OP_COMMAND) {
+					int mask = in.readInt();
+					for (int i = 0; i < values.length; i++) {
+						values[i] = ((mask & (1 << i)) != 0) ? in.readDouble() : 0;
+					}
+					gcode.load(readText(), mask, values);
+				} else if (opcode == OP_RAW) {
+					String line = readText();
+					try {
+						gcode.parse(line);
+					} catch (NumberFormatException e) {
+						// Keep the text, and go on to the next record once the reader has been told
+						Arrays.fill(values, 0);
+						gcode.load(line, 0, values);
+						unparseable = new UnparseableLineException(line, e.getMessage());
+					}
+				} else {
+					throw new IOException("Bad record type " + opcode + " at line " + linesRead);
+				}
+			} catch (EOFException e) {
+				fail(new IOException("Compiled file ends early, at line " + linesRead));
+				gcode.parse("");
+			} catch (IOException e) {
+				fail(e);
+				gcode.parse("");
+			}
+			linesRead++;
+			if (linesRead == lineCount) {
+				close();
+			}
+			if (unparseable != null) {
+				UnparseableLineException e = unparseable;
+				unparseable = null;
+				throw e;
+			}
+			return gcode;
+		}
+
+		/// Read the next record and give back only its text
+		String nextLine() {
+			try {
+				return next().getLine();
+			} catch (UnparseableLineException e) {
+				return e.getLine();
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private String readText() throws IOException {
+			int length = in.readInt();
+			if (length > text.length) {
+				text = new byte[Math.max(length, text.length * 2)];
+			}
+			in.readFully(text, 0, length);
+			return new String(text, 0, length, "UTF-8");
+		}
+
+		private void fail(IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't read compiled GCode " + file.getAbsolutePath(), e);
+			close();
+		}
+
+		private void close() {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Nothing more to read anyway.
+				}
+				in = null;
+			}
+		}
+	}
+
+	/// Turns lines of text into records
+	private static class Compiler {
+		private final DataOutputStream out;
+		private final GCodeCommand gcode = new GCodeCommand();
+		private final double[] values = new double[GCodeCommand.getCodeCount()];
+
+		Compiler(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void write(String line) throws IOException {
+			try {
+				gcode.parse(line);
+			} catch (NumberFormatException e) {
+				out.writeByte(OP_RAW);
+				writeText(line);
+				return;
+			}
+			int mask = gcode.getPresentCodes();
+			gcode.getCodeValues(values);
+			out.writeByte(OP_COMMAND);
+			out.writeInt(mask);
+			for (int i = 0; i < values.length; i++) {
+				if ((mask & (1 << i)) != 0) {
+					out.writeDouble(values[i]);
+				}
+			}
+			writeText(line);
+		}
+
+		private void writeText(String line) throws IOException {
+			byte[] bytes = line.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+}
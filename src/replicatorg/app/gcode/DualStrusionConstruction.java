@@ -344,10 +344,10 @@ public class DualStrusionConstruction
 	private Point5d getFirstPosition(final Layer l)
 	{
 		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
+		GCodeCommand gcode = new GCodeCommand();
 		for(int i = 0; i < search.size(); i++)
 		{
-			gcode = new GCodeCommand(search.get(i));
+			gcode.parse(search.get(i));
 			if(gcode.getCodeValue('G') == 1)
 			{
 				Point5d result = new Point5d();
@@ -370,10 +370,10 @@ public class DualStrusionConstruction
 	private Double getLayerZ(final Layer l)
 	{
 		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
+		GCodeCommand gcode = new GCodeCommand();
 		for(int i = search.size()-1; i >= 0; i--)
 		{
-			gcode = new GCodeCommand(search.get(i));
+			gcode.parse(search.get(i));
 			if(gcode.getCodeValue('G') == 1 && gcode.hasCode('Z'))
 			{
 				return gcode.getCodeValue('Z');
@@ -390,10 +390,10 @@ public class DualStrusionConstruction
 	private String getLastFeedrate(final Layer l)
 	{
 		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
+		GCodeCommand gcode = new GCodeCommand();
 		for(int i = search.size()-1; i >= 0; i--)
 		{
-			gcode = new GCodeCommand(search.get(i));
+			gcode.parse(search.get(i));
 			if(gcode.getCodeValue('F') != -1)
 				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
 		}
@@ -407,10 +407,10 @@ public class DualStrusionConstruction
 	private String getFirstFeedrate(final Layer l)
 	{
 		final List<String> search = l.getCommands();
-		GCodeCommand gcode;
+		GCodeCommand gcode = new GCodeCommand();
 		for(int i = 0; i < search.size(); i++)
 		{
-			gcode = new GCodeCommand(search.get(i));
+			gcode.parse(search.get(i));
 			if(gcode.getCodeValue('F') != -1)
 				return "F"+Base.getGcodeFormat().format(gcode.getCodeValue('F'));
 		}
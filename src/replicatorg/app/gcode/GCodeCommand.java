@@ -1,151 +1,280 @@
 package replicatorg.app.gcode;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * A single line of GCode, split into its letter codes and its comment.
+ *
+ * The line is scanned once, left to right, into a table of values indexed
+ * by letter plus a bitmask recording which letters are present.  Instances
+ * may be reused by calling parse(); the loops that walk whole files keep one
+ * GCodeCommand and feed it every line, so they allocate nothing per line
+ * unless the command or comment strings are actually asked for.
+ */
 public class GCodeCommand {
 
 	// These are the letter codes that we understand
-	static protected char[] codes = { 
+	static protected char[] codes = {
 		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
 		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
-	
-	// pattern matchers.
-	static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
-	static Pattern semiPattern = Pattern.compile(";(.*)");
-	static Pattern deleteBlockPattern = Pattern.compile("^(\\.*)");
-	
-	
-	// The actual GCode command string
+
+	// Position of each letter in codes[], or -1 for letters we ignore
+	static private final int[] codeIndex = new int[128];
+	static {
+		for (int i = 0; i < codeIndex.length; i++)
+			codeIndex[i] = -1;
+		for (int i = 0; i < codes.length; i++)
+			codeIndex[codes[i]] = i;
+	}
+
+	// Exact powers of ten, for the fast number path
+	static private final double[] powersOfTen = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// The raw line, as handed to us
+	private String line;
+
+	// The actual GCode command string, built on demand
 	private String command;
 
-	// Parsed out comment
-	private String comment = new String();
+	// Parsed out comment, built on demand
+	private String comment;
 
-	private class gCodeParameter {
-		final public char code;
-		final public Double value;
-		gCodeParameter(char code, Double value) {
-			this.code = code;
-			this.value = value;
-		}
+	// Bounds of the parenthesised comment, inclusive; parenStart is -1 if there is none
+	private int parenStart;
+	private int parenEnd;
+
+	// Index just past the first semicolon, or -1 if there is none
+	private int semiStart;
+
+	// Index in the raw line where the command part ends
+	private int commandEnd;
+
+	// Bit n is set when codes[n] appears in the command
+	private int present;
+
+	// Value of each code; zero for codes present without a number
+	private final double[] values = new double[codes.length];
+
+	/**
+	 * Create an empty command, to be filled in later with parse().
+	 */
+	public GCodeCommand() {
+		parse("");
 	}
-	
-	// The set of parameters in this GCode
-	private List<gCodeParameter> parameters;
 
 	public GCodeCommand(String command) {
-		// Copy over the command
-		this.command = new String(command);
-		
-		// Initialize the present and value tables
-		this.parameters = new ArrayList<gCodeParameter>();
-		
-		// Parse (and strip) any comments out into a comment string
-		parseComments();
+		parse(command);
+	}
+
+	/**
+	 * Replace the contents of this object with the given line.
+	 * @param line a single line of GCode
+	 * @return this object, for convenience
+	 * @throws NumberFormatException if a code is followed by something that isn't a number
+	 */
+	public GCodeCommand parse(String line) {
+		findComments(line);
+		this.present = 0;
 
 		// Parse any codes out into the code tables
 		parseCodes();
+		return this;
 	}
-	
-	// Find any comments, store them, then remove them from the command 
-	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
 
-		// Note that we only support one style of comments, and only one comment per row. 
-		if (parenMatcher.find())
-			comment = parenMatcher.group(1);
+	/**
+	 * Fill this object from codes that were tokenized earlier, as stored by
+	 * CompiledGCodeSource, without scanning the line for codes again.
+	 */
+	void load(String line, int present, double[] values) {
+		findComments(line);
+		this.present = present;
+		System.arraycopy(values, 0, this.values, 0, this.values.length);
+	}
+
+	/**
+	 * A command of its own with the same line and codes, for keeping a line
+	 * from a reader that refills one GCodeCommand for every line.
+	 */
+	public GCodeCommand copy() {
+		GCodeCommand copy = new GCodeCommand();
+		copy.load(line, present, values);
+		return copy;
+	}
+
+	// Locate the comment and the end of the command part of the line
+	private void findComments(String line) {
+		this.line = line;
+		this.command = null;
+		this.comment = null;
+
+		// Parse any comments.  Note that we only support one style of comments,
+		// and only one comment per row; a parenthesised comment runs from
+		// the first '(' to the last ')'.
+		parenStart = line.indexOf('(');
+		parenEnd = line.lastIndexOf(')');
+		if (parenStart < 0 || parenEnd < parenStart) {
+			parenStart = parenEnd = -1;
+		}
+		int semi = line.indexOf(';');
+		semiStart = (semi < 0) ? -1 : semi + 1;
+
+		// The command stops at the first semicolon outside the parentheses
+		commandEnd = line.length();
+		for (int i = firstIndex(); i < line.length(); i = nextIndex(i)) {
+			if (line.charAt(i) == ';') {
+				commandEnd = i;
+				break;
+			}
+		}
+	}
 
-		if (semiMatcher.find())
-			comment = semiMatcher.group(1);
+	// Walk the command, stepping over the removed parenthesised comment
+	private int firstIndex() {
+		return (parenStart == 0) ? parenEnd + 1 : 0;
+	}
 
-		// clean it up.
-		comment = comment.trim();
-		comment = comment.replace('|', '\n');
+	private int nextIndex(int i) {
+		i++;
+		if (i == parenStart)
+			i = parenEnd + 1;
+		return i;
+	}
 
-		// Finally, remove the comments from the command string
-		command = parenMatcher.replaceAll("");
-		
-		semiMatcher = semiPattern.matcher(command);
-		command = semiMatcher.replaceAll("");
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
 	}
 
 	// Find any codes, and store them
 	private void parseCodes() {
-		for (char code : codes) {
-			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-			Matcher myMatcher = myPattern.matcher(command);
-
-			if (command.indexOf(code) >= 0) {
-				double value = 0;
-				
-				if (myMatcher.find()) {
-					String match = myMatcher.group(1);
-					value = Double.parseDouble(match);
-				}
-				
-				parameters.add(new gCodeParameter(code, value));
+		// Bit n is set once codes[n] has been given a number
+		int valued = 0;
+		int i = firstIndex();
+		while (i < commandEnd) {
+			char c = line.charAt(i);
+			int index = (c < codeIndex.length) ? codeIndex[c] : -1;
+			i = nextIndex(i);
+			if (index < 0)
+				continue;
+
+			int bit = 1 << index;
+			if ((present & bit) == 0) {
+				present |= bit;
+				values[index] = 0;
+			}
+			if ((valued & bit) == 0 && i < commandEnd && isNumberChar(line.charAt(i))) {
+				values[index] = parseNumber(i);
+				valued |= bit;
 			}
 		}
 	}
 
+	// Read the run of number characters starting at i.  Plain decimals with
+	// few enough digits to be exact are converted by hand; anything else is
+	// left to Double.parseDouble, which also rejects malformed numbers.
+	private double parseNumber(int i) {
+		int start = i;
+		boolean negative = false;
+		boolean simple = true;
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+
+		char c = line.charAt(i);
+		if (c == '+' || c == '-') {
+			negative = (c == '-');
+			i = nextIndex(i);
+		}
+		while (i < commandEnd && isNumberChar(c = line.charAt(i))) {
+			if (c >= '0' && c <= '9') {
+				seenDigit = true;
+				if (mantissa != 0 || c != '0')
+					digits++;
+				if (digits > 15)
+					simple = false;
+				else
+					mantissa = mantissa * 10 + (c - '0');
+				if (seenPoint)
+					fractionDigits++;
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				simple = false;
+			}
+			i = nextIndex(i);
+		}
+
+		if (simple && seenDigit && fractionDigits < powersOfTen.length) {
+			double value = (double)mantissa / powersOfTen[fractionDigits];
+			return negative ? -value : value;
+		}
+
+		StringBuilder number = new StringBuilder();
+		for (int j = start; j < i; j = nextIndex(j))
+			number.append(line.charAt(j));
+		return Double.parseDouble(number.toString());
+	}
+
+	/// Bitmask of the codes present, indexed as codes[]
+	int getPresentCodes() {
+		return present;
+	}
+
+	/// Copy the value table, indexed as codes[], into the given array
+	void getCodeValues(double[] into) {
+		System.arraycopy(values, 0, into, 0, values.length);
+	}
+
+	/// Number of letter codes we understand
+	static int getCodeCount() {
+		return codes.length;
+	}
+
+	/// The line exactly as it was given to us, comments and all
+	public String getLine() {
+		return line;
+	}
+
 	public String getCommand() {
 		// TODO: Note that this is the command minus any comments.
-		return new String(command);
+		if (command == null) {
+			if (parenStart < 0) {
+				command = line.substring(0, commandEnd);
+			} else {
+				StringBuilder sb = new StringBuilder(commandEnd);
+				for (int i = firstIndex(); i < commandEnd; i = nextIndex(i))
+					sb.append(line.charAt(i));
+				command = sb.toString();
+			}
+		}
+		return command;
 	}
-	
+
 	public String getComment() {
-		return new String(comment);
+		if (comment == null) {
+			String c = "";
+			if (semiStart >= 0)
+				c = line.substring(semiStart);
+			else if (parenStart >= 0)
+				c = line.substring(parenStart + 1, parenEnd);
+
+			// clean it up.
+			comment = c.trim().replace('|', '\n');
+		}
+		return comment;
 	}
-	
+
 	public boolean hasCode(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return true;
-			}
-		}
-		
-		return false;
+		int index = (searchCode < codeIndex.length) ? codeIndex[searchCode] : -1;
+		return index >= 0 && (present & (1 << index)) != 0;
 	}
 
 	public double getCodeValue(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return parameter.value;
-			}
+		if (hasCode(searchCode)) {
+			return values[codeIndex[searchCode]];
 		}
-		
+
 		return -1;	// TODO: What do we return if there is no code?
 	}
-	
-//	public Double removeCode(Character searchCode) {
-//		for (Iterator<gCodeParameter> i = parameters.iterator(); i.hasNext();)
-//		{
-//			gCodeParameter gcp = i.next();
-//			if(gcp.code == searchCode)
-//			{
-//				i.remove();
-//				return gcp.value;
-//			}
-//		}
-//		return null;
-//	}
-//	
-//	public void addCode(Character code, Double value)
-//	{
-//		parameters.add(new gCodeParameter(code, value));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-//	
-//	public void addCode(Character code, Integer value)
-//	{
-//		parameters.add(new gCodeParameter(code, ((Number)value).doubleValue()));
-//		command += " ";
-//		command = command.concat(code.toString()).concat(value.toString());
-//	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,276 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Sidecar index for a GCode file, for starting a build part way through.
+ *
+ * Every LINES_PER_ENTRY lines the index records the byte offset of the line,
+ * the parser's modal state (units, absolute mode, feedrate, tool and offset)
+ * and the position the parser believes the machine to be at.  To get to any
+ * other line, we read the entry before it and replay at most LINES_PER_ENTRY
+ * lines through a parser driving an EstimationDriver, so no machine is
+ * involved and no more of the file is read than that.
+ *
+ * The index is written next to the GCode file with the extension ".rgi",
+ * and is rebuilt whenever the GCode file's size or modification time no
+ * longer match those recorded in it, or it was made for a machine that
+ * maps the file's extruder moves onto other axes.
+ */
+public class GCodeIndex {
+
+	/// Extension given to index files
+	public static final String EXTENSION = ".rgi";
+
+	/// How many lines apart the entries are
+	public static final int LINES_PER_ENTRY = 1000;
+
+	private static final byte[] MAGIC = { 'R', 'G', 'I' };
+	private static final int VERSION = 2;
+
+	/**
+	 * Where a line starts in the file, and the parser and machine state
+	 * just before it is parsed.
+	 */
+	public static class Entry {
+		public final int line;
+		public final long offset;
+		public final GCodeParser.ModalState state;
+		public final Point5d position;
+
+		Entry(int line, long offset, GCodeParser.ModalState state, Point5d position) {
+			this.line = line;
+			this.offset = offset;
+			this.state = state;
+			this.position = position;
+		}
+	}
+
+	private final MappedGCodeSource source;
+	private final MachineModel model;
+	private final Entry[] entries;
+
+	private GCodeIndex(MappedGCodeSource source, MachineModel model, Entry[] entries) {
+		this.source = source;
+		this.model = model;
+		this.entries = entries;
+	}
+
+	/**
+	 * What about a machine decides the positions recorded in an index: its
+	 * type, and the axis each tool's extruder drives.
+	 */
+	static String modelKey(MachineModel model) {
+		StringBuilder key = new StringBuilder(String.valueOf(model.getMachineType()));
+		for (ToolModel tool : model.getTools()) {
+			key.append(' ').append(tool.getIndex()).append('=').append(tool.getMotorStepperAxis());
+		}
+		return key.toString();
+	}
+
+	/// The index file that goes along with the given GCode file
+	public static File indexFileFor(File gcodeFile) {
+		return new File(gcodeFile.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Get the index for the given source, reading the sidecar file if it is
+	 * up to date, and building and writing a new one otherwise.
+	 * @param model the machine the file will be built on, which decides how
+	 * extruder moves map onto axes
+	 */
+	public static GCodeIndex forSource(MappedGCodeSource source, MachineModel model) throws IOException {
+		File indexFile = indexFileFor(source.getFile());
+		if (indexFile.exists()) {
+			try {
+				Entry[] entries = read(indexFile, source.getFile(), modelKey(model));
+				if (entries != null) {
+					return new GCodeIndex(source, model, entries);
+				}
+			} catch (IOException e) {
+				Base.logger.log(Level.INFO, "Rebuilding index " + indexFile.getName() + ": " + e.getMessage());
+			}
+		}
+
+		GCodeIndex index = build(source, model);
+		index.write(indexFile);
+		return index;
+	}
+
+	/**
+	 * Run the whole source through a parser and estimator, taking an entry
+	 * every LINES_PER_ENTRY lines.
+	 */
+	public static GCodeIndex build(MappedGCodeSource source, MachineModel model) {
+		int lineCount = source.getLineCount();
+		Entry[] entries = new Entry[(lineCount + LINES_PER_ENTRY - 1) / LINES_PER_ENTRY];
+
+		Replay replay = new Replay(model, null);
+		MappedGCodeSource.Cursor cursor = source.cursor(0);
+		for (int line = 0; line < lineCount; line++) {
+			if (line % LINES_PER_ENTRY == 0) {
+				entries[line / LINES_PER_ENTRY] = replay.snapshot(line, cursor.getPosition());
+			}
+			replay.run(cursor.readLine());
+		}
+		return new GCodeIndex(source, model, entries);
+	}
+
+	public MappedGCodeSource getSource() {
+		return source;
+	}
+
+	/**
+	 * Find the state just before the given line, replaying from the nearest
+	 * entry at or before it.
+	 */
+	public Entry locate(int line) {
+		if (line < 0 || line > source.getLineCount()) {
+			throw new IndexOutOfBoundsException("Line " + line + " of " + source.getLineCount());
+		}
+		if (entries.length == 0) {
+			return new Entry(0, 0, new GCodeParser().getModalState(), new Point5d());
+		}
+		Entry start = entries[Math.min(line / LINES_PER_ENTRY, entries.length - 1)];
+		if (start.line == line) {
+			return start;
+		}
+
+		Replay replay = new Replay(model, start);
+		MappedGCodeSource.Cursor cursor = source.cursor(start.offset);
+		for (int i = start.line; i < line; i++) {
+			replay.run(cursor.readLine());
+		}
+		return replay.snapshot(line, cursor.getPosition());
+	}
+
+	/// Parser and estimator used to follow the file's state without a machine
+	private static class Replay {
+		private final EstimationDriver driver = new EstimationDriver();
+		private final GCodeParser parser = new GCodeParser();
+		private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+		Replay(MachineModel model, Entry from) {
+			driver.setMachine(model);
+			parser.init(driver);
+			if (from != null) {
+				parser.setModalState(from.state);
+				try {
+					driver.setCurrentPosition(new Point5d(from.position));
+				} catch (RetryException e) {
+					// The estimator never asks for a retry.
+				}
+			}
+		}
+
+		void run(String line) {
+			parser.parse(line, queue);
+			for (DriverCommand command : queue) {
+				try {
+					command.run(driver);
+				} catch (RetryException r) {
+					// Ignore.
+				} catch (StopException e) {
+					// Halts don't change where we are.
+				}
+			}
+			queue.clear();
+		}
+
+		Entry snapshot(int line, long offset) {
+			return new Entry(line, offset, parser.getModalState(), driver.getCurrentPosition(false));
+		}
+	}
+
+	private void write(File indexFile) throws IOException {
+		File gcodeFile = source.getFile();
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(gcodeFile.length());
+			out.writeLong(gcodeFile.lastModified());
+			out.writeUTF(modelKey(model));
+			out.writeInt(LINES_PER_ENTRY);
+			out.writeInt(entries.length);
+			for (Entry entry : entries) {
+				out.writeInt(entry.line);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.state.units);
+				out.writeBoolean(entry.state.absoluteMode);
+				out.writeDouble(entry.state.feedrate);
+				out.writeInt(entry.state.tool);
+				out.writeDouble(entry.state.offset.x);
+				out.writeDouble(entry.state.offset.y);
+				out.writeDouble(entry.state.offset.z);
+				for (int i = 0; i < 5; i++) {
+					out.writeDouble(entry.position.get(i));
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/// Read the entries from an index file, or return null if it is out of date or for another machine
+	private static Entry[] read(File indexFile, File gcodeFile, String modelKey) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2]
+					|| in.readUnsignedByte() != VERSION) {
+				throw new IOException(indexFile.getName() + " is not a GCode index");
+			}
+			if (in.readLong() != gcodeFile.length()
+					|| in.readLong() != gcodeFile.lastModified()
+					|| !in.readUTF().equals(modelKey)
+					|| in.readInt() != LINES_PER_ENTRY) {
+				return null;
+			}
+
+			Entry[] entries = new Entry[in.readInt()];
+			for (int e = 0; e < entries.length; e++) {
+				int line = in.readInt();
+				long offset = in.readLong();
+				GCodeParser.ModalState state = new GCodeParser.ModalState();
+				state.units = in.readInt();
+				state.absoluteMode = in.readBoolean();
+				state.feedrate = in.readDouble();
+				state.tool = in.readInt();
+				state.offset.x = in.readDouble();
+				state.offset.y = in.readDouble();
+				state.offset.z = in.readDouble();
+				Point5d position = new Point5d();
+				for (int i = 0; i < 5; i++) {
+					position.set(i, in.readDouble());
+				}
+				entries[e] = new Entry(line, offset, state, position);
+			}
+			return entries;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -184,6 +184,9 @@ public class GCodeParser {
 	public static int UNITS_INCHES = 1;
 
 	protected int units;
+
+	// reused for every line we parse, so parsing doesn't allocate per line
+	private final GCodeCommand gcode = new GCodeCommand();
 	
 	/**
 	 * Creates the driver object.
@@ -219,6 +222,60 @@ public class GCodeParser {
 		currentOffset = driver.getOffset(0);
 	}
 
+	/**
+	 * The modal settings that the parser carries from one line to the next.
+	 * Together with the machine position, this is everything needed to pick
+	 * up parsing in the middle of a file.
+	 */
+	public static class ModalState {
+		public int units;
+		public boolean absoluteMode;
+		public double feedrate;
+		public int tool;
+		public final Point3d offset = new Point3d();
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ModalState))
+				return false;
+			ModalState other = (ModalState)o;
+			return units == other.units && absoluteMode == other.absoluteMode
+				&& feedrate == other.feedrate && tool == other.tool
+				&& offset.equals(other.offset);
+		}
+
+		@Override
+		public int hashCode() {
+			return offset.hashCode() * 31 + tool;
+		}
+	}
+
+	/**
+	 * Take a copy of the parser's modal state.
+	 */
+	public ModalState getModalState() {
+		ModalState state = new ModalState();
+		state.units = units;
+		state.absoluteMode = absoluteMode;
+		state.feedrate = feedrate;
+		state.tool = tool;
+		state.offset.set(currentOffset);
+		return state;
+	}
+
+	/**
+	 * Restore modal state taken earlier with getModalState(), so that parsing
+	 * can continue from the line the state was taken at.
+	 */
+	public void setModalState(ModalState state) {
+		units = state.units;
+		curveSection = (units == UNITS_INCHES) ? curveSectionInches : curveSectionMM;
+		absoluteMode = state.absoluteMode;
+		feedrate = state.feedrate;
+		tool = state.tool;
+		currentOffset = new Point3d(state.offset);
+	}
+
 	/**
 	 * Function parses a line of GCode, packages that line into an executable event
 	 * for the s3g driver code to execute, and queues the event for execution
@@ -228,7 +285,16 @@ public class GCodeParser {
 	public boolean parse(String cmd, Queue< DriverCommand > commandQueue) {
 		
 		// First, parse the GCode string into an object we can query.
-		GCodeCommand gcode = new GCodeCommand(cmd);
+		return parse(gcode.parse(cmd), commandQueue);
+	}
+
+	/**
+	 * Package an already tokenized line of GCode into executable events,
+	 * as parse(String, Queue) does, and queue them for execution.
+	 * 
+	 * @param gcode a single line of GCode, such as read from a CompiledGCodeSource
+	 */
+	public boolean parse(GCodeCommand gcode, Queue< DriverCommand > commandQueue) {
 
 		// Now, convert the GCode instruction into a series of driver commands,
 		// that will be executed by execute()
@@ -0,0 +1,267 @@
+package replicatorg.app.gcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import replicatorg.model.GCodeSource;
+
+/**
+ * Read-only GCode source backed by a memory map of the file, for programs
+ * too large to hold in memory as a list of strings.
+ *
+ * Lines are decoded only when asked for, so heap use doesn't grow with the
+ * size of the file.  The first call that needs line numbers (getLineCount()
+ * or asList().get()) makes one pass over the file, recording the offset of
+ * every LINES_PER_MARK'th line; any line can then be found by scanning
+ * forward from the nearest mark.  Lines end at "\n", "\r" or "\r\n", as
+ * with BufferedReader.readLine().
+ */
+public class MappedGCodeSource implements GCodeSource {
+
+	// Files are mapped in regions of this size, since one map can't pass 2GB
+	private static final int REGION_SHIFT = 30;
+	private static final long REGION_MASK = (1L << REGION_SHIFT) - 1;
+
+	/// How many lines apart the entries in the offset table are
+	public static final int LINES_PER_MARK = 256;
+
+	private final File file;
+	private final long length;
+	private final MappedByteBuffer[] regions;
+	private final Charset charset;
+
+	// Offset of every LINES_PER_MARK'th line, built on first use
+	private long[] marks = null;
+	private int lineCount = -1;
+
+	private final List<String> list = new LineList();
+
+	/**
+	 * Map the given file, decoding its lines in the platform's default charset
+	 * as FileReader does.
+	 */
+	public MappedGCodeSource(File file) throws IOException {
+		this(file, Charset.defaultCharset());
+	}
+
+	public MappedGCodeSource(File file, Charset charset) throws IOException {
+		this.file = file;
+		this.charset = charset;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			int count = (int)((length + REGION_MASK) >>> REGION_SHIFT);
+			regions = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long)i << REGION_SHIFT;
+				long size = Math.min(length - start, 1L << REGION_SHIFT);
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+		} finally {
+			// The maps stay valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new LineIterator(0);
+	}
+
+	/**
+	 * A read-only list view of the lines, decoded as they are fetched.
+	 * Fetching lines in order is cheap; jumping around costs a scan of up
+	 * to LINES_PER_MARK lines for each get().
+	 */
+	@Override
+	public List<String> asList() {
+		return list;
+	}
+
+	@Override
+	public int getLineCount() {
+		buildMarks();
+		return lineCount;
+	}
+
+	private byte byteAt(long position) {
+		return regions[(int)(position >>> REGION_SHIFT)].get((int)(position & REGION_MASK));
+	}
+
+	// Find the end of the line starting at position (the index of its terminator)
+	private long lineEnd(long position) {
+		while (position < length) {
+			byte b = byteAt(position);
+			if (b == '\n' || b == '\r')
+				break;
+			position++;
+		}
+		return position;
+	}
+
+	// Step past the terminator at position
+	private long skipTerminator(long position) {
+		if (position < length && byteAt(position++) == '\r'
+				&& position < length && byteAt(position) == '\n') {
+			position++;
+		}
+		return position;
+	}
+
+	private synchronized void buildMarks() {
+		if (marks != null)
+			return;
+
+		long[] table = new long[16];
+		int lines = 0;
+		long position = 0;
+		while (position < length) {
+			if (lines % LINES_PER_MARK == 0) {
+				int mark = lines / LINES_PER_MARK;
+				if (mark == table.length) {
+					long[] bigger = new long[table.length * 2];
+					System.arraycopy(table, 0, bigger, 0, table.length);
+					table = bigger;
+				}
+				table[mark] = position;
+			}
+			position = skipTerminator(lineEnd(position));
+			lines++;
+		}
+		lineCount = lines;
+		marks = table;
+	}
+
+	/// Offset of the start of the given line
+	private long lineStart(int line) {
+		buildMarks();
+		long position = marks[line / LINES_PER_MARK];
+		for (int i = line % LINES_PER_MARK; i > 0; i--) {
+			position = skipTerminator(lineEnd(position));
+		}
+		return position;
+	}
+
+	/**
+	 * Get a cursor for reading lines one after another, starting at the
+	 * given byte offset, which should be the start of a line.
+	 */
+	public Cursor cursor(long position) {
+		return new Cursor(position);
+	}
+
+	/**
+	 * A source holding the lines from the given byte offset to the end of
+	 * the file.
+	 * @param position byte offset of the first line
+	 * @param firstLine number of the line at that offset
+	 */
+	public GCodeSource tail(final long position, final int firstLine) {
+		return new GCodeSource() {
+			public Iterator<String> iterator() {
+				return new LineIterator(position);
+			}
+			public List<String> asList() {
+				return list.subList(firstLine, list.size());
+			}
+			public int getLineCount() {
+				return MappedGCodeSource.this.getLineCount() - firstLine;
+			}
+		};
+	}
+
+	/// Decodes lines one after another, reusing a scratch buffer
+	public class Cursor {
+		private long position;
+		private byte[] scratch = new byte[256];
+
+		Cursor(long position) {
+			this.position = position;
+		}
+
+		/// Byte offset of the next line to be read
+		public long getPosition() {
+			return position;
+		}
+
+		public boolean hasNext() {
+			return position < length;
+		}
+
+		public String readLine() {
+			long end = lineEnd(position);
+			int size = (int)(end - position);
+			if (size > scratch.length) {
+				scratch = new byte[Math.max(size, scratch.length * 2)];
+			}
+			for (int i = 0; i < size; i++) {
+				scratch[i] = byteAt(position + i);
+			}
+			position = skipTerminator(end);
+			return new String(scratch, 0, size, charset);
+		}
+	}
+
+	private class LineIterator implements Iterator<String> {
+		private final Cursor reader;
+
+		LineIterator(long position) {
+			reader = new Cursor(position);
+		}
+
+		public boolean hasNext() {
+			return reader.hasNext();
+		}
+
+		public String next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return reader.readLine();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("MappedGCodeSource is read-only");
+		}
+	}
+
+	private class LineList extends AbstractList<String> {
+		// Where the last get() left off, so reading in order doesn't rescan
+		private int nextLine = -1;
+		private Cursor reader;
+
+		@Override
+		public synchronized String get(int index) {
+			if (index < 0 || index >= getLineCount())
+				throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+			if (index != nextLine) {
+				reader = new Cursor(lineStart(index));
+			}
+			nextLine = index + 1;
+			return reader.readLine();
+		}
+
+		@Override
+		public int size() {
+			return getLineCount();
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return MappedGCodeSource.this.iterator();
+		}
+	}
+}
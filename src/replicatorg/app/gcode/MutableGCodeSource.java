@@ -141,7 +141,7 @@ public class MutableGCodeSource implements GCodeSource {
 	/// Runs through this gcode file, swapping all references to the the current toolhead 
 	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
 	public void changeToolhead(ToolheadAlias tool) {
-		GCodeCommand gcode;
+		GCodeCommand gcode = new GCodeCommand();
 		int value;
 		String line;
 		///FUTURE: create a synchronize block here someday
@@ -149,7 +149,7 @@ public class MutableGCodeSource implements GCodeSource {
 		for(Iterator<String> it = source.iterator(); it.hasNext(); )
 		{
 			line = it.next();
-			gcode = new GCodeCommand(line);
+			gcode.parse(line);
 
 			if(gcode.hasCode('T'))
 			{
@@ -183,7 +183,7 @@ public class MutableGCodeSource implements GCodeSource {
 	 */
 	public void coolUnusedToolhead()
 	{		
-		GCodeCommand gcode;
+		GCodeCommand gcode = new GCodeCommand();
 		String line;
 
 		double tval;
@@ -196,7 +196,7 @@ public class MutableGCodeSource implements GCodeSource {
 		for(Iterator<String> it = source.iterator(); it.hasNext(); )
 		{
 			line = it.next();
-			gcode = new GCodeCommand(line);
+			gcode.parse(line);
 			
 			tval = gcode.getCodeValue('T');
 			
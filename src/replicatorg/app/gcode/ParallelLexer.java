@@ -0,0 +1,133 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import replicatorg.model.GCodeSource;
+
+/**
+ * Tokenizes the lines of a source on a pool of threads, ahead of whoever is
+ * reading them, and hands the commands back in order.
+ *
+ * Each line is tokenized on its own, so lines are cut into chunks that are
+ * lexed at once.  Only a few chunks are held ahead of the reader.  A line
+ * that can't be tokenized is tokenized again when the reader gets to it, so
+ * that it fails in the reader's thread just as it would have from the text.
+ */
+public class ParallelLexer implements Iterator<GCodeCommand> {
+
+	/// Lines given to each worker at a time
+	static final int CHUNK_LINES = 4096;
+
+	private final Iterator<String> lines;
+	private final ExecutorService pool;
+	private final int lookahead;
+	private final LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+
+	// The chunk being read, and where we are in it
+	private Chunk current = null;
+	private int index = 0;
+
+	private static class Chunk implements Callable<Chunk> {
+		final List<String> lines;
+		final GCodeCommand[] commands;
+
+		Chunk(List<String> lines) {
+			this.lines = lines;
+			commands = new GCodeCommand[lines.size()];
+		}
+
+		public Chunk call() {
+			for (int i = 0; i < commands.length; i++) {
+				GCodeCommand gcode = new GCodeCommand();
+				try {
+					gcode.parse(lines.get(i));
+					commands[i] = gcode;
+				} catch (Exception e) {
+					// Left for the reader to parse again
+				}
+			}
+			return this;
+		}
+	}
+
+	public ParallelLexer(GCodeSource source) {
+		lines = source.iterator();
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		lookahead = 2 * threads;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				// Nobody has to shut us down if a build is abandoned half way
+				Thread t = new Thread(r, "GCode lexer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		fill();
+	}
+
+	// Keep a few chunks ahead of the reader
+	private void fill() {
+		while (pending.size() < lookahead && lines.hasNext()) {
+			List<String> chunk = new ArrayList<String>(CHUNK_LINES);
+			while (chunk.size() < CHUNK_LINES && lines.hasNext()) {
+				chunk.add(lines.next());
+			}
+			pending.add(pool.submit(new Chunk(chunk)));
+		}
+		if (!lines.hasNext()) {
+			pool.shutdown();
+		}
+	}
+
+	public boolean hasNext() {
+		return (current != null && index < current.commands.length) || !pending.isEmpty();
+	}
+
+	public GCodeCommand next() {
+		if (current == null || index >= current.commands.length) {
+			if (pending.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			try {
+				current = pending.removeFirst().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new NoSuchElementException("Interrupted while tokenizing");
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			index = 0;
+			fill();
+		}
+		GCodeCommand gcode = current.commands[index];
+		String line = current.lines.get(index);
+		// Let go of the chunk's lines as we pass them
+		current.commands[index] = null;
+		index++;
+		if (gcode == null) {
+			gcode = new GCodeCommand();
+			gcode.parse(line);
+		}
+		return gcode;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/// Stop tokenizing, if the reader gives up before the end
+	public void close() {
+		pool.shutdownNow();
+		pending.clear();
+	}
+}
@@ -0,0 +1,22 @@
+package replicatorg.app.gcode;
+
+/**
+ * A line that can't be tokenized, thrown by the iterators that hand back
+ * commands instead of text.  It carries the line, so a reader can fall back
+ * on the text and fail just as it would have reading a text source.
+ */
+public class UnparseableLineException extends NumberFormatException {
+	private static final long serialVersionUID = 1L;
+
+	private final String line;
+
+	public UnparseableLineException(String line, String message) {
+		super(message);
+		this.line = line;
+	}
+
+	/// The line, exactly as it was written
+	public String getLine() {
+		return line;
+	}
+}
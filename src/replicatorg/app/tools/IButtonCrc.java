@@ -6,6 +6,22 @@ package replicatorg.app.tools;
  */
 public class IButtonCrc {
 
+	/** The CRC after each possible value of (crc ^ data), computed once from the bitwise form. */
+	private static final byte[] TABLE = new byte[256];
+	static {
+		for (int n = 0; n < 256; n++) {
+			int crc = n;
+			for (int i = 0; i < 8; i++) {
+				if ((crc & 0x01) != 0) {
+					crc = (crc >>> 1) ^ 0x8c;
+				} else {
+					crc = crc >>> 1;
+				}
+			}
+			TABLE[n] = (byte) crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -18,20 +34,36 @@ public class IButtonCrc {
 	/**
 	 * Update the CRC with a new byte of sequential data. See
 	 * include/util/crc16.h in the avr-libc project for a full explanation of
-	 * the algorithm.
+	 * the algorithm; the eight shifts it makes per byte are looked up in a
+	 * table here.
 	 * 
 	 * @param data
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
+		crc = TABLE[(crc ^ data) & 0xff] & 0xff;
+	}
+
+	/**
+	 * Update the CRC with a run of bytes.
+	 */
+	public void update(byte[] data, int offset, int length) {
+		crc = compute(crc, data, offset, length) & 0xff;
+	}
+
+	/**
+	 * Compute the CRC of a run of bytes, without keeping any state.
+	 */
+	public static byte compute(byte[] data, int offset, int length) {
+		return compute(0, data, offset, length);
+	}
+
+	private static byte compute(int crc, byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			crc = TABLE[(crc ^ data[i]) & 0xff] & 0xff;
 		}
+		return (byte) crc;
 	}
 
 	/**
@@ -66,6 +66,7 @@ import java.text.AttributedString;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -111,6 +112,7 @@ import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
 import replicatorg.app.Base.InitialOpenBehavior;
 import replicatorg.app.MRUList;
+import replicatorg.app.gcode.CompiledGCodeSource;
 import replicatorg.app.gcode.GCodeEnumeration;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.app.syntax.JEditTextArea;
@@ -133,6 +135,7 @@ import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RealtimeControl;
 import replicatorg.drivers.SDCardCapture;
+import replicatorg.machine.MachineCallbackHandler;
 import replicatorg.machine.MachineFactory;
 import replicatorg.machine.MachineInterface;
 import replicatorg.machine.MachineListener;
@@ -148,6 +151,7 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
 import replicatorg.model.JEditTextAreaSource;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
@@ -241,6 +245,7 @@ ToolpathGenerator.GeneratorListener
 	JMenuItem pauseItem;
 	JMenuItem controlPanelItem;
 	JMenuItem buildMenuItem;
+	JMenuItem resumeMenuItem;
 	JMenuItem profilesMenuItem;
 	JMenuItem dualstrusionItem;
 	JMenuItem combineItem;
@@ -453,7 +458,8 @@ ToolpathGenerator.GeneratorListener
 		// Have UI elements listen to machine state.
 		machineLoader.addMachineListener(this);
 		machineLoader.addMachineListener(machineStatusPanel);
-		machineLoader.addMachineListener(buttons);
+		machineLoader.addMachineListener(buttons,
+				EnumSet.of(MachineCallbackHandler.EventType.STATE_CHANGE));
 	}
 
 	// ...................................................................
@@ -1085,6 +1091,14 @@ ToolpathGenerator.GeneratorListener
 		});
 		menu.add(buildMenuItem);
 
+		resumeMenuItem = newJMenuItem("Resume From Line...");
+		resumeMenuItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				handleResume();
+			}
+		});
+		menu.add(resumeMenuItem);
+
 		pauseItem = newJMenuItem("Pause", 'E');
 		pauseItem.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -2188,7 +2202,7 @@ ToolpathGenerator.GeneratorListener
 			message("Building...");
 			buildStart = new Date();
 			
-			machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().buildDirect(getBuildSource());
 			//doing this check allows us to recover from pre-build stuff
 //			if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
 //			{
@@ -2200,6 +2214,76 @@ ToolpathGenerator.GeneratorListener
 		}
 	}
 
+	/**
+	 * What to build: the saved file, compiled so that the lines needn't be
+	 * scanned again on the next build, if the editor holds it unchanged;
+	 * otherwise the text in the editor.
+	 */
+	private GCodeSource getBuildSource() {
+		BuildCode code = (build == null) ? null : build.getCode();
+		if (code != null && code.file != null && code.file.exists() && !code.isModified()
+				&& Base.preferences.getBoolean("build.compileGCode", true)) {
+			try {
+				return CompiledGCodeSource.forFile(code.file);
+			} catch (IOException e) {
+				Base.logger.log(Level.INFO, "Building from the editor instead: " + e.getMessage());
+			}
+		}
+		return new JEditTextAreaSource(textarea);
+	}
+
+	/**
+	 * Build the saved gcode from a line part way through, such as after a
+	 * build was stopped.  The line the cursor is on is offered as the one
+	 * to start from.
+	 */
+	public void handleResume() {
+		if (building || simulating)
+			return;
+		if (!machineLoader.isLoaded()) {
+			Base.logger.severe("Not ready to build yet.");
+			return;
+		}
+		if (!machineLoader.isConnected()) {
+			Base.logger.severe("Cannot build, not connected to a machine!");
+			return;
+		}
+		BuildCode code = build.getCode();
+		if (code == null || code.file == null || code.isModified()) {
+			JOptionPane.showMessageDialog(this,
+					"Save the gcode before resuming a build from it.",
+					"Resume From Line", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+
+		int lineCount = textarea.getLineCount();
+		String answer = (String)JOptionPane.showInputDialog(this,
+				"Resume the build from line (1 to " + lineCount + "):\n"
+				+ "The machine must already be homed.",
+				"Resume From Line", JOptionPane.QUESTION_MESSAGE, null, null,
+				Integer.toString(textarea.getCaretLine() + 1));
+		if (answer == null) {
+			return;
+		}
+		int line;
+		try {
+			line = Integer.parseInt(answer.trim());
+		} catch (NumberFormatException e) {
+			line = 0;
+		}
+		if (line < 1 || line > lineCount) {
+			JOptionPane.showMessageDialog(this, "There is no line " + answer + ".",
+					"Resume From Line", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+
+		building = true;
+		setEditorBusy(true);
+		message("Building from line " + line + "...");
+		buildStart = new Date();
+		machineLoader.getMachineInterface().resumeDirect(code.file, line - 1);
+	}
+
 	public void handleUpload() {
 		if (building)
 			return;
@@ -2518,6 +2602,7 @@ ToolpathGenerator.GeneratorListener
 
 		// enable the build menu item when the machine is ready and there is gcode in the editor
 		buildMenuItem.setEnabled(hasGcode && evt.getState().isConfigurable());
+		resumeMenuItem.setEnabled(hasGcode && evt.getState().isConfigurable());
 		onboardParamsItem.setVisible(showParams);
 		onboardParamsItem.setEnabled(showParams);
 		preheatItem.setEnabled(evt.getState().isConnected() && !building);
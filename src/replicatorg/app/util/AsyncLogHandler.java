@@ -0,0 +1,178 @@
+package replicatorg.app.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler that hands records to another handler, such as a
+ * FileHandler, on a thread of its own.
+ *
+ * Logging a record only puts it in a ring of fixed size; the writer thread
+ * formats and writes records in batches, and flushes once per batch rather
+ * than once per record.  If the ring is full the record is dropped and
+ * counted, and the count is written to the log once there's room, so a
+ * burst of tracing can slow nothing down but itself.
+ *
+ * Detailed tracing can also be sampled by subsystem: records below INFO
+ * from a given logger, such as the serial logger, can be cut down to one
+ * in so many.  Records at INFO and above are never sampled.
+ */
+public class AsyncLogHandler extends Handler {
+
+	/// Records to hold for the writer, unless told otherwise
+	public static final int DEFAULT_CAPACITY = 8192;
+	/// Records to write between flushes, at most
+	static final int BATCH = 256;
+
+	private final Handler target;
+	private final ArrayBlockingQueue<LogRecord> ring;
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong queued = new AtomicLong();
+	// Guarded by this
+	private long written = 0;
+
+	// Logger name -> keep one in so many records below INFO
+	private final ConcurrentHashMap<String,Integer> sampling = new ConcurrentHashMap<String,Integer>();
+	private final ConcurrentHashMap<String,AtomicInteger> sampleCounts = new ConcurrentHashMap<String,AtomicInteger>();
+
+	public AsyncLogHandler(Handler target) {
+		this(target, DEFAULT_CAPACITY);
+	}
+
+	public AsyncLogHandler(Handler target, int capacity) {
+		this.target = target;
+		ring = new ArrayBlockingQueue<LogRecord>(Math.max(1, capacity));
+		setLevel(target.getLevel());
+
+		writer = new Thread("Log Writer") {
+			public void run() {
+				writeRecords();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Keep only one in so many records below INFO from the named logger.
+	 * @param oneIn 1 to keep them all
+	 */
+	public void setSampling(String loggerName, int oneIn) {
+		if (oneIn <= 1) {
+			sampling.remove(loggerName);
+		} else {
+			sampling.put(loggerName, oneIn);
+			sampleCounts.putIfAbsent(loggerName, new AtomicInteger());
+		}
+	}
+
+	private boolean sampled(LogRecord record) {
+		if (record.getLevel().intValue() >= Level.INFO.intValue() || record.getLoggerName() == null) {
+			return true;
+		}
+		Integer oneIn = sampling.get(record.getLoggerName());
+		if (oneIn == null) {
+			return true;
+		}
+		return sampleCounts.get(record.getLoggerName()).getAndIncrement() % oneIn == 0;
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record) || !sampled(record)) {
+			return;
+		}
+		// The caller is only known on the thread that logged the record
+		record.getSourceClassName();
+		if (ring.offer(record)) {
+			queued.incrementAndGet();
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/// Records dropped because the ring was full, so far
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private void writeRecords() {
+		ArrayList<LogRecord> batch = new ArrayList<LogRecord>(BATCH);
+		long reported = 0;
+		while (!closed || !ring.isEmpty()) {
+			try {
+				batch.add(ring.take());
+			} catch (InterruptedException e) {
+				// Closing; write what's left
+				if (ring.isEmpty()) {
+					break;
+				}
+				continue;
+			}
+			ring.drainTo(batch, BATCH - 1);
+
+			long lost = dropped.get();
+			if (lost != reported) {
+				target.publish(new LogRecord(Level.WARNING, "Log overflowed; "
+						+ (lost - reported) + " messages dropped"));
+				reported = lost;
+			}
+			for (LogRecord record : batch) {
+				target.publish(record);
+			}
+			target.flush();
+
+			synchronized (this) {
+				written += batch.size();
+				notifyAll();
+			}
+			batch.clear();
+		}
+	}
+
+	/** Wait for the records logged so far to be written, for a second at most. */
+	@Override
+	public void flush() {
+		long until = queued.get();
+		long deadline = System.currentTimeMillis() + 1000;
+		synchronized (this) {
+			while (written < until && writer.isAlive()) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					break;
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+
+	/** Write what's waiting, then close the handler we write to. */
+	@Override
+	public void close() throws SecurityException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		writer.interrupt();
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		target.close();
+	}
+}
@@ -1,63 +1,165 @@
 package replicatorg.app.util.serial;
 
 /**
- * Non-growable FIFO.  In theory we only need enough space for a single
- * packet.  Currently set at 1K.
+ * FIFO of received bytes, filled by the serial event thread and emptied by
+ * whoever is reading the port.
+ *
+ * Bytes are kept in a chain of fixed-size segments: when the last one is
+ * full, a new one is linked on, so nothing is ever overwritten however far
+ * the reader falls behind.  There's one writer and (at a time) one reader,
+ * and they never wait for each other: the writer publishes bytes by moving
+ * the segment's volatile fill mark and the total count, and the reader only
+ * looks at bytes below them.  Reading methods are synchronized among
+ * themselves, for the odd case of two threads reading; the writer doesn't
+ * take that lock.
  * @author phooky
  *
  */
 public class ByteFifo {
-	final static int INITIAL_FIFO_SIZE = 1 * 1024; // 1 K
-	private byte[] buffer = new byte[INITIAL_FIFO_SIZE];
-	private int head = 0; 
-	private int tail = 0;
-	/** the point our last new line search ended or the head if it has moved past that point. */
-	private int newLineSearchHead = head;
-
-	final private int moduloLength(int value) {
-		if (value < 0) value += buffer.length;
-		value = value % buffer.length;
-		return value;
+	final static int SEGMENT_SIZE = 4 * 1024; // 4 K
+
+	private static class Segment {
+		final byte[] data = new byte[SEGMENT_SIZE];
+		/// Bytes written so far; only the writer moves it
+		volatile int written = 0;
+		volatile Segment next = null;
 	}
+
+	// The writer's end
+	private Segment tailSegment;
+	private volatile long enqueued = 0;
+
+	// The reader's end
+	private Segment headSegment;
+	private int headIndex = 0;
+	private volatile long dequeued = 0;
+	/** how many bytes from the head our last newline search got through without finding one. */
+	private long newLineSearched = 0;
+
+	public ByteFifo() {
+		headSegment = tailSegment = new Segment();
+	}
+
+	/// Add a byte.  Only the serial event thread should call this.
 	public void enqueue(byte b) {
-		buffer[tail++] = b;
-		tail = moduloLength(tail);
-	}
-	public void clear() { head = tail = 0; }
-	public int size() { return moduloLength(tail-head); }
-	public byte dequeue() {
-		int nextHead = moduloLength(head+1);
-		if (newLineSearchHead == head) newLineSearchHead = nextHead;
-		
-		byte b = buffer[head];
-		head = nextHead;
+		Segment s = writableSegment();
+		s.data[s.written] = b;
+		s.written = s.written + 1;
+		enqueued = enqueued + 1;
+	}
+
+	/// Add some bytes.  Only the serial event thread should call this.
+	public void enqueue(byte[] bytes, int offset, int length) {
+		while (length > 0) {
+			Segment s = writableSegment();
+			int n = Math.min(length, SEGMENT_SIZE - s.written);
+			System.arraycopy(bytes, offset, s.data, s.written, n);
+			s.written = s.written + n;
+			enqueued = enqueued + n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private Segment writableSegment() {
+		if (tailSegment.written == SEGMENT_SIZE) {
+			Segment s = new Segment();
+			tailSegment.next = s;
+			tailSegment = s;
+		}
+		return tailSegment;
+	}
+
+	/// Drop everything received so far
+	public synchronized void clear() {
+		skip(size());
+	}
+
+	public int size() { return (int)(enqueued - dequeued); }
+
+	/// Take the next byte.  Check size() first: there must be one.
+	public synchronized byte dequeue() {
+		moveToReadable();
+		byte b = headSegment.data[headIndex++];
+		consumed(1);
 		return b;
 	}
-	
+
 	/**
-	 * deques the byte array up to and including the first instance of a newline (\n) 
+	 * Take up to length bytes, as many as there are.
+	 * @return the number of bytes taken
+	 */
+	public synchronized int dequeue(byte[] bytes, int offset, int length) {
+		int total = Math.min(length, size());
+		int left = total;
+		while (left > 0) {
+			moveToReadable();
+			int n = Math.min(left, headSegment.written - headIndex);
+			System.arraycopy(headSegment.data, headIndex, bytes, offset, n);
+			headIndex += n;
+			offset += n;
+			left -= n;
+		}
+		consumed(total);
+		return total;
+	}
+
+	/**
+	 * deques the byte array up to and including the first instance of a newline (\n)
 	 * byte. If the \n character is not in the fifo a empty byte array is returned.
-	 * @param pattern
 	 * @return
 	 */
 	public synchronized byte[] dequeueLine() {
-		int i = newLineSearchHead;
-		while(i !=tail)
-		{
-			if (buffer[i] == (byte)'\n')
-			{
-				byte[] match = new byte[moduloLength( moduloLength(i+1) - head )];
-				int k = 0;
-				for ( int j = head; j != moduloLength(i+1); j = moduloLength(j+1) )
-				{
-					match[k++] = dequeue();
-				}
+		long available = size();
+		Segment s = headSegment;
+		int i = headIndex;
+		long searched = 0;
+		// Skip over what we've already looked through
+		while (searched < newLineSearched) {
+			int n = (int)Math.min(newLineSearched - searched, SEGMENT_SIZE - i);
+			i += n;
+			searched += n;
+			if (i == SEGMENT_SIZE && s.next != null) {
+				s = s.next;
+				i = 0;
+			}
+		}
+		while (searched < available) {
+			if (i == SEGMENT_SIZE) {
+				s = s.next;
+				i = 0;
+			}
+			if (s.data[i++] == (byte)'\n') {
+				byte[] match = new byte[(int)searched + 1];
+				dequeue(match, 0, match.length);
 				return match;
 			}
-
-			i = moduloLength(i+1);
+			searched++;
 		}
-		newLineSearchHead = i;
+		newLineSearched = searched;
 		return new byte[0];
 	}
-}
\ No newline at end of file
+
+	// Step on to the next segment if we've read all of this one
+	private void moveToReadable() {
+		if (headIndex == SEGMENT_SIZE) {
+			headSegment = headSegment.next;
+			headIndex = 0;
+		}
+	}
+
+	private void skip(int length) {
+		while (length > 0) {
+			moveToReadable();
+			int n = Math.min(length, headSegment.written - headIndex);
+			headIndex += n;
+			length -= n;
+			consumed(n);
+		}
+	}
+
+	private void consumed(int length) {
+		dequeued = dequeued + length;
+		newLineSearched = Math.max(0, newLineSearched - length);
+	}
+}
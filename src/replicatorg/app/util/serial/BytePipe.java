@@ -0,0 +1,140 @@
+package replicatorg.app.util.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded buffer of bytes with a stream at each end, for connecting a
+ * port to a VirtualDevice.  Unlike the piped streams in java.io, either end
+ * can be used from any number of threads, and a thread that has since
+ * finished having written to it doesn't break it.  Closing either end
+ * closes the pipe: reads get what's left and then the end of the stream,
+ * and writes fail.
+ */
+class BytePipe {
+
+	private final byte[] buffer;
+	private int head = 0;
+	private int count = 0;
+	private boolean closed = false;
+
+	BytePipe(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	final InputStream input = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return take(b, off, len);
+		}
+
+		@Override
+		public int available() {
+			synchronized (BytePipe.this) {
+				return count;
+			}
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	};
+
+	final OutputStream output = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			put(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			BytePipe.this.close();
+		}
+	};
+
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until there's something to read.
+	 * @throws IOException if the pipe's closed and empty, or the wait's interrupted
+	 */
+	synchronized void awaitAvailable() throws IOException {
+		while (count == 0) {
+			if (closed) {
+				throw new IOException("Pipe closed");
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private synchronized int take(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (count == 0) {
+			if (closed) {
+				return -1;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		int n = Math.min(len, count);
+		for (int i = 0; i < n; i++) {
+			b[off + i] = buffer[(head + i) % buffer.length];
+		}
+		head = (head + n) % buffer.length;
+		count -= n;
+		notifyAll();
+		return n;
+	}
+
+	private synchronized void put(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			while (count == buffer.length && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (closed) {
+				throw new IOException("Pipe closed");
+			}
+			int n = Math.min(len, buffer.length - count);
+			for (int i = 0; i < n; i++) {
+				buffer[(head + count + i) % buffer.length] = b[off + i];
+			}
+			count += n;
+			off += n;
+			len -= n;
+			notifyAll();
+		}
+	}
+}
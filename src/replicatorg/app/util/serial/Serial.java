@@ -37,9 +37,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -58,6 +61,9 @@ public class Serial implements SerialPortEventListener {
 	 */
 	private static Set<Serial> portsInUse = new HashSet<Serial>();
 
+	/** Devices that stand in for real ones, by port name */
+	private static Map<String,VirtualDevice> virtualDevices = new TreeMap<String,VirtualDevice>();
+
 	
 	/** True if the device is connected **/
 	private AtomicBoolean connected = new AtomicBoolean(false);
@@ -78,6 +84,11 @@ public class Serial implements SerialPortEventListener {
 	private int timeoutMillis = TIMEOUT_DEFAULT;            
 	
 	private ByteFifo readFifo = new ByteFifo();
+	/** Readers wait on this for bytes to arrive; the event thread only wakes it if someone's waiting. */
+	private final Object readSignal = new Object();
+	private volatile int readersWaiting = 0;
+	/** Bulk read buffer for the serial event thread */
+	private final byte[] eventBuffer = new byte[ByteFifo.SEGMENT_SIZE];
 	
 	public final AtomicReference<SerialFifoEventListener> listener =
 		new AtomicReference<SerialFifoEventListener>();
@@ -85,6 +96,39 @@ public class Serial implements SerialPortEventListener {
 	private InputStream input;
 	private OutputStream output;
 	
+	/** The device on the other end of the port, if it's a virtual one */
+	private VirtualDevice virtualDevice = null;
+	
+	// What's been through the port, for the pipeline statistics
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong readTimeouts = new AtomicLong();
+	
+	/**
+	 * Make a port of the given name that connects to the given device, for
+	 * running a driver against an emulator.  It replaces any real port of
+	 * the same name.
+	 */
+	public static void addVirtualDevice(String name, VirtualDevice device) {
+		synchronized (virtualDevices) {
+			virtualDevices.put(name, device);
+		}
+	}
+
+	/** Stop offering a virtual port; ports already open to it stay open. */
+	public static void removeVirtualDevice(String name) {
+		synchronized (virtualDevices) {
+			virtualDevices.remove(name);
+		}
+	}
+
+	private static VirtualDevice getVirtualDevice(String name) {
+		synchronized (virtualDevices) {
+			return virtualDevices.get(name);
+		}
+	}
+
 	/**
 	 * Scan the port ids for a list of potential serial ports that we can use.
 	 * @return A vector of serial port names and availability information.
@@ -109,6 +153,11 @@ public class Serial implements SerialPortEventListener {
 		}
 		Base.logger.fine("RXTX Version" + RXTXVersion.getVersion());
 		
+		synchronized (virtualDevices) {
+			for (String name : virtualDevices.keySet()) {
+				v.add(new Name(name, true));
+			}
+		}
 		
 		// In-use ports may not end up in the enumeration (thanks, RXTX), so
 		// we'll scan for them, and insert them if necessary.  (The app wants
@@ -214,6 +263,13 @@ public class Serial implements SerialPortEventListener {
 			this.stop = SerialPort.STOPBITS_1_5;
 		if (stop == 2)
 			this.stop = SerialPort.STOPBITS_2;
+		VirtualDevice device = getVirtualDevice(name);
+		if (device != null) {
+			openVirtual(device);
+			portsInUse.add(this);
+			connected.set(true);
+			return;
+		}
 		// Attempt to find the port identifier for the designated name
 		CommPortIdentifier portId = findPortIdentifier(name);
 		if (portId == null) {
@@ -240,6 +296,34 @@ public class Serial implements SerialPortEventListener {
 		connected.set(true);
 	}
 
+	/**
+	 * Connect to a virtual device through a pair of pipes.  A thread of our
+	 * own stands in for RXTX's event thread, reading whatever the device
+	 * sends as it arrives.
+	 */
+	private void openVirtual(final VirtualDevice device) {
+		BytePipe toDevice = new BytePipe(4096);
+		final BytePipe toHost = new BytePipe(4096);
+		virtualDevice = device;
+		input = toHost.input;
+		output = toDevice.output;
+		device.open(toDevice.input, toHost.output);
+
+		Thread reader = new Thread("Serial Reader: " + name) {
+			public void run() {
+				try {
+					while (true) {
+						toHost.awaitAvailable();
+						readAvailable();
+					}
+				} catch (IOException e) {
+					// The port's been closed
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
 	
 	/**
 	 * Unregister and close the port.
@@ -274,6 +358,11 @@ public class Serial implements SerialPortEventListener {
 			port = null;
 		}
 		
+		if (virtualDevice != null) {
+			virtualDevice.close();
+			virtualDevice = null;
+		}
+		
 		portsInUse.remove(this);
 	}
 
@@ -282,6 +371,7 @@ public class Serial implements SerialPortEventListener {
 	 * device.
 	 */
 	public void pulseRTSLow() {
+		if (port == null) return;
 		port.setDTR(false);
 		port.setRTS(false);
 		try {
@@ -301,16 +391,23 @@ public class Serial implements SerialPortEventListener {
 	 */
 	private int waitForBytes(int numberOfBytes)
 	{
+		if (readFifo.size() >= numberOfBytes) return 0;
 		try {
 			long to = System.currentTimeMillis() + timeoutMillis;
-			while (System.currentTimeMillis() < to && readFifo.size() < numberOfBytes)
-			{
-				/*
-				 * Wait until we timeout or a byte is received (which will notify this 
-				 * method). readFifo notifies for each byte received.
-				 */
-				synchronized (readFifo) {
-					readFifo.wait(timeoutMillis);
+			synchronized (readSignal) {
+				readersWaiting++;
+				try {
+					long now;
+					while ((now = System.currentTimeMillis()) < to && readFifo.size() < numberOfBytes)
+					{
+						/*
+						 * Wait until we timeout or bytes are received (which will notify this
+						 * method).  The event thread notifies once for each batch it reads.
+						 */
+						readSignal.wait(to - now);
+					}
+				} finally {
+					readersWaiting--;
 				}
 			}
 		} catch (InterruptedException e) {
@@ -330,22 +427,25 @@ public class Serial implements SerialPortEventListener {
  		//wait for the fifo to fill
 		if (waitForBytes(1) == -1) return -1;
 		//read the fifo
-		synchronized(readFifo) {
-			if (readFifo.size() > 0) {
-				byte b = readFifo.dequeue();
-				return b & 0xff; 
-			} else {
-				// dial down timeout error reporting if timeoutMillis is set
-				// below the default.  In this case, the packets will time out
-				// frequently and messaging will flood the console
-				if(timeoutMillis < TIMEOUT_DEFAULT){
-					Base.logger.finest("Read timed out.");
-				}
-				else{
-					Base.logger.warning("Read timed out.");
-				}
-				return -1;
-			}
+		if (readFifo.size() > 0) {
+			byte b = readFifo.dequeue();
+			return b & 0xff; 
+		} else {
+			logTimeout();
+			return -1;
+		}
+	}
+
+	private void logTimeout() {
+		readTimeouts.incrementAndGet();
+		// dial down timeout error reporting if timeoutMillis is set
+		// below the default.  In this case, the packets will time out
+		// frequently and messaging will flood the console
+		if(timeoutMillis < TIMEOUT_DEFAULT){
+			Base.logger.finest("Read timed out.");
+		}
+		else{
+			Base.logger.warning("Read timed out.");
 		}
 	}
 
@@ -358,27 +458,43 @@ public class Serial implements SerialPortEventListener {
 	 * @return the number of characters read.
 	 */
  	public int read(byte bytes[]) {
- 		//wait for the fifo to fill
-		if (waitForBytes(bytes.length) == -1) return -1;
+ 		//wait for something to arrive; like InputStream, don't wait for the buffer to fill
+		if (waitForBytes(1) == -1) return -1;
 		//read the fifo
-		synchronized(readFifo) {
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
-			}
-			return idx;
+		return readFifo.dequeue(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Wait until length bytes have arrived, or the timeout is exceeded, and
+	 * read as many of them as there are.  Reading a whole packet (or what's
+	 * left of one) this way takes one wake-up instead of one per byte.
+	 * @return the number of bytes read, 0 on a timeout, or -1 if interrupted
+	 */
+	public int read(byte bytes[], int offset, int length) {
+		if (waitForBytes(length) == -1) return -1;
+		int n = readFifo.dequeue(bytes, offset, length);
+		if (n == 0) {
+			logTimeout();
 		}
+		return n;
 	}
 
 	public void write(byte bytes[]) {
+		write(bytes, 0, bytes.length);
+	}
+
+	/// Write part of an array, such as a packet built in a buffer that's used again
+	public void write(byte bytes[], int offset, int length) {
 		if (!connected.get()) {
 			Base.logger.severe("serial disconnected");
 			return;
 		}
 		
 		try {
-			output.write(bytes);
+			output.write(bytes, offset, length);
 			output.flush(); // Reconsider?
+			writes.incrementAndGet();
+			bytesWritten.addAndGet(length);
 
 		} catch (Exception e) { // null pointer or serial port dead
 			Base.logger.severe( "serial error: \n" + e.getMessage() );
@@ -401,6 +517,24 @@ public class Serial implements SerialPortEventListener {
 	}
 
 
+	/// Calls to write(), which for most drivers is one per packet or line
+	public long getWrites() {
+		return writes.get();
+	}
+	
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+	
+	/// Bytes that have arrived from the port, whether read yet or not
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+	
+	public long getReadTimeouts() {
+		return readTimeouts.get();
+	}
+
 	/**
 	 * Set the amount of time we're willing to wait for a read to timeout.
 	 */
@@ -408,9 +542,16 @@ public class Serial implements SerialPortEventListener {
 		this.timeoutMillis = timeoutMillis;
 	}
 
+	public int getTimeout() {
+		return timeoutMillis;
+	}
+
 
 	public void clear() {
-		synchronized (readFifo) {
+		// Also keeps the event thread from reading while we eat
+		InputStream input = this.input;
+		if (input == null) return;
+		synchronized (input) {
 			// If we're eating more than 255 characters, then there's a serious error:
 			// Either the machine is jabbering, or there's a problem with our serial
 			// connection.
@@ -434,7 +575,6 @@ public class Serial implements SerialPortEventListener {
 			} catch (InterruptedException e) {
 			}
 			readFifo.clear();
-			readFifo.notifyAll();
 			if (maxEats == 0) {
 				throw new RuntimeException("Much more data than expected; check your serial line and reset your machine!");
 			}
@@ -448,40 +588,59 @@ public class Serial implements SerialPortEventListener {
 
 	public void serialEvent(SerialPortEvent event) {
 		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
-		synchronized (readFifo) {
-			try {
-				while (true) {
-					synchronized(input)
-					{
-						if (input.available() == 0)
-						{
-							return;
-						}
-					}
+		try {
+			readAvailable();
+		} catch (IOException e) {
+			// Error condition
+			// e.printStackTrace();
+			// An unplugged connection will just flood the console with
+			// stack traces, and give us zero useful information.  Until
+			// we have a plan for how to respond to the user when the
+			// connection drops, we'll just let this silently fail, and set
+			// a fail bit.
+			if (connected.get()) {
+				Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
+//				connected.set(false);
+				// TODO: How do we tell rxtx that we're done using this port?
+				dispose();
+			}
+		}
+	}
 
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						//notify each byte received
-						readFifo.notifyAll();
-						SerialFifoEventListener l = listener.get();
-						if (l != null)
-							l.serialByteReceivedEvent(readFifo);
-					}
+	/** Move whatever's arrived into the fifo, and tell whoever's waiting for it. */
+	private void readAvailable() throws IOException {
+		InputStream input = this.input;
+		if (input == null) return;
+		while (true) {
+			int count;
+			// Take everything that's arrived in one go
+			synchronized(input)
+			{
+				int available = input.available();
+				if (available <= 0)
+				{
+					return;
 				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				if (connected.get()) {
-					Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
-//					connected.set(false);
-					// TODO: How do we tell rxtx that we're done using this port?
-					dispose();
+				count = input.read(eventBuffer, 0, Math.min(available, eventBuffer.length));
+			}
+			if (count <= 0) {
+				return;
+			}
+			readFifo.enqueue(eventBuffer, 0, count);
+			bytesRead.addAndGet(count);
+
+			// One wake-up for the batch, and only if a reader is waiting
+			if (readersWaiting > 0) {
+				synchronized (readSignal) {
+					readSignal.notifyAll();
+				}
+			}
+			// and the listener hears once for each line that came in
+			SerialFifoEventListener l = listener.get();
+			if (l != null) {
+				for (int i = 0; i < count; i++) {
+					if (eventBuffer[i] == (byte)'\n')
+						l.serialByteReceivedEvent(readFifo);
 				}
 			}
 		}
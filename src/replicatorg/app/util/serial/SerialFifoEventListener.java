@@ -2,9 +2,10 @@ package replicatorg.app.util.serial;
 
 public interface SerialFifoEventListener {
 	/**
-	 * Called by serial when a byte is received and queued in the fifo.
-	 * The fifo is synchronzied for the period of this call so it will not be 
-	 * modified by any external threads.
+	 * Called by serial once for each newline received and queued in the fifo,
+	 * after the whole batch of bytes it came in has been queued.  This is
+	 * called on the serial event thread, which adds no more bytes until it
+	 * returns.
 	 * @param fifo
 	 */
 	public void serialByteReceivedEvent(ByteFifo fifo);
@@ -0,0 +1,22 @@
+package replicatorg.app.util.serial;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Something that can stand in for a device on a serial port, such as a
+ * firmware emulator.  Once added to Serial under a name, opening a port of
+ * that name connects to the device instead, through a pair of in-memory
+ * pipes, so drivers can be run against it unchanged.
+ */
+public interface VirtualDevice {
+	/**
+	 * A port has been opened to the device.  It should read what the host
+	 * sends from the one stream, on a thread of its own, and write its
+	 * answers to the other, until it reads the end of the stream.
+	 */
+	public void open(InputStream fromHost, OutputStream toHost);
+
+	/** The port's been closed. */
+	public void close();
+}
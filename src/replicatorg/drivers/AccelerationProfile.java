@@ -0,0 +1,75 @@
+package replicatorg.drivers;
+
+import java.util.Arrays;
+
+/**
+ * The motion planner settings of an accelerated firmware, as read from its
+ * EEPROM: how hard each axis may accelerate, how suddenly each axis may
+ * change speed at the join between two moves, and the slowest speed the
+ * planner will take a join at.
+ *
+ * Axes are numbered X, Y, Z, A, B, as in Point5d.
+ */
+public class AccelerationProfile {
+
+	private final double[] axisAcceleration;
+	private final double[] axisJerk;
+	private final double maxAcceleration;
+	private final double minimumSpeed;
+
+	/**
+	 * @param axisAcceleration highest acceleration of each axis, in mm/s^2
+	 * @param axisJerk largest instant change of speed of each axis, in mm/s
+	 * @param maxAcceleration highest acceleration of the toolhead as a whole,
+	 * in mm/s^2, or 0 for no limit beyond the axes' own
+	 * @param minimumSpeed slowest speed the planner takes a join at, in mm/s
+	 */
+	public AccelerationProfile(double[] axisAcceleration, double[] axisJerk,
+			double maxAcceleration, double minimumSpeed) {
+		if (axisAcceleration.length != 5 || axisJerk.length != 5) {
+			throw new IllegalArgumentException("Acceleration profiles need values for 5 axes");
+		}
+		this.axisAcceleration = axisAcceleration.clone();
+		this.axisJerk = axisJerk.clone();
+		this.maxAcceleration = maxAcceleration;
+		this.minimumSpeed = minimumSpeed;
+	}
+
+	public double getAxisAcceleration(int axis) {
+		return axisAcceleration[axis];
+	}
+
+	public double getAxisJerk(int axis) {
+		return axisJerk[axis];
+	}
+
+	public double getMaxAcceleration() {
+		return maxAcceleration;
+	}
+
+	public double getMinimumSpeed() {
+		return minimumSpeed;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof AccelerationProfile))
+			return false;
+		AccelerationProfile other = (AccelerationProfile)o;
+		return Arrays.equals(axisAcceleration, other.axisAcceleration)
+			&& Arrays.equals(axisJerk, other.axisJerk)
+			&& maxAcceleration == other.maxAcceleration
+			&& minimumSpeed == other.minimumSpeed;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(axisAcceleration) * 31 + Arrays.hashCode(axisJerk);
+	}
+
+	@Override
+	public String toString() {
+		return "accel " + Arrays.toString(axisAcceleration) + " (max " + maxAcceleration
+			+ "), jerk " + Arrays.toString(axisJerk) + ", min speed " + minimumSpeed;
+	}
+}
@@ -79,6 +79,11 @@ public interface Driver {
 	 */
 	public void assessState();
 	
+	/**
+	 * Counts of what's going through the build pipeline to this machine.
+	 */
+	public PipelineStats getPipelineStats();
+	
 	/**
 	 * Check if the device has reported an error
 	 * @return True if there is an error waiting.
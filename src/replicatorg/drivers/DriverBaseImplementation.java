@@ -67,6 +67,9 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	private AtomicBoolean isInitialized = new AtomicBoolean(false);
 
 	private int buildToFileVersion = 0;
+	
+	// What's going through the build pipeline
+	protected final PipelineStats pipelineStats = new PipelineStats();
 
 	// our error variable.
 	ConcurrentLinkedQueue<DriverError> errorList;
@@ -109,6 +112,10 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	public void loadXML(Node xml) {
 	}
 	
+	public PipelineStats getPipelineStats() {
+		return pipelineStats;
+	}
+	
 	public void updateManualControl() {
 	}
 	
@@ -24,6 +24,7 @@
 package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
 
 import javax.vecmath.Point3d;
 
@@ -37,6 +38,10 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	private double moveLength = 0.0;
 	
 	private Rectangle2D.Double bounds = new Rectangle2D.Double();
+
+	// Models the firmware's accelerated planner, if it has one
+	private LookaheadPlanner planner = null;
+	private final double[] move = new double[5];
 	
 	public EstimationDriver() {
 		super();
@@ -45,8 +50,21 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	}
 
 	public Rectangle2D.Double getBounds() { return bounds; }
+
+	/**
+	 * Estimate as if the firmware plans accelerated moves with the given
+	 * settings, rather than running every move at full speed.  Passing null
+	 * goes back to the unaccelerated estimate.
+	 */
+	public void setAccelerationProfile(AccelerationProfile profile) {
+		planner = (profile == null) ? null : new LookaheadPlanner(profile);
+	}
 	
 	public void delay(long millis) {
+		if (planner != null) {
+			// The machine comes to a stop before it waits
+			planner.flush();
+		}
 		buildTime += (double) millis / 1000;
 	}
 
@@ -63,6 +81,17 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	public void queuePoint(Point5d p) throws RetryException {
 		Point5d delta = getDelta(p);
 
+		if (planner != null) {
+			Point5d current = getCurrentPosition(false);
+			for (int i = 0; i < 5; i++) {
+				move[i] = p.get(i) - current.get(i);
+			}
+			planner.add(move, getSafeFeedrate(delta));
+			bounds.add(p.x(),p.y());
+			setInternalPosition(p);
+			return;
+		}
+
 		// add to the total length
 		moveLength = delta.get3D().distance(new Point3d());
 
@@ -88,7 +117,95 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 		setInternalPosition(p);
 	}
 
+	/**
+	 * Time counted so far, in milliseconds, leaving out any moves still
+	 * waiting in the planner.
+	 */
+	public double getElapsedTime() {
+		if (planner != null) {
+			return buildTime + planner.getTime() * 1000.0;
+		}
+		return buildTime;
+	}
+
+	/**
+	 * Everything about where the estimator has got to that decides how long
+	 * the rest of a program will take: where it is, its feedrate, positioning
+	 * mode and offsets, and any moves still waiting in the planner.
+	 */
+	public static class Snapshot {
+		private final Point5d position;
+		private final double feedrate;
+		private final int positioningMode;
+		private final Point3d[] offsets;
+		private final LookaheadPlanner planner;
+
+		private Snapshot(EstimationDriver driver) {
+			position = driver.getCurrentPosition(false);
+			feedrate = driver.getCurrentFeedrate();
+			positioningMode = driver.positioningMode;
+			offsets = new Point3d[driver.offsets.length];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = new Point3d(driver.offsets[i]);
+			}
+			planner = (driver.planner == null) ? null : new LookaheadPlanner(driver.planner);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Snapshot))
+				return false;
+			Snapshot other = (Snapshot)o;
+			for (int i = 0; i < 5; i++) {
+				if (position.get(i) != other.position.get(i))
+					return false;
+			}
+			if (feedrate != other.feedrate
+					|| positioningMode != other.positioningMode
+					|| !Arrays.equals(offsets, other.offsets))
+				return false;
+			if (planner == null || other.planner == null)
+				return planner == other.planner;
+			return planner.samePlan(other.planner);
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(feedrate);
+			for (int i = 0; i < 5; i++) {
+				bits = bits * 31 + Double.doubleToLongBits(position.get(i));
+			}
+			return (int)(bits ^ (bits >>> 32));
+		}
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Go back to the state in a snapshot, and start counting time from zero.
+	 */
+	public void restore(Snapshot snapshot) {
+		setInternalPosition(new Point5d(snapshot.position));
+		setFeedrateMM(snapshot.feedrate);
+		positioningMode = snapshot.positioningMode;
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i].set(snapshot.offsets[i]);
+		}
+		if (snapshot.planner != null) {
+			planner = new LookaheadPlanner(snapshot.planner);
+			planner.resetTime();
+		}
+		buildTime = 0;
+	}
+
 	public double getBuildTime() {
+		if (planner != null) {
+			// Let the last moves finish, and count them in
+			planner.flush();
+			return buildTime + planner.getTime() * 1000.0;
+		}
 		return buildTime;
 	}
 
@@ -0,0 +1,70 @@
+package replicatorg.drivers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, in buckets that double in width, from
+ * under a microsecond up to about half an hour.  Recording a time takes a
+ * few atomic adds and allocates nothing, so it can be done for every packet
+ * or every line.  Percentiles are read to within a factor of two.
+ */
+public class LatencyHistogram {
+
+	// Bucket n holds times of at least 2^(n-1) us and less than 2^n us
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/// Record a time, as from the difference of two System.nanoTime()s
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		counts.incrementAndGet(bucket);
+		total.incrementAndGet();
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * The time that the given fraction of the recorded times were under, as
+	 * the top of its bucket.
+	 * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+	 * @return the time in us, or 0 if nothing's been recorded
+	 */
+	public long getPercentileMicros(double fraction) {
+		long n = total.get();
+		if (n == 0) {
+			return 0;
+		}
+		long wanted = (long)Math.ceil(fraction * n);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= wanted) {
+				return Math.min(1L << bucket, Math.max(1, maxMicros.get()));
+			}
+		}
+		return maxMicros.get();
+	}
+
+	public void reset() {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			counts.set(bucket, 0);
+		}
+		total.set(0);
+		maxMicros.set(0);
+	}
+}
@@ -0,0 +1,245 @@
+package replicatorg.drivers;
+
+/**
+ * A model of the trapezoidal motion planner in accelerated firmware, used
+ * to estimate how long moves really take.
+ *
+ * Like the firmware, it keeps a buffer of the last few moves.  Each move
+ * gets the fastest speed at its start that the change of direction from the
+ * move before allows, as limited by the per-axis jerk; the whole buffer is
+ * then re-planned backwards from a stop at its end and forwards from the
+ * first move's start, so no move has to speed up or slow down faster than
+ * its acceleration allows.  When the buffer is full, the oldest move's
+ * speeds can no longer change, and its time is added to the total.
+ *
+ * Moves are kept in flat arrays used as a ring, so nothing is allocated
+ * once the planner is made.
+ */
+class LookaheadPlanner {
+
+	/// Moves held for lookahead, as in the firmware's block buffer
+	static final int BUFFER_SIZE = 16;
+
+	private static final int AXES = 5;
+
+	private final double[] axisAcceleration = new double[AXES];
+	private final double[] axisJerk = new double[AXES];
+	private final double maxAcceleration;
+	private final double minimumSpeed;
+
+	// The moves in the buffer, from first (oldest) for count entries
+	private final double[] length = new double[BUFFER_SIZE];
+	private final double[] nominalSpeed = new double[BUFFER_SIZE];
+	private final double[] acceleration = new double[BUFFER_SIZE];
+	private final double[] maxEntrySpeed = new double[BUFFER_SIZE];
+	private final double[] entrySpeed = new double[BUFFER_SIZE];
+	private int first = 0;
+	private int count = 0;
+
+	// Direction and speed of the last move added, for the next junction
+	private final double[] lastDirection = new double[AXES];
+	private final double[] direction = new double[AXES];
+	private double lastSpeed = 0;
+	private boolean stopped = true;
+
+	// Time taken by moves that have left the buffer, in seconds
+	private double time = 0;
+
+	LookaheadPlanner(AccelerationProfile profile) {
+		for (int axis = 0; axis < AXES; axis++) {
+			axisAcceleration[axis] = profile.getAxisAcceleration(axis);
+			axisJerk[axis] = profile.getAxisJerk(axis);
+		}
+		maxAcceleration = profile.getMaxAcceleration();
+		minimumSpeed = profile.getMinimumSpeed();
+	}
+
+	/// A copy of another planner, with the same moves waiting in its buffer
+	LookaheadPlanner(LookaheadPlanner other) {
+		System.arraycopy(other.axisAcceleration, 0, axisAcceleration, 0, AXES);
+		System.arraycopy(other.axisJerk, 0, axisJerk, 0, AXES);
+		maxAcceleration = other.maxAcceleration;
+		minimumSpeed = other.minimumSpeed;
+		System.arraycopy(other.length, 0, length, 0, BUFFER_SIZE);
+		System.arraycopy(other.nominalSpeed, 0, nominalSpeed, 0, BUFFER_SIZE);
+		System.arraycopy(other.acceleration, 0, acceleration, 0, BUFFER_SIZE);
+		System.arraycopy(other.maxEntrySpeed, 0, maxEntrySpeed, 0, BUFFER_SIZE);
+		System.arraycopy(other.entrySpeed, 0, entrySpeed, 0, BUFFER_SIZE);
+		first = other.first;
+		count = other.count;
+		System.arraycopy(other.lastDirection, 0, lastDirection, 0, AXES);
+		lastSpeed = other.lastSpeed;
+		stopped = other.stopped;
+		time = other.time;
+	}
+
+	/**
+	 * True if the other planner has the same settings and the same moves
+	 * waiting, so that whatever comes next will take the same time on both.
+	 */
+	boolean samePlan(LookaheadPlanner other) {
+		if (count != other.count || stopped != other.stopped || lastSpeed != other.lastSpeed
+				|| maxAcceleration != other.maxAcceleration || minimumSpeed != other.minimumSpeed)
+			return false;
+		for (int axis = 0; axis < AXES; axis++) {
+			if (lastDirection[axis] != other.lastDirection[axis]
+					|| axisAcceleration[axis] != other.axisAcceleration[axis]
+					|| axisJerk[axis] != other.axisJerk[axis])
+				return false;
+		}
+		for (int n = 0; n < count; n++) {
+			int i = index(n);
+			int j = other.index(n);
+			if (length[i] != other.length[j] || nominalSpeed[i] != other.nominalSpeed[j]
+					|| acceleration[i] != other.acceleration[j]
+					|| maxEntrySpeed[i] != other.maxEntrySpeed[j]
+					|| entrySpeed[i] != other.entrySpeed[j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add a move.
+	 * @param delta distance along each axis, in mm, with its sign
+	 * @param feedrate speed of the move, in mm/min
+	 */
+	void add(double[] delta, double feedrate) {
+		// Moves are measured in XYZ, unless only the extruders turn
+		double l = Math.sqrt(delta[0]*delta[0] + delta[1]*delta[1] + delta[2]*delta[2]);
+		if (l == 0) {
+			l = Math.sqrt(delta[3]*delta[3] + delta[4]*delta[4]);
+		}
+		if (l == 0 || feedrate <= 0) {
+			return;
+		}
+		double speed = feedrate / 60.0;
+
+		// The axis that can least afford it limits the move's acceleration
+		double a = (maxAcceleration > 0) ? maxAcceleration : Double.MAX_VALUE;
+		for (int axis = 0; axis < AXES; axis++) {
+			direction[axis] = delta[axis] / l;
+			double share = Math.abs(direction[axis]);
+			if (share > 0 && axisAcceleration[axis] > 0) {
+				a = Math.min(a, axisAcceleration[axis] / share);
+			}
+		}
+
+		// Fastest we can go through the join with the last move without
+		// changing any axis' speed by more than its jerk
+		double junction;
+		if (stopped) {
+			junction = Math.min(speed, minimumSpeed);
+		} else {
+			junction = Math.min(speed, lastSpeed);
+			double scale = 1;
+			for (int axis = 0; axis < AXES; axis++) {
+				double change = Math.abs(direction[axis] - lastDirection[axis]) * junction;
+				if (change > axisJerk[axis]) {
+					scale = Math.min(scale, axisJerk[axis] / change);
+				}
+			}
+			junction = Math.max(junction * scale, Math.min(speed, minimumSpeed));
+		}
+
+		if (count == BUFFER_SIZE) {
+			retire();
+		}
+		int i = (first + count) % BUFFER_SIZE;
+		length[i] = l;
+		nominalSpeed[i] = speed;
+		acceleration[i] = a;
+		maxEntrySpeed[i] = junction;
+		entrySpeed[i] = junction;
+		count++;
+
+		System.arraycopy(direction, 0, lastDirection, 0, AXES);
+		lastSpeed = speed;
+		stopped = false;
+
+		replan();
+	}
+
+	/// Let the buffer run empty, ending at a stop, as before a pause or at the end
+	void flush() {
+		while (count > 0) {
+			retire();
+		}
+		stopped = true;
+	}
+
+	/// Time taken by all the moves that have left the buffer, in seconds
+	double getTime() {
+		return time;
+	}
+
+	/// Start counting time from zero again
+	void resetTime() {
+		time = 0;
+	}
+
+	private int index(int n) {
+		return (first + n) % BUFFER_SIZE;
+	}
+
+	// The speed at which the buffer ends, as if no more moves were coming
+	private double finalSpeed() {
+		return Math.min(minimumSpeed, nominalSpeed[index(count - 1)]);
+	}
+
+	private void replan() {
+		// Backwards: each move must be able to slow down to the next one's
+		// entry speed.  The first move is already under way, so it's left be.
+		double next = finalSpeed();
+		for (int n = count - 1; n > 0; n--) {
+			int i = index(n);
+			double reachable = Math.sqrt(next * next + 2 * acceleration[i] * length[i]);
+			entrySpeed[i] = Math.min(maxEntrySpeed[i], reachable);
+			next = entrySpeed[i];
+		}
+
+		// Forwards: and each must be able to speed up to the next one's
+		for (int n = 0; n < count - 1; n++) {
+			int i = index(n);
+			int j = index(n + 1);
+			double reachable = Math.sqrt(entrySpeed[i] * entrySpeed[i] + 2 * acceleration[i] * length[i]);
+			if (entrySpeed[j] > reachable) {
+				entrySpeed[j] = reachable;
+			}
+		}
+	}
+
+	// Take the oldest move out of the buffer and count its time
+	private void retire() {
+		int i = first;
+		double exit = (count > 1) ? entrySpeed[index(1)] : finalSpeed();
+		time += trapezoidTime(length[i], acceleration[i], entrySpeed[i], exit, nominalSpeed[i]);
+		first = index(1);
+		count--;
+	}
+
+	/**
+	 * Time to cover a distance starting at one speed and ending at another,
+	 * speeding up to (at most) the cruise speed and slowing down again at
+	 * the given acceleration.
+	 */
+	static double trapezoidTime(double length, double a, double entry, double exit, double cruise) {
+		entry = Math.min(entry, cruise);
+		exit = Math.min(exit, cruise);
+		double accelDistance = (cruise * cruise - entry * entry) / (2 * a);
+		double decelDistance = (cruise * cruise - exit * exit) / (2 * a);
+		if (accelDistance + decelDistance <= length) {
+			return (cruise - entry) / a + (cruise - exit) / a
+				+ (length - accelDistance - decelDistance) / cruise;
+		}
+
+		// Never gets to cruise: speed up to a peak and straight back down
+		double peak = Math.sqrt((2 * a * length + entry * entry + exit * exit) / 2);
+		if (peak < Math.max(entry, exit)) {
+			// Can't make the change in the distance; the planner's forward
+			// pass keeps this small, so take the average speed
+			return 2 * length / (entry + exit);
+		}
+		return (peak - entry) / a + (peak - exit) / a;
+	}
+}
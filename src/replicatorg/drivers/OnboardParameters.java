@@ -137,6 +137,9 @@ public interface OnboardParameters {
         int getAxisAccelerationRate(int axis);
         double getAxisJerk(int axis);
         int getAccelerationMinimumSpeed();
+        /// Read the planner settings needed to estimate build times, or
+        /// null if acceleration is off or the firmware doesn't have it
+        AccelerationProfile getAccelerationProfile();
 
 	/// The following are used by the Gen3/Gen4 boards with the Jetty Firmware
 	///    1. Tends to use uint32_t but also int8_t and uint8_t
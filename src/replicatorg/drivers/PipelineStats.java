@@ -0,0 +1,238 @@
+package replicatorg.drivers;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.OnboardParameters.CommunicationStatistics;
+
+/**
+ * Counts what goes through one machine's build pipeline, from the builder
+ * through the driver to the serial port, so that a stuttering build can be
+ * looked into while it runs.  Registered with the platform MBean server, it
+ * can be watched with jconsole or any other JMX client.
+ *
+ * The builder and driver count things as they happen; counting allocates
+ * nothing.  The serial port keeps its own counts, and the motherboard's are
+ * read from it now and then; both are brought in by update(), which also
+ * works out the rates.
+ */
+public class PipelineStats implements PipelineStatsMBean {
+
+	private final AtomicLong linesSent = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong bufferOverflows = new AtomicLong();
+	private final AtomicLong crcErrors = new AtomicLong();
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	private final LatencyHistogram parse = new LatencyHistogram();
+
+	// The serial port's counts, as of the last update
+	private volatile Serial serial = null;
+	private Serial countedSerial = null;
+	private long serialWrites, serialBytesWritten, serialBytesRead, serialTimeouts;
+	private final AtomicLong packetsWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong readTimeouts = new AtomicLong();
+
+	// Rates, as of the last update
+	private long lastUpdate = 0;
+	private long lastLines, lastPackets, lastBytesWritten, lastBytesRead;
+	private volatile double linesPerSecond, packetsPerSecond, bytesWrittenPerSecond, bytesReadPerSecond;
+
+	private volatile CommunicationStatistics motherboard = null;
+
+	// What the driver has learned of how quickly the machine answers, if it learns
+	private volatile double queryRoundTripMillis = -1;
+	private volatile int queryTimeoutMillis = -1;
+
+	// Lines the builder has parsed ahead and not yet sent
+	private volatile int lookaheadDepth = 0;
+
+	private ObjectName registeredName = null;
+
+	public void lineSent() {
+		linesSent.incrementAndGet();
+	}
+
+	public void retried() {
+		retries.incrementAndGet();
+	}
+
+	public void bufferOverflowed() {
+		bufferOverflows.incrementAndGet();
+	}
+
+	public void crcError() {
+		crcErrors.incrementAndGet();
+	}
+
+	/// A packet's round trip to the machine took so many ns
+	public void roundTrip(long nanos) {
+		roundTrip.record(nanos);
+	}
+
+	/// Parsing a line took so many ns
+	public void parsed(long nanos) {
+		parse.record(nanos);
+	}
+
+	/// The driver's smoothed round trip for a query, and how long it waits for one, in ms
+	public void setQueryRoundTrip(double smoothedMillis, int timeoutMillis) {
+		queryRoundTripMillis = smoothedMillis;
+		queryTimeoutMillis = timeoutMillis;
+	}
+
+	/// How many lines the builder has parsed ahead of the machine, as of the last line sent
+	public void setLookaheadDepth(int lines) {
+		lookaheadDepth = lines;
+	}
+
+	/// Count what goes through this port, from the next update on
+	public void setSerial(Serial serial) {
+		this.serial = serial;
+	}
+
+	public void setCommunicationStatistics(CommunicationStatistics stats) {
+		motherboard = stats;
+	}
+
+	/**
+	 * Bring in the serial port's counts and work out the rates since the
+	 * last update.  Called every so often, from one thread.
+	 */
+	public synchronized void update() {
+		Serial s = serial;
+		if (s != countedSerial) {
+			countedSerial = s;
+			serialWrites = serialBytesWritten = serialBytesRead = serialTimeouts = 0;
+		}
+		if (s != null) {
+			long n;
+			n = s.getWrites(); packetsWritten.addAndGet(n - serialWrites); serialWrites = n;
+			n = s.getBytesWritten(); bytesWritten.addAndGet(n - serialBytesWritten); serialBytesWritten = n;
+			n = s.getBytesRead(); bytesRead.addAndGet(n - serialBytesRead); serialBytesRead = n;
+			n = s.getReadTimeouts(); readTimeouts.addAndGet(n - serialTimeouts); serialTimeouts = n;
+		}
+
+		long now = System.currentTimeMillis();
+		long lines = linesSent.get();
+		long packets = packetsWritten.get();
+		long out = bytesWritten.get();
+		long in = bytesRead.get();
+		if (lastUpdate != 0 && now > lastUpdate) {
+			double seconds = (now - lastUpdate) / 1000.0;
+			linesPerSecond = (lines - lastLines) / seconds;
+			packetsPerSecond = (packets - lastPackets) / seconds;
+			bytesWrittenPerSecond = (out - lastBytesWritten) / seconds;
+			bytesReadPerSecond = (in - lastBytesRead) / seconds;
+		}
+		lastUpdate = now;
+		lastLines = lines;
+		lastPackets = packets;
+		lastBytesWritten = out;
+		lastBytesRead = in;
+	}
+
+	/**
+	 * Show these stats over JMX under the given name.  If the name's taken,
+	 * by another machine of the same kind, a number is added to it.
+	 */
+	public synchronized void register(String name) {
+		unregister();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (int n = 1; registeredName == null; n++) {
+				ObjectName objectName = new ObjectName("replicatorg:type=Machine,name="
+						+ ObjectName.quote(n == 1 ? name : name + " (" + n + ")"));
+				if (!server.isRegistered(objectName)) {
+					server.registerMBean(this, objectName);
+					registeredName = objectName;
+				}
+			}
+		} catch (JMException e) {
+			Base.logger.warning("Could not register machine statistics: " + e.getMessage());
+		}
+	}
+
+	public synchronized void unregister() {
+		if (registeredName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e) {
+			Base.logger.fine("Could not unregister machine statistics: " + e.getMessage());
+		}
+		registeredName = null;
+	}
+
+	public long getLinesSent() { return linesSent.get(); }
+	public double getLinesPerSecond() { return linesPerSecond; }
+
+	public long getPacketsWritten() { return packetsWritten.get(); }
+	public double getPacketsPerSecond() { return packetsPerSecond; }
+	public long getBytesWritten() { return bytesWritten.get(); }
+	public double getBytesWrittenPerSecond() { return bytesWrittenPerSecond; }
+	public long getBytesRead() { return bytesRead.get(); }
+	public double getBytesReadPerSecond() { return bytesReadPerSecond; }
+	public long getReadTimeouts() { return readTimeouts.get(); }
+
+	public long getRetries() { return retries.get(); }
+	public long getBufferOverflows() { return bufferOverflows.get(); }
+	public long getCrcErrors() { return crcErrors.get(); }
+
+	public long getRoundTrips() { return roundTrip.getCount(); }
+	public long getRoundTripMedianMicros() { return roundTrip.getPercentileMicros(0.5); }
+	public long getRoundTrip99thMicros() { return roundTrip.getPercentileMicros(0.99); }
+	public long getRoundTripMaxMicros() { return roundTrip.getMaxMicros(); }
+	public double getQueryRoundTripMillis() { return queryRoundTripMillis; }
+	public int getQueryTimeoutMillis() { return queryTimeoutMillis; }
+
+	public long getLinesParsed() { return parse.getCount(); }
+	public long getParseMedianMicros() { return parse.getPercentileMicros(0.5); }
+	public long getParse99thMicros() { return parse.getPercentileMicros(0.99); }
+	public long getParseMaxMicros() { return parse.getMaxMicros(); }
+	public int getLookaheadDepth() { return lookaheadDepth; }
+
+	public int getMotherboardPacketCount() {
+		CommunicationStatistics s = motherboard;
+		return s == null ? -1 : s.packetCount;
+	}
+	public int getMotherboardSentPacketCount() {
+		CommunicationStatistics s = motherboard;
+		return s == null ? -1 : s.sentPacketCount;
+	}
+	public int getMotherboardPacketFailureCount() {
+		CommunicationStatistics s = motherboard;
+		return s == null ? -1 : s.packetFailureCount;
+	}
+	public int getMotherboardPacketRetryCount() {
+		CommunicationStatistics s = motherboard;
+		return s == null ? -1 : s.packetRetryCount;
+	}
+	public int getMotherboardNoiseByteCount() {
+		CommunicationStatistics s = motherboard;
+		return s == null ? -1 : s.noiseByteCount;
+	}
+
+	public synchronized void reset() {
+		linesSent.set(0);
+		retries.set(0);
+		bufferOverflows.set(0);
+		crcErrors.set(0);
+		roundTrip.reset();
+		parse.reset();
+		packetsWritten.set(0);
+		bytesWritten.set(0);
+		bytesRead.set(0);
+		readTimeouts.set(0);
+		lastUpdate = 0;
+		linesPerSecond = packetsPerSecond = bytesWrittenPerSecond = bytesReadPerSecond = 0;
+	}
+}
@@ -0,0 +1,52 @@
+package replicatorg.drivers;
+
+/**
+ * What a machine's PipelineStats show over JMX.  Rates are per second over
+ * the last status poll; counts are since the driver was loaded, or since
+ * the last reset.
+ */
+public interface PipelineStatsMBean {
+	// Lines of gcode sent by the builder
+	public long getLinesSent();
+	public double getLinesPerSecond();
+
+	// The serial connection
+	public long getPacketsWritten();
+	public double getPacketsPerSecond();
+	public long getBytesWritten();
+	public double getBytesWrittenPerSecond();
+	public long getBytesRead();
+	public double getBytesReadPerSecond();
+	public long getReadTimeouts();
+
+	// Trouble
+	public long getRetries();
+	public long getBufferOverflows();
+	public long getCrcErrors();
+
+	// Round trips of packets to the machine
+	public long getRoundTrips();
+	public long getRoundTripMedianMicros();
+	public long getRoundTrip99thMicros();
+	public long getRoundTripMaxMicros();
+	// As the driver has learned it, or -1 if it doesn't
+	public double getQueryRoundTripMillis();
+	public int getQueryTimeoutMillis();
+
+	// Parsing a line of gcode
+	public long getLinesParsed();
+	public long getParseMedianMicros();
+	public long getParse99thMicros();
+	public long getParseMaxMicros();
+	// Lines parsed ahead of the machine and waiting to be sent
+	public int getLookaheadDepth();
+
+	// As the motherboard counts them, if it does
+	public int getMotherboardPacketCount();
+	public int getMotherboardSentPacketCount();
+	public int getMotherboardPacketFailureCount();
+	public int getMotherboardPacketRetryCount();
+	public int getMotherboardNoiseByteCount();
+
+	public void reset();
+}
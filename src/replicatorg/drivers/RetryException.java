@@ -7,4 +7,21 @@ package replicatorg.drivers;
  *
  */
 public class RetryException extends Exception {
+	private final long retryAfterMillis;
+
+	public RetryException() {
+		this(0);
+	}
+
+	/**
+	 * @param retryAfterMillis how long the driver expects it'll be before
+	 * the command can go through, or 0 if it can't tell
+	 */
+	public RetryException(long retryAfterMillis) {
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
 }
@@ -97,6 +97,7 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
 			// Finally, set the new serial port
 			setInitialized(false);
 			this.serial = newConnection;
+			pipelineStats.setSerial(newConnection);
 
 			// asynch option: the serial port forwards all received data in FIFO format via 
 			// serialByteReceivedEvent if the driver implements SerialFifoEventListener.
@@ -113,6 +114,7 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
 		if (serial != null)
 			serial.dispose();
 		serial = null;
+		pipelineStats.setSerial(null);
 		serialLock.writeLock().unlock();
 	}
 
@@ -35,6 +35,7 @@ import java.util.Queue;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
 import replicatorg.machine.model.AxisId;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.util.Point5d;
@@ -55,6 +56,13 @@ public class SerialPassthroughDriver extends SerialDriver {
 	 */
 	private int bufferSize = 0;
 
+	/**
+	 * if true, commands are sent as long as they fit in the buffer on the
+	 * GCode host; if false, each waits for the one before it to be
+	 * acknowledged.
+	 */
+	private boolean characterCounting = true;
+
 	/**
 	 * What did we get back from serial?
 	 */
@@ -78,6 +86,12 @@ public class SerialPassthroughDriver extends SerialDriver {
 
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
+		if (XML.hasChildNode(xml, "characterCounting")) {
+			characterCounting = Boolean.parseBoolean(XML.getChildNodeValue(xml, "characterCounting"));
+		}
+		if (XML.hasChildNode(xml, "bufferSize")) {
+			maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "bufferSize"));
+		}
 	}
 
 	public void initialize() {
@@ -147,8 +161,9 @@ public class SerialPassthroughDriver extends SerialDriver {
 		if (next.length() == 0)
 			return;
 
-		// Block until we can fit the command on the Arduino
-		while (bufferSize + next.length() + 1 > maxBufferSize) {
+		// Block until we can fit the command on the Arduino, or until
+		// it's done with the last one if we're not counting characters
+		while (bufferSize > 0 && (!characterCounting || bufferSize + next.length() + 1 > maxBufferSize)) {
 			readResponse();
 		}
 
@@ -208,7 +223,8 @@ public class SerialPassthroughDriver extends SerialDriver {
 						if (line.length() == 0)
 							continue;
 						if (line.startsWith("ok")) {
-							bufferSize -= commands.remove();
+							if (!commands.isEmpty())
+								bufferSize -= commands.remove();
 							Base.logger.info(line);
 						} else if (line.startsWith("T:")) {
 							String temp = line.substring(2);
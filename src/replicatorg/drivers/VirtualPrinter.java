@@ -31,6 +31,8 @@ public class VirtualPrinter implements Driver, DriverQueryInterface {
 	double toolTemperatureSetting = 0;
 	double platformTemperature = 0;
 	double platformTemperatureSetting = 0;
+	
+	final PipelineStats pipelineStats = new PipelineStats();
 	boolean isInitialized = false;
 	MachineModel machineModel = new MachineModel();
 	Point5d currentPosition = new Point5d();
@@ -78,6 +80,11 @@ public class VirtualPrinter implements Driver, DriverQueryInterface {
 
 	}
 
+	@Override
+	public PipelineStats getPipelineStats() {
+		return pipelineStats;
+	}
+
 	@Override
 	public boolean hasError() {
 		// TODO Auto-generated method stub
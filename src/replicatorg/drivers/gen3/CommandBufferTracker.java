@@ -0,0 +1,208 @@
+package replicatorg.drivers.gen3;
+
+import replicatorg.app.Base;
+
+/**
+ * Keeps track of how much room is left in the firmware's command buffer, so
+ * that commands are only sent when they will fit, instead of being sent,
+ * rejected with BUFFER_OVERFLOW and sent again until the buffer drains.
+ *
+ * What we know of the free space comes from asking the firmware for it.
+ * Between asks, every command sent takes its payload out of that figure; the
+ * firmware draining its buffer only ever gives space back, so the figure
+ * never claims more room than there is.  When it says the next command won't
+ * fit, we ask again, waiting first for about as long as the buffer has been
+ * taking to drain that much.
+ *
+ * Commands are sent on the transport thread, but the machine thread resets
+ * the count when a build starts or stops, so the state is only touched with
+ * the tracker locked.  The lock isn't held while waiting or while asking the
+ * firmware, so a reset never waits on the serial port.
+ */
+class CommandBufferTracker {
+
+	/// Longest we'll wait for room before giving the command back to be retried
+	static final long MAX_WAIT_MILLIS = 100;
+	/// Shortest and longest wait between asks while the buffer is full
+	static final long MIN_POLL_MILLIS = 2;
+	static final long MAX_POLL_MILLIS = 20;
+	/**
+	 * If the firmware says there's no room for this long, send the command
+	 * anyway and let the firmware decide, in case it's the count that's wrong.
+	 */
+	static final long PROBE_MILLIS = 1000;
+	/// Asks in a row without an answer before deciding the firmware can't tell us
+	static final int MAX_FAILED_ASKS = 3;
+
+	private final Sanguino3GDriver driver;
+
+	// Free bytes, as of the last ask less everything sent since; -1 if unknown
+	private long free = -1;
+	// When we last asked, and the bytes sent since then
+	private long lastAsked = 0;
+	private long sentSinceAsked = 0;
+	private long freeWhenAsked = 0;
+	// How fast the firmware empties its buffer, in bytes per millisecond
+	private double drainRate = 0;
+	// Since when the firmware has been saying there's no room; 0 if it hasn't
+	private long fullSince = 0;
+	private boolean supported = true;
+	// Asks in a row that got no answer
+	private int failedAsks = 0;
+	// Counts resets, so an answer asked for before one isn't believed after it
+	private int generation = 0;
+
+	// For the log at the end of a build
+	private int overflows = 0;
+	private long rejectedBytes = 0;
+	private int asks = 0;
+	private long waitedMillis = 0;
+
+	CommandBufferTracker(Sanguino3GDriver driver) {
+		this.driver = driver;
+	}
+
+	/// Payload length of a packet, which is what it takes up in the buffer
+	static int payloadLength(byte[] packet) {
+		return packet[1] & 0xff;
+	}
+
+	/**
+	 * Wait until the packet fits in the firmware's buffer.
+	 * @return false if there's still no room after a while, in which case the
+	 * packet shouldn't be sent now
+	 */
+	boolean waitForRoom(byte[] packet) {
+		int needed = payloadLength(packet);
+		synchronized (this) {
+			if (!supported || free >= needed) {
+				return true;
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		try {
+			while (true) {
+				ask();
+				long wait;
+				synchronized (this) {
+					if (!supported || free >= needed) {
+						fullSince = 0;
+						return true;
+					}
+					long now = System.currentTimeMillis();
+					if (fullSince == 0) {
+						fullSince = now;
+					} else if (now - fullSince >= PROBE_MILLIS) {
+						// Let this one through; an overflow will tell us if we were right
+						fullSince = now;
+						return true;
+					}
+					if (now - start >= MAX_WAIT_MILLIS) {
+						return false;
+					}
+
+					// Wait about as long as it should take to drain enough
+					wait = MAX_POLL_MILLIS;
+					if (drainRate > 0) {
+						wait = (long)Math.ceil((needed - free) / drainRate);
+					}
+					wait = Math.max(MIN_POLL_MILLIS, Math.min(MAX_POLL_MILLIS, wait));
+				}
+				Thread.sleep(wait);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			synchronized (this) {
+				waitedMillis += System.currentTimeMillis() - start;
+			}
+		}
+	}
+
+	/// About how long until the packet would fit, in ms, or 0 if we can't tell
+	synchronized long drainMillis(byte[] packet) {
+		long missing = payloadLength(packet) - free;
+		if (free < 0 || missing <= 0 || drainRate <= 0) {
+			return 0;
+		}
+		return (long)Math.ceil(missing / drainRate);
+	}
+
+	/// The firmware took the packet
+	synchronized void sent(byte[] packet) {
+		int length = payloadLength(packet);
+		sentSinceAsked += length;
+		if (free >= 0) {
+			free = Math.max(0, free - length);
+		}
+	}
+
+	/// The firmware turned the packet away as its buffer was full
+	synchronized void overflowed(byte[] packet) {
+		overflows++;
+		rejectedBytes += payloadLength(packet) + 3;
+		free = 0;
+	}
+
+	/// The firmware's buffer was emptied, or we've lost track of it
+	synchronized void reset() {
+		free = -1;
+		drainRate = 0;
+		fullSince = 0;
+		lastAsked = 0;
+		generation++;
+	}
+
+	// Ask the firmware how much room it has, and update the drain rate
+	private void ask() {
+		int asked;
+		synchronized (this) {
+			asked = generation;
+		}
+		long reported = driver.getFreeBufferSpace();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			asks++;
+			if (asked != generation) {
+				// Reset while we were asking; the answer may be from before
+				return;
+			}
+			if (reported < 0) {
+				// One answer lost to line noise shouldn't turn flow control off
+				if (++failedAsks < MAX_FAILED_ASKS) {
+					return;
+				}
+				// Nothing to go on, so send everything and rely on retries as before
+				Base.logger.fine("Firmware can't report its buffer space; flow control is off");
+				supported = false;
+				return;
+			}
+			if (lastAsked != 0 && now > lastAsked) {
+				// What left the buffer is what's free now, less what was free, plus what we added
+				long drained = reported - freeWhenAsked + sentSinceAsked;
+				if (drained > 0) {
+					double rate = (double)drained / (now - lastAsked);
+					drainRate = (drainRate == 0) ? rate : 0.75 * drainRate + 0.25 * rate;
+				}
+			}
+			failedAsks = 0;
+			free = reported;
+			freeWhenAsked = reported;
+			sentSinceAsked = 0;
+			lastAsked = now;
+		}
+	}
+
+	/// Log what the flow control did since the last call, and start counting again
+	synchronized void logStatistics() {
+		Base.logger.fine("Flow control: " + asks + " buffer queries, "
+				+ waitedMillis + "ms waiting for room, " + overflows + " overflows ("
+				+ rejectedBytes + " bytes rejected)");
+		asks = 0;
+		waitedMillis = 0;
+		overflows = 0;
+		rejectedBytes = 0;
+	}
+}
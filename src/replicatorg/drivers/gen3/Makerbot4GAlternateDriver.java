@@ -254,7 +254,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				enableStepperExtruderFan(true);
 			}
 		}
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
 
 		Base.logger.finer("Queued new-style point " + steps + " over "
 					+ Long.toString(us) + " usec., relative " + Integer.toString(relative));
@@ -269,7 +269,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		pb.add32((int) us);
 		pb.add8((int) relative);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	protected void queueNewExtPoint(Point5d steps, long dda_rate, int relative, float distance, float feedrate) throws RetryException {
@@ -282,7 +282,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				enableStepperExtruderFan(true);
 			}
 		}
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
 
 		Base.logger.finer("Queued new-style extended point " + steps + " over "
 					+ Long.toString(dda_rate) + " steps per sec., relative " + Integer.toString(relative)
@@ -300,7 +300,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		pb.addFloat(distance);
 		pb.add16((int) (feedrate * 64.0));
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	/**
@@ -363,20 +363,20 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 					+ Integer.toBinaryString(flags));
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_COMMAND.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		// Always use max PWM
-		pb = new PacketBuilder(MotherboardCommandCode.TOOL_COMMAND.getCode());
+		pb = newPacket(MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) machine.currentTool().getIndex());
 		pb.add8(ToolCommandCode.SET_MOTOR_1_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
 		pb.add8((byte) 255);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		
 		this.stepperExtruderFanEnabled = enabled;
 	}
@@ -388,12 +388,12 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
         public void setAccelerationToggle(boolean on) throws RetryException {
                 Base.logger.finer("SetAccelerationToggle (" + on + ")" );
 
-                PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_ACCELERATION_TOGGLE.getCode());
+                PacketBuilder pb = newPacket(MotherboardCommandCode.SET_ACCELERATION_TOGGLE.getCode());
 
 		if ( on )	pb.add8(1);
 		else		pb.add8(0);
 
-                runCommand(pb.getPacket());
+                runCommand(pb);
         }
 
 
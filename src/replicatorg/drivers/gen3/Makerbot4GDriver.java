@@ -111,7 +111,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 			}
 		}
 
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
@@ -126,11 +126,11 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		pb.add32((int) steps.b());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_POSITION_EXT.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_POSITION_EXT.getCode());
 
 		Point5d steps = machine.mmToSteps(p);
 		pb.add32((long) steps.x());
@@ -142,7 +142,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		Base.logger.log(Level.FINE,"Set current position to " + p + " (" + steps
 					+ ")");
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	
 		// Set the current position explicitly instead of calling the super, to avoid sending the current position command twice.
 		currentPosition.set(p);
@@ -154,8 +154,8 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		if (fileCaptureOstream != null) {
 			return null;
 		}
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_POSITION_EXT.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.GET_POSITION_EXT.getCode());
+		PacketResponse pr = runQuery(pb);
 		
 		Point5d steps;
 		try {
@@ -245,20 +245,20 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 					+ Integer.toBinaryString(flags));
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_COMMAND.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolIndex);
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		// Always use max PWM
-		pb = new PacketBuilder(MotherboardCommandCode.TOOL_COMMAND.getCode());
+		pb = newPacket(MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolIndex);
 		pb.add8(ToolCommandCode.SET_MOTOR_1_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
 		pb.add8((byte) 255);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		
 		this.stepperExtruderFanEnabled = enabled;
 	}
@@ -652,9 +652,10 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		if (hasAcceleration()) {
 			/// Send message to the firmware to restore EEPROM parameters to their default values
 			/// Not reset are the filament counters and the home offsets
-			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.RESET_TO_FACTORY.getCode());
+			PacketBuilder pb = newPacket(MotherboardCommandCode.RESET_TO_FACTORY.getCode());
 			pb.add8((byte) 0xFF);  // reserved byte in payload
-			PacketResponse pr = runCommand(pb.getPacket());
+			PacketResponse pr = runCommand(pb);
+			forgetAccelerationProfile();
 		}
 		else
 			super.resetSettingsToBlank();
@@ -34,6 +34,7 @@ import java.util.Hashtable;
 import java.util.logging.Level;
 
 import replicatorg.app.Base;
+import replicatorg.drivers.AccelerationProfile;
 import replicatorg.drivers.InteractiveDisplay;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
@@ -497,7 +498,7 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 		pb1.add8(0);
 		runCommand(pb1.getPacket());
 */
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_LED_STRIP_COLOR.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_LED_STRIP_COLOR.getCode());
 
 		int Channel = 3;
 		int Brightness = 1;
@@ -514,7 +515,7 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 		//pb.add8(colorSelect);
 		pb.add8(0);
 
-		PacketResponse resp =  runCommand(pb.getPacket());
+		PacketResponse resp =  runCommand(pb);
 		if(resp.isOK()) {
 			Base.logger.fine("Sailfish setLedStrip went OK");
 			ledColorByEffect.put(effectId, color);	
@@ -533,11 +534,11 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 	public void sendBeep(int frequencyHz, int durationMs, int effectId) throws RetryException {
 		Base.logger.fine("Sailfish sending setBeep" + frequencyHz + durationMs + " effect" + effectId);
 		Base.logger.fine("max " + Integer.MAX_VALUE);
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_BEEP.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_BEEP.getCode());
 		pb.add16(frequencyHz);
 		pb.add16(durationMs);
 		pb.add8(effectId);		
-		PacketResponse resp =  runCommand(pb.getPacket());
+		PacketResponse resp =  runCommand(pb);
 		if(resp.isOK()) {
 			Base.logger.fine("Sailfish sendBeep went OK");
 			//beepByEffect.put(effectId, color);	
@@ -717,6 +718,30 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 		    writeToEEPROM(SailfishEEPROM.STEPPER_DRIVER, b);
         }
 
+	/// Read the Jetty planner settings: accelerations in mm/s^2, speed changes
+	/// in mm/s, and the slowest speed a join between moves is taken at
+	@Override
+	protected AccelerationProfile readAccelerationProfile() {
+		if (getAccelerationStatus() == 0)
+			return null;
+
+		double[] accelerations = new double[] {
+			getEEPROMParamUInt(EEPROMParams.ACCEL_MAX_ACCELERATION_X),
+			getEEPROMParamUInt(EEPROMParams.ACCEL_MAX_ACCELERATION_Y),
+			getEEPROMParamUInt(EEPROMParams.ACCEL_MAX_ACCELERATION_Z),
+			getEEPROMParamUInt(EEPROMParams.ACCEL_MAX_ACCELERATION_A),
+			getEEPROMParamUInt(EEPROMParams.ACCEL_MAX_ACCELERATION_B) };
+		double[] speedChanges = new double[] {
+			getEEPROMParamFloat(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_X),
+			getEEPROMParamFloat(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_Y),
+			getEEPROMParamFloat(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_Z),
+			getEEPROMParamFloat(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_A),
+			getEEPROMParamFloat(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_B) };
+		return new AccelerationProfile(accelerations, speedChanges,
+				getEEPROMParamUInt(EEPROMParams.ACCEL_MAX_EXTRUDER_NORM),
+				getEEPROMParamUInt(EEPROMParams.ACCEL_MIN_PLANNER_SPEED));
+	}
+
 	// Unhandled:  FILAMENT_USED
         
 	/// Function to grab cached count of tools
@@ -848,7 +873,7 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 		/// and set the timeout only on the last block
         /// send message complete on the last block
 		while (sentTotal < message.length()) {
-			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.DISPLAY_MESSAGE.getCode());
+			PacketBuilder pb = newPacket(MotherboardCommandCode.DISPLAY_MESSAGE.getCode());
 			
 			// if this is the last packet, set timeout and indicate that message is complete
             // set the "wait on button" flag if specified
@@ -867,16 +892,16 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 			pb.add8(0); // y coordinate
 			pb.add8((int)seconds); // send timeout only on the last packet
 			sentTotal += pb.addString(message.substring(sentTotal), MAX_MSG_PER_PACKET);
-			runCommand(pb.getPacket());
+			runCommand(pb);
 		}					     
 	}
 	
 	public void sendBuildStartNotification(String buildName, int stepCount)  throws RetryException { 
 		final int MAX_MSG_PER_PACKET = 25;
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.BUILD_START_NOTIFICATION.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.BUILD_START_NOTIFICATION.getCode());
 		pb.add32(stepCount);
 		pb.addString(buildName, MAX_MSG_PER_PACKET);//clips name if it's too big
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	/**
@@ -885,34 +910,34 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 	 * @throws RetryException
 	 */
 	public void sendBuildEndNotification(int endCode)  throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.BUILD_END_NOTIFICATION.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.BUILD_END_NOTIFICATION.getCode());
 		//BUILD_END_NOTIFICATION(24, "Notify the bot object build is complete."),
 		pb.add8(endCode);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	///
 	public void updateBuildPercent(int percentDone) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_BUILD_PERCENT.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_BUILD_PERCENT.getCode());
 		pb.add8(percentDone);
 		pb.add8(0xff);///reserved
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
         /// Tells the bot to queue a pre-canned song.
         public void playSong(int songId) throws RetryException {
-                PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_SONG.getCode());
+                PacketBuilder pb = newPacket(MotherboardCommandCode.QUEUE_SONG.getCode());
                 pb.add8(songId);
-                runCommand(pb.getPacket());
+                runCommand(pb);
         }
 
         public void userPause(double seconds, boolean resetOnTimeout, int buttonMask) throws RetryException {
                 int options = resetOnTimeout?1:0;
-                PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.PAUSE_FOR_BUTTON.getCode());
+                PacketBuilder pb = newPacket(MotherboardCommandCode.PAUSE_FOR_BUTTON.getCode());
                 pb.add8(0xff); // buttonMask);
                 pb.add16((int)seconds);
                 pb.add8(options);
-                runCommand(pb.getPacket());
+                runCommand(pb);
         }
 
 	/// Returns the number of tools as saved on the machine (not as per XML count)
@@ -32,6 +32,7 @@ import java.util.logging.Level;
 import javax.vecmath.Point3d;
 
 import replicatorg.app.Base;
+import replicatorg.drivers.AccelerationProfile;
 import replicatorg.drivers.InteractiveDisplay;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
@@ -398,7 +399,7 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	@Override
 	public void setStepperVoltage(int stepperId, int referenceValue) throws RetryException {
 		Base.logger.fine("MightyBoard sending setStepperVoltage: " + stepperId + " " + referenceValue);
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_STEPPER_REFERENCE_POT.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_STEPPER_REFERENCE_POT.getCode());
 		
 		if(stepperId > 5) {
 			Base.logger.severe("set invalid stepper Id" + Integer.toString(stepperId) );
@@ -409,7 +410,7 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		
 		pb.add8(stepperId);
 		pb.add8(referenceValue); //range should be only is 0-127
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 
 		if( pr.isOK() )
 		{
@@ -790,7 +791,7 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		pb1.add8(0);
 		runCommand(pb1.getPacket());
 */
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_LED_STRIP_COLOR.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_LED_STRIP_COLOR.getCode());
 
 		int Channel = 3;
 		int Brightness = 1;
@@ -807,7 +808,7 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		//pb.add8(colorSelect);
 		pb.add8(0);
 
-		PacketResponse resp =  runCommand(pb.getPacket());
+		PacketResponse resp =  runCommand(pb);
 		if(resp.isOK()) {
 			Base.logger.fine("MightyBoard setLedStrip went OK");
 			ledColorByEffect.put(effectId, color);	
@@ -826,11 +827,11 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	public void sendBeep(int frequencyHz, int durationMs, int effectId) throws RetryException {
 		Base.logger.fine("MightyBoard sending setBeep" + frequencyHz + durationMs + " effect" + effectId);
 		Base.logger.fine("max " + Integer.MAX_VALUE);
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_BEEP.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_BEEP.getCode());
 		pb.add16(frequencyHz);
 		pb.add16(durationMs);
 		pb.add8(effectId);		
-		PacketResponse resp =  runCommand(pb.getPacket());
+		PacketResponse resp =  runCommand(pb);
 		if(resp.isOK()) {
 			Base.logger.fine("MightyBoard sendBeep went OK");
 			//beepByEffect.put(effectId, color);	
@@ -1292,6 +1293,41 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	    else
 		    writeToEEPROM(MightyBoard5XEEPROM.ACCELERATION_SETTINGS, b);
    }
+
+	/// Read the planner settings.  Jetty firmware keeps them with the other
+	/// onboard parameters; older firmware keeps them in the AccelerationOffsets
+	/// block, with one junction jerk shared by X and Y.
+	@Override
+	protected AccelerationProfile readAccelerationProfile() {
+		if (getAccelerationStatus() == 0)
+			return null;
+
+		if (hasJettyAcceleration()) {
+			double[] accelerations = new double[] {
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_ACCELERATION_X),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_ACCELERATION_Y),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_ACCELERATION_Z),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_ACCELERATION_A),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_ACCELERATION_B) };
+			double[] speedChanges = new double[] {
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_X),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_Y),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_Z),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_A),
+				getEEPROMParamInt(EEPROMParams.ACCEL_MAX_SPEED_CHANGE_B) };
+			return new AccelerationProfile(accelerations, speedChanges,
+					getEEPROMParamInt(EEPROMParams.ACCEL_MAX_EXTRUDER_NORM), 0);
+		}
+
+		double[] accelerations = new double[5];
+		for (int axis = 0; axis < 5; axis++)
+			accelerations[axis] = getAxisAccelerationRate(axis);
+		double xyJerk = getAxisJerk(0);
+		double[] jerks = new double[] {
+			xyJerk, xyJerk, getAxisJerk(2), getAxisJerk(3), getAxisJerk(4) };
+		return new AccelerationProfile(accelerations, jerks,
+				getAccelerationRate(), getAccelerationMinimumSpeed());
+	}
         
 	public void createThermistorTable(int which, double r0, double t0, double beta) {
 		// Generate a thermistor table for r0 = 100K.
@@ -1528,10 +1564,10 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		offset = toolInfoOffset + offset;
 		Base.logger.finest("readFromToolEEPROM null" + offset +" " + len + " " + toolIndex);
 				
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.READ_EEPROM.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.READ_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(len);
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		if (pr.isOK()) {
 			Base.logger.finest("readFromToolEEPROM ok at: " + offset +" len:" + len + " id:" + toolIndex);			
 			//Base.logger.severe("readFromToolEEPROM ok");
@@ -1806,11 +1842,11 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	public void resetSettingsToFactory() throws RetryException {
 		/// send message to FW to wipe all settings
 		/// except home, wipe locations, and single/dual status
-		PacketBuilder pb = new PacketBuilder( MotherboardCommandCode.RESET_TO_FACTORY.getCode() );
+		PacketBuilder pb = newPacket( MotherboardCommandCode.RESET_TO_FACTORY.getCode() );
 		pb.add8((byte) 0xFF);
 		pb.add8(ToolCommandCode.GET_PLATFORM_SP.getCode());
-		PacketResponse pr = runCommand( pb.getPacket() );
-
+		PacketResponse pr = runCommand(pb);
+		forgetAccelerationProfile();
 	}
 
 	@Override
@@ -1850,11 +1886,11 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 
 	@Override
 	public double getPlatformTemperatureSetting(int toolhead) {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.GET_PLATFORM_SP.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		int sp = pr.get16();
 		machine.getTool(toolhead).setPlatformTargetTemperature(sp);
 		
@@ -1872,7 +1908,7 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		/// and set the timeout only on the last block
         /// send message complete on the last block
 		while (sentTotal < message.length()) {
-			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.DISPLAY_MESSAGE.getCode());
+			PacketBuilder pb = newPacket(MotherboardCommandCode.DISPLAY_MESSAGE.getCode());
 			
 			// if this is the last packet, set timeout and indicate that message is complete
             // set the "wait on button" flag if specified
@@ -1891,16 +1927,16 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 			pb.add8(0); // y coordinate
 			pb.add8((int)seconds); // send timeout only on the last packet
 			sentTotal += pb.addString(message.substring(sentTotal), MAX_MSG_PER_PACKET);
-			runCommand(pb.getPacket());
+			runCommand(pb);
 		}					     
 	}
 	
 	public void sendBuildStartNotification(String buildName, int stepCount)  throws RetryException { 
 		final int MAX_MSG_PER_PACKET = 25;
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.BUILD_START_NOTIFICATION.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.BUILD_START_NOTIFICATION.getCode());
 		pb.add32(stepCount);
 		pb.addString(buildName, MAX_MSG_PER_PACKET);//clips name if it's too big
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	/**
@@ -1909,43 +1945,43 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	 * @throws RetryException
 	 */
 	public void sendBuildEndNotification(int endCode)  throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.BUILD_END_NOTIFICATION.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.BUILD_END_NOTIFICATION.getCode());
 		//BUILD_END_NOTIFICATION(24, "Notify the bot object build is complete."),
 		pb.add8(endCode);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	///
 	public void updateBuildPercent(int percentDone) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.SET_BUILD_PERCENT.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.SET_BUILD_PERCENT.getCode());
 		pb.add8(percentDone);
 		pb.add8(0xff);///reserved
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	/// Tells the bot to queue a pre-canned song.
 	public void playSong(int songId) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_SONG.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.QUEUE_SONG.getCode());
 		pb.add8(songId);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	public void userPause(double seconds, boolean resetOnTimeout, int buttonMask) throws RetryException {
 		int options = resetOnTimeout?1:0;
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.PAUSE_FOR_BUTTON.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.PAUSE_FOR_BUTTON.getCode());
 		pb.add8(0xff); // buttonMask);
 		pb.add16((int)seconds);
 		pb.add8(options);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	@Override
 	public double getTemperatureSetting(int toolhead) {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.GET_SP.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		int sp = pr.get16();
 		machine.getTool(toolhead).setTargetTemperature(sp);
 		
@@ -1988,12 +2024,12 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 
 		// send it!
 		if (this.machine.getTool(toolhead).getTargetTemperature() > 0.0) {
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.WAIT_FOR_TOOL.getCode());
 			pb.add8((byte) toolhead);
 			pb.add16(100); // delay between master -> slave pings (millis)
 			pb.add16(timeout); // timeout before continuing (seconds)
-			runCommand(pb.getPacket());
+			runCommand(pb);
 		}
 
 		///hack, since we have one HBP on the Replicator for now, search-grab that and heat it at any toolchange.
@@ -2006,12 +2042,12 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 		}
 		
 		if(needsToHeatHPB && toolheadWithHBP > -1 ) {
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.WAIT_FOR_PLATFORM.getCode());
 			pb.add8((byte) toolheadWithHBP );
 			pb.add16(100); // delay between master -> slave pings (millis)
 			pb.add16(timeout); // timeout before continuing (seconds)
-			runCommand(pb.getPacket());
+			runCommand(pb);
 		}
 		
 	}
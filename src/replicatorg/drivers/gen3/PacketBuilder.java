@@ -15,7 +15,8 @@ public class PacketBuilder implements PacketConstants {
 	// and packet payload length.
 	int idx = 2;
 
-	IButtonCrc crc = new IButtonCrc();
+	// Set while the builder waits in a driver's spares, so it's never put there twice
+	boolean spare = false;
 
 	/**
 	 * Start building a new command packet.
@@ -26,10 +27,19 @@ public class PacketBuilder implements PacketConstants {
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
-		idx = 2;
 		data[0] = START_BYTE;
+		reset(command);
+	}
+
+	/**
+	 * Empty the packet and start building another, so the builder can be
+	 * used again without allocating.
+	 */
+	PacketBuilder reset(int command) {
+		idx = 2;
 		// data[1] = length; // just to avoid confusion
 		add8((byte) command);
+		return this;
 	}
 
 	/**
@@ -40,7 +50,6 @@ public class PacketBuilder implements PacketConstants {
 	 */
 	void add8(int v) {
 		data[idx++] = (byte) v;
-		crc.update((byte) v);
 	}
 
 	/**
@@ -105,11 +114,23 @@ public class PacketBuilder implements PacketConstants {
 	 * @return a byte array representing the completed packet.
 	 */
 	byte[] getPacket() {
-		data[idx] = crc.getCrc();
-		data[1] = (byte) (idx - 2); // len does not count packet header
-		byte[] rv = new byte[idx + 1];
-		System.arraycopy(data, 0, rv, 0, idx + 1);
+		int length = finish();
+		byte[] rv = new byte[length];
+		System.arraycopy(data, 0, rv, 0, length);
 		return rv;
 	}
 
+	/**
+	 * Complete the packet in place, at the start of data, so it can be sent
+	 * from there instead of from a new array.  The CRC is taken over the
+	 * payload in one go.
+	 * 
+	 * @return the length of the packet
+	 */
+	int finish() {
+		data[1] = (byte) (idx - 2); // len does not count packet header
+		data[idx] = IButtonCrc.compute(data, 2, idx - 2);
+		return idx + 1;
+	}
+
 }
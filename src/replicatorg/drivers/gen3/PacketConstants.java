@@ -3,4 +3,6 @@ package replicatorg.drivers.gen3;
 public interface PacketConstants {
 	/** The start byte that opens every packet. */
 	public final static byte START_BYTE = (byte) 0xD5;
+	/** The longest payload a packet's length byte can give. */
+	public final static int MAX_PAYLOAD_LENGTH = 255;
 }
@@ -1,5 +1,8 @@
 package replicatorg.drivers.gen3;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.logging.Level;
 
 import replicatorg.app.Base;
@@ -7,7 +10,9 @@ import replicatorg.app.tools.IButtonCrc;
 
 /**
  * A class for keeping track of the state of an incoming packet and storing
- * its payload.
+ * its payload.  The payload goes into a buffer kept from packet to packet,
+ * so a processor can be reset() and used for every response on a port
+ * without allocating anything.
  */
 public class PacketProcessor implements PacketConstants {
 	
@@ -34,30 +39,77 @@ public class PacketProcessor implements PacketConstants {
 
 	int payloadIdx = 0;
 
-	byte[] payload;
+	final byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	final IButtonCrc crc = new IButtonCrc();
+
+	// Whether to log every byte; looked up once per packet, not once per byte
+	private boolean tracing = Base.serialLogger.isLoggable(Level.FINER);
 
 	/**
-	 * Reset the packet's state. (The crc is (re-)generated on the length byte
-	 * and thus doesn't need to be reset.(
+	 * Reset the packet's state, to read another. (The crc is reset on the
+	 * length byte.)
 	 */
 	public void reset() {
 		packetState = PacketState.START;
+		payloadLength = -1;
+		payloadIdx = 0;
+		tracing = Base.serialLogger.isLoggable(Level.FINER);
+	}
+
+	/**
+	 * How many more bytes it takes at least to finish the packet, so they
+	 * can all be waited for at once.
+	 */
+	public int bytesNeeded() {
+		switch (packetState) {
+		case START:
+			// The start byte and the length
+			return 2;
+		case PAYLOAD:
+			// The rest of the payload and the CRC
+			return payloadLength - payloadIdx + 1;
+		default:
+			return 1;
+		}
 	}
 
 	/**
-	 * Create a PacketResponse object that contains this packet's payload.
+	 * Create a PacketResponse object that contains a copy of this packet's
+	 * payload, to be read after the processor has gone on to the next.
 	 * 
 	 * @return A valid PacketResponse object
 	 */
 	public PacketResponse getResponse() {
-		PacketResponse pr = new PacketResponse(payload);
+		if (payloadLength < 0) {
+			// Nothing came
+			return new PacketResponse();
+		}
+		PacketResponse pr = new PacketResponse(Arrays.copyOf(payload, payloadLength));
 		return pr;
 	}
 
+	/**
+	 * Read the response code of the packet just processed, without copying it
+	 * out into a PacketResponse.
+	 */
+	public PacketResponse.ResponseCode getResponseCode() {
+		if (payloadLength <= 0)
+			return PacketResponse.ResponseCode.GENERIC_ERROR;
+		return PacketResponse.ResponseCode.fromInt(payload[0] & 0xff);
+	}
+
+	/**
+	 * A view of the payload of the packet just processed, in the protocol's
+	 * byte order.  It shares the processor's buffer, so it's only good until
+	 * the next reset().
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.wrap(payload, 0, Math.max(0, payloadLength)).slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
 	/**
 	 * Process the next byte in an incoming packet.
 	 * 
@@ -66,13 +118,13 @@ public class PacketProcessor implements PacketConstants {
 	 */
 	public boolean processByte(byte b) throws CRCException {
 
-		if (Base.logger.isLoggable(Level.FINER)) {
+		if (tracing) {
 			if (b >= 32 && b <= 127)
-				Base.logger.log(Level.FINER,"IN: Processing byte "
+				Base.serialLogger.log(Level.FINER,"IN: Processing byte "
 						+ Integer.toHexString((int) b & 0xff) + " (" + (char) b
 						+ ")");
 			else
-				Base.logger.log(Level.FINER,"IN: Processing byte "
+				Base.serialLogger.log(Level.FINER,"IN: Processing byte "
 						+ Integer.toHexString((int) b & 0xff));
 		}
 
@@ -86,13 +138,13 @@ public class PacketProcessor implements PacketConstants {
 			break;
 
 		case LEN:
-			if (Base.logger.isLoggable(Level.FINER)) {
-				Base.logger.log(Level.FINER,"Length: " + (int) b);
+			if (tracing) {
+				Base.serialLogger.log(Level.FINER,"Length: " + (int) b);
 			}
 
 			payloadLength = ((int) b) & 0xFF;
-			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			payloadIdx = 0;
+			crc.reset();
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
@@ -110,8 +162,8 @@ public class PacketProcessor implements PacketConstants {
 		case CRC:
 			targetCrc = b;
 
-			if (Base.logger.isLoggable(Level.FINER)) {
-				Base.logger.log(Level.FINER,"Target CRC: "
+			if (tracing) {
+				Base.serialLogger.log(Level.FINER,"Target CRC: "
 						+ Integer.toHexString((int) targetCrc & 0xff)
 						+ " - expected CRC: "
 						+ Integer.toHexString((int) crc.getCrc() & 0xff));
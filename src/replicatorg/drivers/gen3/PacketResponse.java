@@ -154,9 +154,11 @@ public class PacketResponse {
 		else return ResponseCode.GENERIC_ERROR;
 	}
 
+	// repeated 1s to fake out queries; shared, as responses are never written to
+	private static final byte[] OK_PAYLOAD = {1,1,1,1,1,1,1,1};
+
 	public static PacketResponse okResponse() {
-		final byte[] okPayload = {1,1,1,1,1,1,1,1}; // repeated 1s to fake out queries
-		return new PacketResponse(okPayload);
+		return new PacketResponse(OK_PAYLOAD);
 	}
 
 	public static PacketResponse timeoutResponse() {
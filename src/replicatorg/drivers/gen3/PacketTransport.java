@@ -0,0 +1,305 @@
+package replicatorg.drivers.gen3;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.RetryException;
+
+/**
+ * Sends packets to the machine from a thread of its own, so that the thread
+ * making them can parse and encode the next commands while the current one
+ * is on the wire and waiting for its response.
+ *
+ * Commands only ever answer with a response code, so they are queued and
+ * the sender carries on at once; the transport sends them in order, one at
+ * a time, as the protocol requires, and keeps sending one the firmware has
+ * no room for until it goes through.  If the queue is full, the sender is
+ * told to retry rather than made to wait, so it can get on with a stop or
+ * a pause meanwhile.  A command the firmware turns down is reported to the
+ * driver, as its sender has long since moved on.
+ *
+ * Queries wait for their answer, and go ahead of the queued commands, even
+ * one being sent again and again while the firmware is busy heating; the
+ * firmware answers them at once in any case, without waiting for the
+ * commands it already has.  The few that change what the firmware does
+ * with the commands before them, such as ending a capture to its SD card,
+ * go behind the queued commands instead.
+ *
+ * Each queued command is copied into one of a fixed set of buffers, so the
+ * sender can build the next in the same builder, and queuing one allocates
+ * nothing.
+ */
+class PacketTransport implements Runnable {
+
+	/// Commands that may be waiting to be sent before the sender is told to retry
+	static final int RING_SIZE = 64;
+	/// Shortest and longest pause before sending a command the firmware had no room for again
+	static final long MIN_RETRY_PAUSE_MILLIS = 1;
+	static final long MAX_RETRY_PAUSE_MILLIS = 20;
+
+	// A packet on its way, and what came back for it
+	private static class Request {
+		final byte[] packet;
+		int length;
+		int retries;
+		final boolean command;
+		PacketResponse response = null;
+		boolean retry = false;
+		boolean done = false;
+
+		// A buffer for commands, filled in each time it's queued
+		Request() {
+			packet = new byte[PacketBuilder.MAX_PACKET_LENGTH];
+			command = true;
+		}
+
+		// A query, with a copy of its packet, in case its sender gives up on it
+		Request(byte[] packet, int length, int retries) {
+			this.packet = Arrays.copyOf(packet, length);
+			this.length = length;
+			this.retries = retries;
+			this.command = false;
+		}
+	}
+
+	private final Sanguino3GDriver driver;
+	private final Thread thread;
+
+	// Everything below is guarded by this
+	private final ArrayDeque<Request> ring = new ArrayDeque<Request>(RING_SIZE);
+	private final ArrayDeque<Request> urgent = new ArrayDeque<Request>();
+	// Buffers for commands: enough for a full ring and one on the wire
+	private final ArrayDeque<Request> spare = new ArrayDeque<Request>(RING_SIZE + 1);
+	private Request inFlight = null;
+	private boolean running = true;
+	// Bumped when queued commands are dropped, so the one being sent gives up too
+	private int generation = 0;
+
+	PacketTransport(Sanguino3GDriver driver) {
+		this.driver = driver;
+		thread = new Thread(this, "S3G Transport");
+		thread.setDaemon(true);
+		for (int i = 0; i <= RING_SIZE; i++) {
+			spare.add(new Request());
+		}
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	boolean isTransportThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/// Queries that have to follow the commands queued before them
+	static boolean isOrdered(byte[] packet) {
+		int code = packet[2] & 0xff;
+		return code == MotherboardCommandCode.CAPTURE_TO_FILE.getCode()
+				|| code == MotherboardCommandCode.END_CAPTURE.getCode()
+				|| code == MotherboardCommandCode.PLAYBACK_CAPTURE.getCode();
+	}
+
+	/// Whether there are commands the firmware hasn't taken yet
+	synchronized boolean hasPendingCommands() {
+		return !ring.isEmpty() || (inFlight != null && inFlight.command);
+	}
+
+	/**
+	 * Send a packet.  A command is queued and an OK response returned
+	 * straight away; a query waits for its response.
+	 * @throws RetryException if the queue of commands is full, or the
+	 * firmware had no room for a query
+	 */
+	PacketResponse send(byte[] packet, int length, int retries, boolean command) throws RetryException {
+		if (command) {
+			synchronized (this) {
+				if (!running) {
+					return PacketResponse.timeoutResponse();
+				}
+				Request request = spare.poll();
+				if (request == null) {
+					throw new RetryException();
+				}
+				System.arraycopy(packet, 0, request.packet, 0, length);
+				request.length = length;
+				request.retries = retries;
+				ring.add(request);
+				notifyAll();
+			}
+			return PacketResponse.okResponse();
+		}
+
+		Request request = new Request(packet, length, retries);
+		synchronized (this) {
+			if (!running) {
+				return PacketResponse.timeoutResponse();
+			}
+			if (isOrdered(packet)) {
+				ring.add(request);
+			} else {
+				urgent.add(request);
+			}
+			notifyAll();
+			try {
+				while (running && !request.done) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				// Being stopped; whatever the answer is, nobody wants it now
+				Thread.currentThread().interrupt();
+				return new PacketResponse();
+			}
+		}
+		if (!request.done) {
+			return PacketResponse.timeoutResponse();
+		}
+		if (request.retry) {
+			throw new RetryException();
+		}
+		return request.response;
+	}
+
+	/// Drop all the commands that haven't been sent yet
+	synchronized void clear() {
+		Iterator<Request> i = ring.iterator();
+		while (i.hasNext()) {
+			Request request = i.next();
+			if (request.command) {
+				i.remove();
+				spare.add(request);
+			}
+		}
+		generation++;
+		notifyAll();
+	}
+
+	/// Drop anything not yet sent, and stop once the packet on the wire is done
+	void close() {
+		synchronized (this) {
+			running = false;
+			ring.clear();
+			urgent.clear();
+			generation++;
+			notifyAll();
+		}
+		if (!isTransportThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Request request;
+			int sending;
+			synchronized (this) {
+				while (running && ring.isEmpty() && urgent.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Only close() stops us
+					}
+				}
+				if (!running) {
+					return;
+				}
+				request = urgent.isEmpty() ? ring.poll() : urgent.poll();
+				inFlight = request;
+				sending = generation;
+			}
+			if (request.command) {
+				sendCommand(request, sending);
+			} else {
+				sendQuery(request);
+			}
+		}
+	}
+
+	// Send a command until the firmware takes it, answering queries between tries
+	private void sendCommand(Request request, int sending) {
+		PacketResponse response = null;
+		long pause = MIN_RETRY_PAUSE_MILLIS;
+		try {
+			while (true) {
+				try {
+					response = driver.transmit(request.packet, request.length, request.retries);
+					break;
+				} catch (RetryException e) {
+					// The firmware had no room; keep at it unless it's been dropped,
+					// giving it a moment to make room before each try
+					long hint = e.getRetryAfterMillis();
+					synchronized (this) {
+						if (running && generation == sending && urgent.isEmpty()) {
+							try {
+								wait(Math.min(hint > 0 ? hint : pause, MAX_RETRY_PAUSE_MILLIS));
+							} catch (InterruptedException ie) {
+								// Only close() stops us
+							}
+						}
+						if (!running || generation != sending) {
+							break;
+						}
+					}
+					sendQueries();
+					pause = Math.min(2 * pause, MAX_RETRY_PAUSE_MILLIS);
+				}
+			}
+		} catch (RuntimeException e) {
+			Base.logger.severe("Error sending packet: " + e);
+			response = PacketResponse.timeoutResponse();
+		}
+
+		// Its sender has moved on, so the driver hears of it instead
+		if (response != null && !response.isOK()) {
+			driver.commandFailed(request.packet, response);
+		}
+		synchronized (this) {
+			inFlight = null;
+			spare.add(request);
+			notifyAll();
+		}
+	}
+
+	// Send the queries that came in while a command was waiting for room
+	private void sendQueries() {
+		while (true) {
+			Request query;
+			synchronized (this) {
+				query = urgent.poll();
+			}
+			if (query == null) {
+				return;
+			}
+			sendQuery(query);
+		}
+	}
+
+	private void sendQuery(Request request) {
+		PacketResponse response = null;
+		boolean retry = false;
+		try {
+			response = driver.transmit(request.packet, request.length, request.retries);
+		} catch (RetryException e) {
+			retry = true;
+		} catch (RuntimeException e) {
+			Base.logger.severe("Error sending packet: " + e);
+			response = PacketResponse.timeoutResponse();
+		}
+
+		synchronized (this) {
+			request.response = response;
+			request.retry = retry;
+			request.done = true;
+			if (inFlight == request) {
+				inFlight = null;
+			}
+			notifyAll();
+		}
+	}
+}
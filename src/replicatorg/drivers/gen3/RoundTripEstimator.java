@@ -0,0 +1,101 @@
+package replicatorg.drivers.gen3;
+
+/**
+ * Learns how long the machine takes to answer a packet, and so how long to
+ * wait for an answer before giving up on it and sending the packet again.
+ *
+ * As TCP does (RFC 6298), we keep a smoothed round trip time and its mean
+ * deviation, and wait for the smoothed time plus four deviations.  Each
+ * class of packet learns separately, since a query is answered at once but
+ * an EEPROM write can take much longer.  Waits double after a timeout, and
+ * aren't learned from a packet that was sent more than once, since we
+ * can't tell which sending an answer is to.
+ *
+ * Commands are timed but always get the whole wait.  S3G packets carry no
+ * sequence number, so a command sent again because its answer was late
+ * would be run twice: a move made twice, or twice the filament pushed out.
+ * For the same reason, an answer that comes after we've given up on it
+ * would be taken for the answer to the next packet, so after a timeout the
+ * driver waits a while longer and throws away whatever turns up.
+ */
+class RoundTripEstimator {
+
+	/// Kinds of packets that take different times to answer
+	enum PacketClass {
+		/// Queries the motherboard answers itself
+		QUERY,
+		/// Queries passed on to a toolhead, which answers much more slowly
+		TOOL_QUERY,
+		MOTION,
+		EEPROM;
+
+		static PacketClass of(byte[] packet) {
+			int code = packet[2] & 0xff;
+			if (code == MotherboardCommandCode.READ_EEPROM.getCode()
+					|| code == MotherboardCommandCode.WRITE_EEPROM.getCode()) {
+				return EEPROM;
+			}
+			if (code == MotherboardCommandCode.TOOL_QUERY.getCode()) {
+				return TOOL_QUERY;
+			}
+			return (code & 0x80) != 0 ? MOTION : QUERY;
+		}
+	}
+
+	/// Never wait less than this, to allow for USB latency and the odd slow answer
+	static final int MIN_TIMEOUT_MILLIS = 30;
+
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+
+	// The longest wait, which is what we waited before we learned anything
+	private final int maxTimeout;
+
+	private final double[] smoothed = new double[PacketClass.values().length];
+	private final double[] deviation = new double[PacketClass.values().length];
+	private final int[] timeout = new int[PacketClass.values().length];
+
+	RoundTripEstimator(int maxTimeoutMillis) {
+		maxTimeout = Math.max(maxTimeoutMillis, MIN_TIMEOUT_MILLIS);
+		for (int i = 0; i < timeout.length; i++) {
+			smoothed[i] = -1;
+			timeout[i] = maxTimeout;
+		}
+	}
+
+	/// How long to wait for an answer to a packet of this class, in ms
+	synchronized int getTimeout(PacketClass c) {
+		if (c == PacketClass.MOTION) {
+			return maxTimeout;
+		}
+		return timeout[c.ordinal()];
+	}
+
+	/// A packet sent once was answered after this long
+	synchronized void sample(PacketClass c, double rttMillis) {
+		int i = c.ordinal();
+		if (smoothed[i] < 0) {
+			smoothed[i] = rttMillis;
+			deviation[i] = rttMillis / 2.0;
+		} else {
+			deviation[i] = (1 - BETA) * deviation[i] + BETA * Math.abs(smoothed[i] - rttMillis);
+			smoothed[i] = (1 - ALPHA) * smoothed[i] + ALPHA * rttMillis;
+		}
+		timeout[i] = clamp(Math.ceil(smoothed[i] + 4 * deviation[i]));
+	}
+
+	/// No answer came in time; wait longer next time
+	synchronized void timedOut(PacketClass c) {
+		int i = c.ordinal();
+		timeout[i] = clamp(2.0 * timeout[i]);
+	}
+
+	/// The smoothed round trip time of a class, in ms, or -1 if nothing's been answered yet
+	synchronized double getRoundTripTime(PacketClass c) {
+		return smoothed[c.ordinal()];
+	}
+
+	private int clamp(double millis) {
+		return (int)Math.max(MIN_TIMEOUT_MILLIS, Math.min(maxTimeout, millis));
+	}
+}
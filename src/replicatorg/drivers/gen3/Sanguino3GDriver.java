@@ -23,11 +23,14 @@
 
 package replicatorg.drivers.gen3;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.EnumSet;
@@ -38,6 +41,7 @@ import java.util.logging.Level;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.drivers.AccelerationProfile;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
@@ -111,6 +115,33 @@ public class Sanguino3GDriver extends SerialDriver implements
         
         protected boolean acceleratedFirmware = false;
 
+	/// Tracks the room in the firmware's command buffer, or null to just send and retry
+	private CommandBufferTracker bufferTracker = null;
+
+	/// Sends packets from its own thread while we get on with the next, or null to send them ourselves
+	private PacketTransport transport = null;
+
+	/// Learns how long to wait for each kind of answer, or null to always wait the serial timeout
+	private RoundTripEstimator roundTrip = null;
+	// The serial timeout we started with, which the estimator never goes past
+	private int baseTimeout;
+
+	/// The planner settings, read from the EEPROM once per connection
+	private volatile AccelerationProfile accelerationProfile = null;
+	private volatile boolean accelerationProfileRead = false;
+
+	// Builders each thread has sent with and can build its next packets in
+	private final ThreadLocal<ArrayDeque<PacketBuilder>> spareBuilders = new ThreadLocal<ArrayDeque<PacketBuilder>>() {
+		@Override
+		protected ArrayDeque<PacketBuilder> initialValue() {
+			return new ArrayDeque<PacketBuilder>();
+		}
+	};
+
+	// Kept for reading every response, under the serial lock
+	private final PacketProcessor responseProcessor = new PacketProcessor();
+	private final byte[] responseBuffer = new byte[PacketConstants.MAX_PAYLOAD_LENGTH + 3];
+
 	public Sanguino3GDriver() {
 		super();
 		hasEmergencyStop = true;
@@ -165,6 +196,29 @@ public class Sanguino3GDriver extends SerialDriver implements
 			if(acceleratedFirmware){
 				serial.setTimeout(200);
 			}
+			// Rather than fill the buffer and have commands bounce off it
+			if (Base.preferences.getBoolean("build.flowControl", true)) {
+				bufferTracker = new CommandBufferTracker(this);
+			} else {
+				bufferTracker = null;
+			}
+			// Learn how quickly this machine answers, rather than always
+			// waiting the whole timeout.  Old firmware that's given forever
+			// to answer keeps it.
+			baseTimeout = serial.getTimeout();
+			if (Base.preferences.getBoolean("build.adaptiveTimeouts", true)
+					&& baseTimeout < Integer.MAX_VALUE) {
+				roundTrip = new RoundTripEstimator(baseTimeout);
+				pipelineStats.setQueryRoundTrip(-1, getQueryTimeout());
+			} else {
+				roundTrip = null;
+				pipelineStats.setQueryRoundTrip(-1, -1);
+			}
+			closeTransport();
+			if (Base.preferences.getBoolean("build.pipelinedTransport", true)) {
+				transport = new PacketTransport(this);
+				transport.start();
+			}
 			invalidatePosition();
 
 			return;
@@ -274,6 +328,30 @@ public class Sanguino3GDriver extends SerialDriver implements
 		}
 	}
 
+	/**
+	 * Start building a packet.  The builder is one this thread has sent a
+	 * packet with before, if there is one, so building allocates nothing;
+	 * it goes back to be used again once its packet is sent with
+	 * runCommand(PacketBuilder) or runQuery(PacketBuilder), and mustn't be
+	 * touched after that.
+	 */
+	protected PacketBuilder newPacket(int command) {
+		PacketBuilder pb = spareBuilders.get().poll();
+		if (pb == null) {
+			return new PacketBuilder(command);
+		}
+		pb.spare = false;
+		return pb.reset(command);
+	}
+
+	// Done with a builder; keep it for this thread's next packet
+	private void releasePacket(PacketBuilder pb) {
+		if (!pb.spare) {
+			pb.spare = true;
+			spareBuilders.get().push(pb);
+		}
+	}
+
 	/**
 	 * Sends the command over the serial connection and retrieves a result.
 	 */
@@ -281,6 +359,18 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return runCommand(packet, DEFAULT_RETRIES);
 	}
 
+	protected PacketResponse runCommand(PacketBuilder pb) throws RetryException {
+		return runCommand(pb, DEFAULT_RETRIES);
+	}
+
+	protected PacketResponse runCommand(PacketBuilder pb, int retries) throws RetryException {
+		try {
+			return runCommand(pb.data, pb.finish(), retries);
+		} finally {
+			releasePacket(pb);
+		}
+	}
+
 	protected PacketResponse runQuery(byte[] packet, int retries) {
 		try {
 			return runCommand(packet, retries);
@@ -293,6 +383,18 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return runQuery(packet, 1);
 	}
 
+	protected PacketResponse runQuery(PacketBuilder pb, int retries) {
+		try {
+			return runCommand(pb, retries);
+		} catch (RetryException re) {
+			throw new RuntimeException("Queries can not have valid retries!");
+		}
+	}
+
+	protected PacketResponse runQuery(PacketBuilder pb) {
+		return runQuery(pb, 1);
+	}
+
 	//// Get a list of all toolheads we save onboard preferences for 
 	public List<Integer> toolheadsWithStoredData()
 	{
@@ -307,12 +409,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 	
 	void printDebugData(String title, byte[] data) {
+		printDebugData(title, data, data.length);
+	}
+
+	void printDebugData(String title, byte[] data, int length) {
+		if (!Base.serialLogger.isLoggable(Level.FINER)) {
+			return;
+		}
 		StringBuffer buf = new StringBuffer(title + ": ");
-		for (int i = 0; i < data.length; i++) {
+		for (int i = 0; i < length; i++) {
 			buf.append(Integer.toHexString((int) data[i] & 0xff));
 			buf.append(" ");
 		}
-		Base.logger.finer(buf.toString());
+		Base.serialLogger.finer(buf.toString());
 	}
 
 	/**
@@ -320,7 +429,9 @@ public class Sanguino3GDriver extends SerialDriver implements
 	 * the retry exception. A retry is called when packet transmission itself
 	 * failed and we want to try again. The retry exception is thrown when the
 	 * packet was successfully processed, but the buffer was full, indicating to
-	 * the controller that another attempt is warranted.
+	 * the controller that another attempt is warranted.  With flow control on,
+	 * commands wait for room in the buffer first, and the retry exception is
+	 * only thrown, without sending, if no room turns up in a short while.
 	 * 
 	 * If the specified number of retries is negative, the packet will be tried
 	 * -N times, and no logging message will be displayed when the packet times
@@ -334,12 +445,25 @@ public class Sanguino3GDriver extends SerialDriver implements
 	 */
 	protected PacketResponse runCommand(byte[] packet, int retries)
 			throws RetryException {
+		if (packet == null) {
+			Base.logger.severe("Attempt to send empty or too-small packet");
+			return null;
+		}
+		return runCommand(packet, packet.length, retries);
+	}
+
+	/**
+	 * Send the packet at the start of the given array, which may be longer.
+	 * The array isn't held on to after this returns.
+	 */
+	private PacketResponse runCommand(byte[] packet, int length, int retries)
+			throws RetryException {
 
 		if (retries == 0) {
 			Base.logger.severe("Packet timed out!");
 			return PacketResponse.timeoutResponse();
 		}
-		if (packet == null || packet.length < 4) {
+		if (packet == null || length < 4) {
 			Base.logger.severe("Attempt to send empty or too-small packet");
 			return null; // skip empty commands or broken commands
 		}
@@ -350,7 +474,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 			// capture to file.
 			try {
 				if (isCommand) { // ignore query commands
-					fileCaptureOstream.write(packet, 2, packet.length - 3);
+					fileCaptureOstream.write(packet, 2, length - 3);
 				}
 			} catch (IOException ioe) {
 				// IOE should be very rare and shouldn't have to contaminate
@@ -365,8 +489,43 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if (serial == null)
 			return PacketResponse.timeoutResponse();
 
-		PacketProcessor pp;
-		PacketResponse pr = new PacketResponse();
+		// Hand the packet to the transport thread, unless we are it
+		PacketTransport pipeline = transport;
+		if (pipeline != null && !pipeline.isTransportThread()) {
+			return pipeline.send(packet, length, retries, isCommand);
+		}
+		return transmit(packet, length, retries);
+	}
+
+	/**
+	 * Write a packet to the port and read its response.  When the transport
+	 * is pipelined, only its thread gets here.
+	 * @param packet an array starting with the packet, which may be longer
+	 */
+	PacketResponse transmit(byte[] packet, int length, int retries) throws RetryException {
+		return transmit(packet, length, retries, false);
+	}
+
+	/**
+	 * @param resent whether the packet is being sent again after its answer
+	 * didn't come in time, so its round trip isn't learned from
+	 */
+	private PacketResponse transmit(byte[] packet, int length, int retries, boolean resent)
+			throws RetryException {
+		if (retries == 0) {
+			Base.logger.severe("Packet timed out!");
+			return PacketResponse.timeoutResponse();
+		}
+		boolean isCommand = (packet[2] & 0x80) != 0;
+
+		// Hold commands back until the firmware has room for them.  This is
+		// done before taking the port, so queries can still get through.
+		CommandBufferTracker tracker = bufferTracker;
+		if (isCommand && tracker != null && !tracker.waitForRoom(packet)) {
+			throw new RetryException(tracker.drainMillis(packet));
+		}
+
+		PacketProcessor pp = responseProcessor;
 
 		assert (serial != null);
 
@@ -385,35 +544,52 @@ public class Sanguino3GDriver extends SerialDriver implements
 				}
 				// Reestablish interrupt
 				Thread.currentThread().interrupt();
-				return pr;
+				return new PacketResponse();
 			}
 
-			pp = new PacketProcessor();
-			
-			if(packet == null) {
-				Base.logger.severe("null packet in runCommand");
-				return PacketResponse.timeoutResponse();
-			}
+			pp.reset();
 			
 			// This can actually happen during shutdown.
 			if (serial == null){
 				Base.logger.severe("null serial in runCommand");
 				return PacketResponse.timeoutResponse();
 			}
+			// Wait for the answer as long as this kind of packet needs
+			RoundTripEstimator rtt = roundTrip;
+			RoundTripEstimator.PacketClass packetClass = RoundTripEstimator.PacketClass.of(packet);
+
 			// Do not allow a stop or reset command to interrupt mid-packet!
-			serial.write(packet);
+			serial.write(packet, 0, length);
+			long sentNanos = System.nanoTime();
+			long deadline = (rtt != null) ? sentNanos + rtt.getTimeout(packetClass) * 1000000L : 0;
 			
-			printDebugData("OUT", packet);
+			printDebugData("OUT", packet, length);
 
-			// Read entire response packet
+			// Read entire response packet, as much of it at a time as we can
+			byte[] in = responseBuffer;
 			boolean completed = false;
 			while (!completed) {
+				if (rtt != null) {
+					serial.setTimeout((int)Math.max(1, (deadline - System.nanoTime()) / 1000000L));
+				}
 				// Dump out if interrupted
-				int b = serial.read();
-				if (b == -1) {
+				int count = serial.read(in, 0, pp.bytesNeeded());
+				if (rtt != null) {
+					serial.setTimeout(baseTimeout);
+				}
+				if (count <= 0) {
 					if (Thread.currentThread().isInterrupted()) {
 						break;
 					}
+					if (rtt != null) {
+						rtt.timedOut(packetClass);
+						if (packetClass == RoundTripEstimator.PacketClass.QUERY) {
+							pipelineStats.setQueryRoundTrip(getRoundTripTime(), getQueryTimeout());
+						}
+						// The answer may only be late.  Let it come and throw it
+						// away, so it isn't taken for the answer to the next packet.
+						settle(sentNanos);
+					}
 					if (retries > 1) {
                                             
                                             // accelerated Firmware has a low timeout period and times out frequently
@@ -431,36 +607,94 @@ public class Sanguino3GDriver extends SerialDriver implements
 						// silently return a timeout response
 						return PacketResponse.timeoutResponse();
 					} else if (retries < 0) {
-						return runCommand(packet, retries + 1);
+						return transmit(packet, length, retries + 1, true);
 					}
-					return runCommand(packet, retries - 1);
+					return transmit(packet, length, retries - 1, true);
 				}
 				try {
-					completed = pp.processByte((byte) b);
+					for (int i = 0; i < count && !completed; i++) {
+						completed = pp.processByte(in[i]);
+					}
 				} catch (CRCException e) {
+					pipelineStats.crcError();
 					Base.logger.severe("Bad CRC received; retries remaining: "
 							+ Integer.toString(retries));
-					return runCommand(packet, retries - 1);
+					return transmit(packet, length, retries - 1, false);
+				}
+			}
+			if (completed) {
+				long nanos = System.nanoTime() - sentNanos;
+				pipelineStats.roundTrip(nanos);
+				if (rtt != null && !resent) {
+					rtt.sample(packetClass, nanos / 1e6);
+					if (packetClass == RoundTripEstimator.PacketClass.QUERY) {
+						pipelineStats.setQueryRoundTrip(getRoundTripTime(), getQueryTimeout());
+					}
 				}
 			}
-			pr = pp.getResponse();
 
-			if (pr.isOK()) {
+			// Only a query's answer is worth copying out of the processor
+			PacketResponse.ResponseCode code = pp.getResponseCode();
+			if (code == PacketResponse.ResponseCode.OK) {
 				// okay!
-			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
+				if (isCommand && tracker != null) {
+					tracker.sent(packet);
+				}
+				return isCommand ? PacketResponse.okResponse() : pp.getResponse();
+			} else if (code == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
+				pipelineStats.bufferOverflowed();
+				if (tracker != null) {
+					tracker.overflowed(packet);
+				}
 				throw new RetryException();
-			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL){
+			} else if (code == PacketResponse.ResponseCode.CANCEL){
 				Base.getEditor().handleStop(); ///  horrible horrible 
 				Base.logger.severe("Build Canceled by Printer");
 			} else {
 				// Other random error
-				printDebugData("Unknown error sending, retry", packet);
+				printDebugData("Unknown error sending, retry", packet, length);
 				if (retries > 1) {
-					return runCommand(packet, retries - 1);
+					return transmit(packet, length, retries - 1, false);
 				}
 			}
+			return pp.getResponse();
+		}
+	}
+
+	/**
+	 * After a packet whose answer may be late, wait out the timeout we used
+	 * before learning a shorter one and throw away whatever has come in.
+	 * A command has had that long already.  Called with the port held.
+	 * @param sentNanos when the packet was last written
+	 */
+	private void settle(long sentNanos) {
+		long millis = baseTimeout - (System.nanoTime() - sentNanos) / 1000000L;
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		serial.clear();
+	}
+
+	/**
+	 * The firmware turned down a command the transport sent after its
+	 * sender had moved on.  A command it doesn't know is let go, as it
+	 * would have been had it been sent straight away; anything else means
+	 * the build isn't what it should be, so it's reported as an error.
+	 */
+	void commandFailed(byte[] packet, PacketResponse response) {
+		PacketResponse.ResponseCode code = response.getResponseCode();
+		String command = "command 0x" + Integer.toHexString(packet[2] & 0xff);
+		if (code == PacketResponse.ResponseCode.UNSUPPORTED) {
+			Base.logger.warning("Firmware does not support " + command);
+		} else if (code != PacketResponse.ResponseCode.CANCEL) {
+			String message = "Machine did not accept " + command + ": " + code.getMessage();
+			Base.logger.severe(message);
+			setError(new DriverError(message, false));
 		}
-		return pr;
 	}
 
 	static boolean isNotifiedFinishedFeature = false;
@@ -469,9 +703,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if (fileCaptureOstream != null) {
 			return true;
 		} // always done instantly if writing to file
-		PacketBuilder pb = new PacketBuilder(
+		PacketTransport pipeline = transport;
+		if (pipeline != null && pipeline.hasPendingCommands()) {
+			return false;
+		}
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.IS_FINISHED.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		if (!pr.isOK()) {
 			return false;
 		}
@@ -493,9 +731,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 	
 	public boolean isBufferEmpty() {
 		// TODO: Make sure this is right
-		PacketBuilder pb = new PacketBuilder(
+		PacketTransport pipeline = transport;
+		if (pipeline != null && pipeline.hasPendingCommands()) {
+			return false;
+		}
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.IS_FINISHED.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		if (!pr.isOK()) {
 			return false;
 		}
@@ -510,13 +752,62 @@ public class Sanguino3GDriver extends SerialDriver implements
 		}
 		boolean finished = (v != 0);
 		Base.logger.fine("Buffer empty: " + Boolean.toString(finished));
+		if (finished && bufferTracker != null) {
+			bufferTracker.logStatistics();
+		}
+		RoundTripEstimator rtt = roundTrip;
+		if (finished && rtt != null) {
+			for (RoundTripEstimator.PacketClass c : RoundTripEstimator.PacketClass.values()) {
+				Base.logger.fine("Round trip for " + c + ": " + rtt.getRoundTripTime(c)
+						+ "ms, waiting " + rtt.getTimeout(c) + "ms");
+			}
+		}
 		return finished;
 	}
 
+	/**
+	 * The smoothed time the machine takes to answer a query, in ms, or -1 if
+	 * it isn't being measured.
+	 */
+	public double getRoundTripTime() {
+		RoundTripEstimator rtt = roundTrip;
+		return (rtt != null) ? rtt.getRoundTripTime(RoundTripEstimator.PacketClass.QUERY) : -1;
+	}
+
+	/// How long we wait for the answer to a query, in ms
+	public int getQueryTimeout() {
+		RoundTripEstimator rtt = roundTrip;
+		return (rtt != null) ? rtt.getTimeout(RoundTripEstimator.PacketClass.QUERY) : baseTimeout;
+	}
+
+	/**
+	 * Ask the firmware how many bytes are free in its command buffer.
+	 * @return the free space, or -1 if the firmware doesn't say
+	 */
+	long getFreeBufferSpace() {
+		PacketBuilder pb = newPacket(
+				MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		PacketResponse pr = runQuery(pb);
+		if (!pr.isOK()) {
+			return -1;
+		}
+		return pr.get32() & 0xffffffffL;
+	}
+
 	public void dispose() {
+		closeTransport();
 		super.dispose();
 	}
 
+	// Stop the transport thread, dropping anything it hasn't sent
+	private void closeTransport() {
+		PacketTransport pipeline = transport;
+		if (pipeline != null) {
+			transport = null;
+			pipeline.close();
+		}
+	}
+
 	/***************************************************************************
 	 * commands used internally to driver
 	 **************************************************************************/
@@ -527,19 +818,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 	 */
 	public Version getVersionInternal() {
 		
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.VERSION.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.VERSION.getCode());
 		pb.add16(Base.VERSION);
 
-		PacketResponse pr = runQuery(pb.getPacket(), 1);
+		PacketResponse pr = runQuery(pb, 1);
 		if (pr.isEmpty() || !pr.isOK())
 			return null;
 		int versionNum = pr.get16();
 
-		pb = new PacketBuilder(MotherboardCommandCode.GET_BUILD_NAME.getCode());
+		pb = newPacket(MotherboardCommandCode.GET_BUILD_NAME.getCode());
 		pb.add16(Base.VERSION);
 
 		String buildname = "";
-		pr = runQuery(pb.getPacket(), 1);
+		pr = runQuery(pb, 1);
 		if (!pr.isEmpty() && pr.isOK()) {
 			byte[] payload = pr.getPayload();
 			byte[] subarray = new byte[payload.length - 1];
@@ -562,10 +853,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 	public CommunicationStatistics getCommunicationStatistics() {
 		CommunicationStatistics stats = new CommunicationStatistics();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.GET_COMMUNICATION_STATS.getCode());
 
-		PacketResponse pr = runQuery(pb.getPacket(), 1);
+		PacketResponse pr = runQuery(pb, 1);
 		if (pr.isEmpty())
 			return null;
 		stats.packetCount = pr.get32();
@@ -662,9 +953,9 @@ public class Sanguino3GDriver extends SerialDriver implements
 	}
 
 	public void sendInit() {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.INIT.getCode());
-		runQuery(pb.getPacket());
+		runQuery(pb);
 	}
 
 	/***************************************************************************
@@ -735,7 +1026,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 	protected void queueAbsolutePoint(Point5d steps, long micros)
 			throws RetryException {
 		
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
 
 		Base.logger.fine("Queued absolute point " + steps + " at "
@@ -747,7 +1038,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		pb.add32((int) steps.z());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -756,7 +1047,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		// if (super.getCurrentPosition().equals(p)) return;
 		// System.err.println("COMMIT: "+p.toString()+
 		// " (current "+getCurrentPosition().toString()+")");
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.SET_POSITION.getCode());
 
 		Point5d steps = machine.mmToSteps(p);
@@ -766,7 +1057,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		Base.logger.fine("Set current position to " + p + " (" + steps + ")");
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setCurrentPosition(p);
 	}
@@ -805,11 +1096,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		// send it!
 		int code = positive ? MotherboardCommandCode.FIND_AXES_MAXIMUM
 				.getCode() : MotherboardCommandCode.FIND_AXES_MINIMUM.getCode();
-		PacketBuilder pb = new PacketBuilder(code);
+		PacketBuilder pb = newPacket(code);
 		pb.add8(flags);
 		pb.add32((int) micros);
 		pb.add16((int) timeout);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		invalidatePosition();
 	}
@@ -819,10 +1110,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 		Base.logger.fine("Sanguino3GDriver.enableMotor()");//REMOVE:
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.DELAY.getCode());
 		pb.add32(millis);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void openClamp(int clampIndex) {
@@ -839,19 +1130,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 		// Command RMB to enable its steppers. Note that they are
 		// already automagically enabled by most commands and need
 		// not be explicitly enabled.
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.ENABLE_AXES.getCode());
 		pb.add8(0x9f); // enable all 5 axes
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		super.enableDrives();
 	}
 
 	public void disableDrives() throws RetryException {
 		// Command RMB to disable its steppers.
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.ENABLE_AXES.getCode());
 		pb.add8(0x1f); // disable all 5 axes
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		super.disableDrives();
 	}
 
@@ -877,19 +1168,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 	* not be explicitly enabled.
 	*/
 	public void enableAxes(EnumSet<AxisId> axes) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.ENABLE_AXES.getCode());
 		pb.add8(0x80 + (axesToBitfield(axes) & 0x1f)); // enable axes
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		super.enableAxes(axes);
 	}
 
 	/// Command machine to disable some steppers.
 	public void disableAxes(EnumSet<AxisId> axes) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.ENABLE_AXES.getCode());
 		pb.add8(axesToBitfield(axes) & 0x1f); // disable axes
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		super.disableAxes(axes);
 	}
 
@@ -915,12 +1206,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		// send it!
 		if (this.machine.getTool(toolhead).getTargetTemperature() > 0.0) {
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.WAIT_FOR_TOOL.getCode());
 			pb.add8((byte) toolhead);
 			pb.add16(100); // delay between master -> slave pings (millis)
 			pb.add16(timeout); // timeout before continuing (seconds)
-			runCommand(pb.getPacket());
+			runCommand(pb);
 		}
 
 		
@@ -932,12 +1223,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if (this.machine.getTool(toolhead) != null
 				&& this.machine.getTool(toolhead).hasHeatedPlatform()
 				&& this.machine.getTool(toolhead).getPlatformTargetTemperature() > 0.0) {
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.WAIT_FOR_PLATFORM.getCode());
 			pb.add8((byte) toolhead);
 			pb.add16(100); // delay between master -> slave pings (millis)
 			pb.add16(timeout); // timeout before continuing (seconds)
-			runCommand(pb.getPacket());
+			runCommand(pb);
 		}
 	}
 
@@ -946,10 +1237,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 		Base.logger.fine("Selecting tool #" + toolIndex);
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.CHANGE_TOOL.getCode());
 		pb.add8((byte) toolIndex);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.selectTool(toolIndex);
 	}
@@ -972,13 +1263,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 				+ microseconds + " microseconds)");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.SET_MOTOR_1_RPM.getCode());
 		pb.add8((byte) 4); // length of payload.
 		pb.add32(microseconds);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		//TRICKY: WAS 'super.setMotorRPM(rpm);', but this seems not to work right.
 		// Seems to set default motor value(motorSpeedRPM , not 'running' motor
@@ -1008,13 +1299,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		Base.logger.fine("Setting motor 1 speed to " + pwm + " PWM");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.SET_MOTOR_1_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
 		pb.add8((byte) ((pwm > 255) ? 255 : pwm));
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setMotorSpeedPWM(pwm, toolhead);
 	}
@@ -1041,13 +1332,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		Base.logger.fine("Toggling motor 1 w/ flags: " + Integer.toBinaryString(flags));
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.enableMotor(toolhead);
 	}
@@ -1065,13 +1356,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		Base.logger.finer("Disabling motor 1");
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_1.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.disableMotor(toolhead);
 	}
@@ -1085,11 +1376,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.GET_MOTOR_1_PWM.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 
 		pr.printDebug();
 		// get it
@@ -1113,11 +1404,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte)toolhead);
 		pb.add8(ToolCommandCode.GET_MOTOR_1_RPM.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 
 		// convert back to RPM
 		long micros = pr.get32();
@@ -1144,11 +1435,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.GET_TOOL_STATUS.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		if (pr.isEmpty())
 			return;
 		// FIXME: First, check that the result code is OK. We occasionally
@@ -1191,11 +1482,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.TOOL_QUERY.getCode());
 			pb.add8((byte) toolhead );
 			pb.add8(ToolCommandCode.GET_PID_STATE.getCode());
-			PacketResponse pr = runQuery(pb.getPacket());
+			PacketResponse pr = runQuery(pb);
 			if (pr.isEmpty())
 				return;
 			// FIXME: First, check that the result code is OK. We occasionally
@@ -1267,13 +1558,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 				+ " degrees");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(command);
 		pb.add8((byte) 1); // length of payload.
 		pb.add8((byte) degree);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		// super.setServoPos(degree);
 
@@ -1301,13 +1592,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 				+ microseconds + " microseconds)");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.SET_MOTOR_2_RPM.getCode());
 		pb.add8((byte) 4); // payload length
 		pb.add32(microseconds);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setSpindleRPM(rpm, toolhead);
 	}
@@ -1325,13 +1616,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		Base.logger.fine("Setting motor 2 speed to " + pwm + " PWM");
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.SET_MOTOR_2_PWM.getCode());
 		pb.add8((byte) 1); // length of payload.
 		pb.add8((byte) pwm);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setSpindleSpeedPWM(pwm, toolhead);
 	}
@@ -1357,13 +1648,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 				+ Integer.toBinaryString(flags));
 
 		// send it!
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_2.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.enableSpindle(toolhead);
 	}
@@ -1385,13 +1676,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		Base.logger.fine("Disabling motor 2");
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.TOGGLE_MOTOR_2.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8(flags);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.disableSpindle(toolhead);
 	}
@@ -1406,11 +1697,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.GET_MOTOR_2_RPM.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 
 		// convert back to RPM
 		long micros = pr.get32();
@@ -1434,11 +1725,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.GET_MOTOR_2_PWM.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 
 		// get it
 		int pwm = pr.get8();
@@ -1472,13 +1763,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		Base.logger.fine("Setting temperature to " + temp + "C");
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.SET_TEMP.getCode());
 		pb.add8((byte) 2); // payload length
 		pb.add16(temp);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setTemperature(temperature, toolhead);
 	}
@@ -1505,11 +1796,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte)toolhead);
 		pb.add8(ToolCommandCode.GET_TEMP.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		if (pr.getResponseCode() == PacketResponse.ResponseCode.TIMEOUT)
 			Base.logger.finer("timeout reading temp");
 		else if (pr.isEmpty())
@@ -1549,12 +1840,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 		temp = Math.min(temp, 65535);
 		Base.logger.fine("Setting platform temperature to " + temp + "C");
 
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_COMMAND.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.SET_PLATFORM_TEMP.getCode());
 		pb.add8((byte) 2); // payload length
 		pb.add16(temp);
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		
 		machine.getTool(toolhead).setPlatformTargetTemperature(temperature);
 
@@ -1578,11 +1869,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.GET_PLATFORM_TEMP.getCode());
 		
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		if (pr.isEmpty()) return;
 		int temp = pr.get16();
 		machine.getTool(toolhead).setPlatformCurrentTemperature(temp);
@@ -1650,14 +1941,14 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		Base.logger.fine("Enabling fan");
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead);
 		Base.logger.fine("Tool index " +toolhead );
 		pb.add8(ToolCommandCode.TOGGLE_FAN.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 1); // enable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 		super.enableFan(toolhead);
 	}
 
@@ -1672,13 +1963,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		Base.logger.fine("Disabling fan");
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.TOGGLE_FAN.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 0); // disable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.disableFan(toolhead);
 	}
@@ -1697,13 +1988,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		Base.logger.fine("Toggling ABP to " + state);
 		byte newState = state ? (byte) 1 : (byte) 0;
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.TOGGLE_ABP.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) newState); // enable(1)disable(0)
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.setAutomatedBuildPlatformRunning(state, toolhead);
 
@@ -1726,13 +2017,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead );
 		pb.add8(ToolCommandCode.TOGGLE_VALVE.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 1); // enable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.openValve(toolhead);
 	}
@@ -1750,13 +2041,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 		/// toolhead -1 indicate auto-detect.Fast hack to get software out..
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.TOOL_COMMAND.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.TOGGLE_VALVE.getCode());
 		pb.add8((byte) 1); // payload length
 		pb.add8((byte) 0); // disable
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		super.closeValve(toolhead);
 	}
@@ -1781,18 +2072,18 @@ public class Sanguino3GDriver extends SerialDriver implements
 	 **************************************************************************/
 	public void pause() {
 		Base.logger.fine("Sending asynch pause command");
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.PAUSE.getCode());
-		runQuery(pb.getPacket());
+		runQuery(pb);
 	}
 
 	public void unpause() {
 		Base.logger.fine("Sending asynch unpause command");
 		// There is no explicit unpause command on the Sanguino3G; instead we
 		// use the pause command to toggle the pause state.
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.PAUSE.getCode());
-		runQuery(pb.getPacket());
+		runQuery(pb);
 	}
 
 	/***************************************************************************
@@ -1865,17 +2156,26 @@ public class Sanguino3GDriver extends SerialDriver implements
 		PacketBuilder pb;
 		if (!abort && version.atLeast(extendedStopVersion)) {
 			Base.logger.fine("Stop motion.");
-			pb = new PacketBuilder(
+			pb = newPacket(
 					MotherboardCommandCode.EXTENDED_STOP.getCode());
 			// Clear command queue and stop motion
 			pb.add8(1 << 0 | 1 << 1);
 
 		} else {
 			Base.logger.fine("Stop all.");
-			pb = new PacketBuilder(MotherboardCommandCode.ABORT.getCode());
+			pb = newPacket(MotherboardCommandCode.ABORT.getCode());
 		}
 		Thread.interrupted(); // Clear interrupted status
-		runQuery(pb.getPacket());
+		// Commands we haven't sent yet go the same way as the firmware's queue
+		PacketTransport pipeline = transport;
+		if (pipeline != null) {
+			pipeline.clear();
+		}
+		runQuery(pb);
+		// The queue was thrown away, so what we knew of its space is wrong
+		if (bufferTracker != null) {
+			bufferTracker.reset();
+		}
 		// invalidate position, force reconciliation.
 		invalidatePosition();
 	}
@@ -1886,9 +2186,9 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if (fileCaptureOstream != null) {
 			return null;
 		}
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.GET_POSITION.getCode());
-		PacketResponse pr = runCommand(pb.getPacket());
+		PacketResponse pr = runCommand(pb);
 		Point5d steps = new Point5d(pr.get32(), pr.get32(), pr.get32(), 0, 0);
 		// Useful quickie debugs
 		// System.err.println("Reconciling : "+machine.stepsToMM(steps).toString());
@@ -1898,15 +2198,21 @@ public class Sanguino3GDriver extends SerialDriver implements
 	
 	public void reset() {
 		Base.logger.info("Reset Board");
+		// Whatever hasn't been sent is lost in the reset, and reconnecting
+		// talks to the port directly
+		closeTransport();
 		if (isInitialized() && version.compareTo(new Version(1, 4)) >= 0) {
 			// WDT reset introduced in version 1.4 firmware
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.RESET.getCode());
 			Thread.interrupted(); // Clear interrupted status
-			runQuery(pb.getPacket());
+			runQuery(pb);
 			// invalidate position, force reconciliation.
 			invalidatePosition();
 		}
+		if (bufferTracker != null) {
+			bufferTracker.reset();
+		}
 		setInitialized(false);
 		initialize();
 	}
@@ -1944,14 +2250,15 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 	protected void writeToEEPROM(int offset, byte[] data) {
 		assert data.length <= 16;
-		PacketBuilder pb = new PacketBuilder(
+		forgetAccelerationProfile();
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.WRITE_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(data.length);
 		for (byte b : data) {
 			pb.add8(b);
 		}
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		assert pr.get8() == data.length;
 	}
 
@@ -1967,12 +2274,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 		if(toolhead == -1 ) toolhead = machine.currentTool().getIndex();
 
 		
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.TOOL_QUERY.getCode());
+		PacketBuilder pb = newPacket(MotherboardCommandCode.TOOL_QUERY.getCode());
 		pb.add8((byte) toolhead);
 		pb.add8(ToolCommandCode.READ_FROM_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(len);
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		
 		if (pr.isOK()) {
 			int rvlen = Math.min(pr.getPayload().length - 1, len);
@@ -2050,13 +2357,13 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		assert len <= 16;
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.READ_EEPROM.getCode());
 		pb.add16(offset);
 		pb.add8(len);
 
 		
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		if (pr.isOK()) {
 			Base.logger.finest("readFromEEPROM ok for: " + offset + " size: " + len);
 			int rvlen = Math.min(pr.getPayload().length - 1, len);
@@ -2288,6 +2595,35 @@ public class Sanguino3GDriver extends SerialDriver implements
             Base.logger.info("Cannot set acceleration minimum speed for S3G driver");
         }
         
+	/// The planner settings, read on the first call after connecting and
+	/// kept until the connection or the EEPROM changes
+	@Override
+	public AccelerationProfile getAccelerationProfile() {
+		if (!accelerationProfileRead) {
+			accelerationProfile = readAccelerationProfile();
+			accelerationProfileRead = true;
+		}
+		return accelerationProfile;
+	}
+
+	/// Read the planner settings from the machine, or null if it has none
+	protected AccelerationProfile readAccelerationProfile() {
+		return null;
+	}
+
+	/// Read the planner settings again the next time they're asked for
+	protected void forgetAccelerationProfile() {
+		accelerationProfileRead = false;
+		accelerationProfile = null;
+	}
+
+	@Override
+	public void setInitialized(boolean status) {
+		// Connected or disconnected, it may not be the same machine
+		forgetAccelerationProfile();
+		super.setInitialized(status);
+	}
+        
         @Override
 	public boolean hasAcceleration() { return false;}
  
@@ -2350,11 +2686,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 				+ ((axes.contains(AxisId.A)) ? "A" : "")
 				+ ((axes.contains(AxisId.B)) ? "B" : "") + "]");
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.STORE_HOME_POSITIONS.getCode());
 		pb.add8(b);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void recallHomePositions(EnumSet<AxisId> axes) throws RetryException {
@@ -2377,11 +2713,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 				+ ((axes.contains(AxisId.A)) ? "A" : "")
 				+ ((axes.contains(AxisId.B)) ? "B" : "") + "]");
 
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.RECALL_HOME_POSITIONS.getCode());
 		pb.add8(b);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 
 		invalidatePosition();
 	}
@@ -2532,10 +2868,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return ResponseCode.FAIL_GENERIC;
 	}
 
-	FileOutputStream fileCaptureOstream = null;
+	OutputStream fileCaptureOstream = null;
 
 	public void beginFileCapture(String path) throws FileNotFoundException {
-		fileCaptureOstream = new FileOutputStream(new File(path));
+		// Packets are only a few bytes each, so don't make a write of every one
+		fileCaptureOstream = new BufferedOutputStream(new FileOutputStream(new File(path)), 64 * 1024);
 	}
 
 	public void endFileCapture() throws IOException {
@@ -2544,31 +2881,31 @@ public class Sanguino3GDriver extends SerialDriver implements
 	}
 
 	public ResponseCode beginCapture(String filename) {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.CAPTURE_TO_FILE.getCode());
 		for (byte b : filename.getBytes()) {
 			pb.add8(b);
 		}
 		pb.add8(0); // null-terminate string
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		return convertSDCode(pr.get8());
 	}
 
 	public int endCapture() {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.END_CAPTURE.getCode());
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		return pr.get32();
 	}
 
 	public ResponseCode playback(String filename) {
-		PacketBuilder pb = new PacketBuilder(
+		PacketBuilder pb = newPacket(
 				MotherboardCommandCode.PLAYBACK_CAPTURE.getCode());
 		for (byte b : filename.getBytes()) {
 			pb.add8(b);
 		}
 		pb.add8(0); // null-terminate string
-		PacketResponse pr = runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb);
 		return convertSDCode(pr.get8());
 	}
 
@@ -2582,11 +2919,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 		Vector<String> fileList = new Vector<String>();
 		boolean reset = true;
 		while (true) {
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.NEXT_FILENAME.getCode());
 			pb.add8(reset ? 1 : 0);
 			reset = false;
-			PacketResponse pr = runQuery(pb.getPacket());
+			PacketResponse pr = runQuery(pb);
 			ResponseCode rc = convertSDCode(pr.get8());
 			if (rc != ResponseCode.SUCCESS) {
 				return fileList;
@@ -2862,11 +3199,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		// This call was introduced in version 2.3
 		if (toolVersion.atLeast(new Version(2, 3))) {
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.TOOL_QUERY.getCode());
 			pb.add8((byte) toolhead );
 			pb.add8(ToolCommandCode.GET_PLATFORM_SP.getCode());
-			PacketResponse pr = runQuery(pb.getPacket());
+			PacketResponse pr = runQuery(pb);
 			int sp = pr.get16();
 			machine.getTool(toolhead).setPlatformTargetTemperature(sp);
 		}
@@ -2886,11 +3223,11 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 		// This call was introduced in version 2.3
 		if (toolVersion.atLeast(new Version(2, 3))) {
-			PacketBuilder pb = new PacketBuilder(
+			PacketBuilder pb = newPacket(
 					MotherboardCommandCode.TOOL_QUERY.getCode());
 			pb.add8((byte) toolhead );
 			pb.add8(ToolCommandCode.GET_SP.getCode());
-			PacketResponse pr = runQuery(pb.getPacket());
+			PacketResponse pr = runQuery(pb);
 			int sp = pr.get16();
 			machine.getTool(toolhead).setTargetTemperature(sp);
 		}
@@ -38,6 +38,7 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -153,12 +154,30 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 */
 	private int maxBufferSize = 128;
 
+	/**
+	 * if true, lines are sent as long as the unacknowledged ones fit in
+	 * the firmware's receive buffer (maxBufferSize), instead of waiting
+	 * for each line's "ok" before sending the next.  Keeps the firmware
+	 * fed with short segments, where waiting for each "ok" starves it.
+	 */
+	private boolean characterCounting = false;
+
+	/**
+	 * in character counting mode, the lines sent after the one the firmware
+	 * last asked for again.  It turns each of them away too, asking for the
+	 * same line; those requests are ignored, as it's been resent already.
+	 */
+	private int staleResends = 0;
+	private int staleResendLine = -1;
+
 	/**
 	 * The commands sent but not yet acknowledged by the firmware. Stored so they can be resent 
 	 * if there is a checksum problem.
 	 */
 	private LinkedList<String> buffer = new LinkedList<String>();
 	private ReentrantLock bufferLock = new ReentrantLock();
+	/** signalled when the firmware acknowledges a command or the buffer is flushed, so a sender waiting for room can check again */
+	private final Condition bufferShrunk = bufferLock.newCondition();
 	
 	/** locks the readResponse method to prevent multiple concurrent reads */
 	private ReentrantLock readResponseLock = new ReentrantLock();
@@ -236,6 +255,12 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	if (XML.hasChildNode(xml, "alwaysRelativeE")) {
 		alwaysRelativeE = Boolean.parseBoolean(XML.getChildNodeValue(xml, "alwaysRelativeE"));
 	}
+	if (XML.hasChildNode(xml, "characterCounting")) {
+		characterCounting = Boolean.parseBoolean(XML.getChildNodeValue(xml, "characterCounting"));
+	}
+	if (XML.hasChildNode(xml, "bufferSize")) {
+		maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "bufferSize"));
+	}
     if (XML.hasChildNode(xml, "hasEmergencyStop")) {
     	hasEmergencyStop = Boolean.parseBoolean(XML.getChildNodeValue(xml, "hasEmergencyStop"));
     }
@@ -438,9 +463,12 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * Only one command can be sent at a time. If another command is 
 	 * being sent this method will block until the previous command 
 	 * is finished sending.
+	 * 
+	 * With character counting, this returns as soon as the command
+	 * has been written, without waiting for its "ok".
 	 */
 	protected void sendCommand(String next) {
-		_sendCommand(next, true, false);
+		_sendCommand(next, !characterCounting, false);
 	}
 
 	protected void sendCommand(String next, boolean synchronous) {
@@ -496,32 +524,15 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			// applychecksum replaces the line that was to be retransmitted, into the next line.
 			if (hasChecksums) next = applyNandChecksum(next);
 			
-			Base.logger.finest("sending: "+next);
+			Base.serialLogger.finest("sending: "+next);
 		}
 		else
 		{
-			Base.logger.finest("resending: "+next);
+			Base.serialLogger.finest("resending: "+next);
 		}
-		// Block until we can fit the command on the Arduino
-/*		synchronized(bufferLock)
-		{
-			//wait for the number of commands queued in the buffer to shrink before 
-			//adding the next command to it.
-                        // NOTE: must compute bufferSize from buffer elements now
-			while(bufferSize + next.length() + 1 > maxBufferSize)
-			{
-				Base.logger.warning("reprap driver buffer full. gcode write slowed.");
-				try {
-					bufferLock.wait();
-				}
-				catch (InterruptedException e1) {
-					//Presumably we're shutting down
-					Thread.currentThread().interrupt();
-					return;
-				}
-			}
-		}*/
-		
+		// Block until we can fit the command on the Arduino.  Resends
+		// go straight out: they replace lines already counted.
+		boolean counting = characterCounting && !resending;
 
 		// debug... let us know whats up!
 		if(debugLevel > 1)
@@ -535,6 +546,25 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				serialInUse.lock();
 				bufferLock.lock();
 
+				//wait for the commands queued in the buffer to shrink before
+				//adding the next command to it.  The port is let go meanwhile, so
+				//lines the firmware asks for again can go out, and the buffer is
+				//only measured with the port held, once they're all back in it.
+				while (counting && !hasRoomFor(next))
+				{
+					serialInUse.unlock();
+					try {
+						bufferShrunk.await();
+					} catch (InterruptedException e1) {
+						bufferLock.unlock();
+						throw e1;
+					}
+					// take the locks again in the usual order
+					bufferLock.unlock();
+					serialInUse.lock();
+					bufferLock.lock();
+				}
+
 				// record it in our buffer tracker.
 				buffer.addFirst(next);
 				
@@ -771,13 +801,10 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 						Base.logger.info("FW Accepted: " + notifier);
 					synchronized(notifier) { notifier.notifyAll(); }
 				}
+				/*let any sendCommand method waiting to send know that the buffer is
+				  now smaller and may be able to fit their command.*/
+				bufferShrunk.signalAll();
 				bufferLock.unlock();
-				
-				synchronized(bufferLock)
-				{ /*let any sendCommand method waiting to send know that the buffer is 
-					now smaller and may be able to fit their command.*/
-					bufferLock.notifyAll();
-				}
 			}
 			else if(line.contains("sd"))
 			{
@@ -945,17 +972,39 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 					if(debugLevel > 1)
 						Base.logger.warning("Received resend request for line " + badLineNumber);
 
+					// Hold the port so nothing new goes out between the
+					// lines we resend
+					serialInUse.lock();
+					bufferLock.lock();
+					if (staleResends > 0 && badLineNumber == staleResendLine)
+					{
+						// Turned away a line sent before we resent this one
+						staleResends--;
+						if (okAfterResend)
+							buffer.addLast(";resend-ok");
+						bufferLock.unlock();
+						serialInUse.unlock();
+						readResponseLock.unlock();
+						return;
+					}
+
 					Queue<String> resend = new LinkedList<String>();
+					LinkedList<String> sentinels = new LinkedList<String>();
 					boolean found = false;
 					// Search backwards for the bad line in our buffer.
 					// Firmware flushed everything after this line, so
 					// build a queue of lines to resend.
-					bufferLock.lock();
 					lineSearch: while (!buffer.isEmpty())
 					{
 						String bufferedLine = buffer.removeLast();
 						if(debugLevel > 1)
 							Base.logger.info("Searching: " + bufferedLine);
+						if (bufferedLine.startsWith(";"))
+						{
+							// an "ok" we're still owed, not a line
+							sentinels.add(bufferedLine);
+							continue;
+						}
 						int bufferedLineNumber = Integer.parseInt( getRegexMatch(
 								gcodeLineNumberPattern, bufferedLine.toLowerCase(), 1) );
 						if (dudLetter != null && bufferedLineNumber == badLineNumber) {
@@ -972,13 +1021,35 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 							break lineSearch;
 						}
 					}
+					staleResends = 0;
+					if (characterCounting && found && dudLetter == null)
+					{
+						// The lines sent after the bad one were turned away
+						// too; send them again after it, and expect the
+						// firmware to ask for the bad line once for each.
+						while (!buffer.isEmpty())
+						{
+							String bufferedLine = buffer.removeLast();
+							if (bufferedLine.startsWith(";")) {
+								sentinels.add(bufferedLine);
+							} else {
+								resend.add(bufferedLine);
+								staleResends++;
+							}
+						}
+						staleResendLine = badLineNumber;
+					}
+					buffer.addAll(sentinels);
 					if (okAfterResend) {
 						// firmware sends "ok" after resend, put something here to consume it:
 						buffer.addLast(";resend-ok");
 					}
+					// No signal for a sender waiting for room: the lines taken out
+					// to be resent are still in the firmware's buffer until it
+					// turns them away, so nothing has been freed until its next "ok"
 					bufferLock.unlock();
 
-					if (!found) {
+					if (!found && !resend.isEmpty()) {
 						int restartLineNumber = Integer.parseInt( getRegexMatch(
 								gcodeLineNumberPattern, resend.element().toLowerCase(), 1) );
 						Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + restartLineNumber);
@@ -990,6 +1061,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 						String bufferedLine = resend.remove();
 						this.resendCommand(bufferedLine);
 					}
+					serialInUse.unlock();
 				}
 				else
 				{
@@ -1030,6 +1102,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 */
 	private void flushBuffer() {
 		bufferLock.lock();
+		staleResends = 0;
 		while (!buffer.isEmpty())
 		{
 			String notifier = buffer.removeLast();
@@ -1037,6 +1110,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				Base.logger.fine("Flushing dead command: " + notifier);
 			synchronized(notifier) { notifier.notifyAll(); }
 		}
+		bufferShrunk.signalAll();
 		bufferLock.unlock();
 	}
 
@@ -1050,6 +1124,32 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		return isEmpty;
 	}
 
+	/**
+	 * How much of the firmware's receive buffer the commands sent
+	 * but not yet acknowledged take up.
+	 */
+	private int bufferedCharacters() {
+		bufferLock.lock();
+		int characters = 0;
+		for (String line : buffer) {
+			// placeholders for an extra "ok" aren't sent
+			if (!line.startsWith(";"))
+				characters += line.length() + 1;
+		}
+		bufferLock.unlock();
+		return characters;
+	}
+
+	/**
+	 * Whether a line fits in the firmware's receive buffer alongside the
+	 * commands still waiting for their "ok".  A line always fits in an
+	 * empty buffer.
+	 */
+	private boolean hasRoomFor(String line) {
+		int bufferSize = bufferedCharacters();
+		return bufferSize == 0 || bufferSize + line.length() + 1 <= maxBufferSize;
+	}
+
 	/**
 	 * What is our queue size?  Used by extrusion driver
 	 */
@@ -1312,7 +1412,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 	public void readTemperature(int toolcode) {
 		machine.selectTool(toolcode);
-		sendCommand("T"+toolcode + " M105");
+		sendCommand("T"+toolcode + " M105", true);
 
 		super.readTemperature(toolcode);
 	}
@@ -1430,7 +1530,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 
 	protected Point5d reconcilePosition() {
-		sendCommand("M114");
+		sendCommand("M114", true);
 		// If the firmware returned a position then the reply parser
 		// already set the current position.  Return null to tell
 		// caller not to touch the position if it is now known.
@@ -0,0 +1,220 @@
+package replicatorg.machine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.AccelerationProfile;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+
+/**
+ * Estimates the build time of code that is being edited, reusing the work
+ * done on the parts that haven't changed since the last estimate.
+ *
+ * The code is cut into chunks, ending at lines picked by their content, so
+ * that inserting or deleting lines only moves the chunk ends near the edit.
+ * For each chunk we keep the parser and estimator state it started from,
+ * the state it finished in and the time it took.  On the next estimate, a
+ * chunk with the same text and the same starting state is skipped, taking
+ * its finishing state and time from before; only the chunks that were
+ * edited, or that now start from a different state, are run again.
+ */
+class IncrementalEstimator {
+
+	/// Chunks are at least this long, unless the code ends first
+	static final int MIN_CHUNK_LINES = 256;
+	/// and at most this long
+	static final int MAX_CHUNK_LINES = 4096;
+	// Past the minimum, a chunk ends after a line whose hash has all these
+	// bits set, which is about one line in a thousand
+	private static final int BOUNDARY_MASK = 0x3ff;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final MachineModel model;
+	private final AccelerationProfile profile;
+
+	/// What running one chunk did
+	private static class Chunk {
+		final GCodeParser.ModalState entryParser;
+		final EstimationDriver.Snapshot entryDriver;
+		final GCodeParser.ModalState exitParser;
+		final EstimationDriver.Snapshot exitDriver;
+		final double time;
+
+		Chunk(GCodeParser.ModalState entryParser, EstimationDriver.Snapshot entryDriver,
+				GCodeParser.ModalState exitParser, EstimationDriver.Snapshot exitDriver, double time) {
+			this.entryParser = entryParser;
+			this.entryDriver = entryDriver;
+			this.exitParser = exitParser;
+			this.exitDriver = exitDriver;
+			this.time = time;
+		}
+	}
+
+	// The chunks seen in the last estimate, by a hash of their text
+	private Map<Long, List<Chunk>> chunks = new HashMap<Long, List<Chunk>>();
+
+	// Used while estimating
+	private final EstimationDriver estimator = new EstimationDriver();
+	private final GCodeParser parser = new GCodeParser();
+	private final GCodeCommand gcode = new GCodeCommand();
+	private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+	/**
+	 * @param profile the firmware's planner settings, or null if it
+	 * doesn't accelerate
+	 */
+	IncrementalEstimator(MachineModel model, AccelerationProfile profile) {
+		this.model = model;
+		this.profile = profile;
+		estimator.setMachine(model);
+		estimator.setAccelerationProfile(profile);
+		parser.init(estimator);
+	}
+
+	/// True if this estimator's results hold for the given machine and settings
+	boolean isFor(MachineModel model, AccelerationProfile profile) {
+		return this.model == model
+			&& (profile == null ? this.profile == null : profile.equals(this.profile));
+	}
+
+	/**
+	 * Estimate the build time of the code, as EstimationDriver.getBuildTime()
+	 * gives it.
+	 */
+	synchronized double estimate(GCodeSource source) {
+		Map<Long, List<Chunk>> seen = new HashMap<Long, List<Chunk>>();
+		List<String> lines = new ArrayList<String>(MAX_CHUNK_LINES);
+		long hash = FNV_OFFSET;
+
+		// Start from the state of a new parser and estimator
+		GCodeParser.ModalState parserState = new GCodeParser().getModalState();
+		EstimationDriver fresh = new EstimationDriver();
+		fresh.setAccelerationProfile(profile);
+		EstimationDriver.Snapshot driverState = fresh.snapshot();
+		double time = 0;
+		int rerun = 0;
+		int total = 0;
+
+		for (String line : source) {
+			lines.add(line);
+			hash = hashLine(hash, line);
+			if (lines.size() >= MAX_CHUNK_LINES || (lines.size() >= MIN_CHUNK_LINES
+					&& (line.hashCode() & BOUNDARY_MASK) == BOUNDARY_MASK)) {
+				long key = chunkKey(hash, lines);
+				Chunk chunk = chunkFor(key, parserState, driverState, seen);
+				if (chunk == null) {
+					chunk = run(lines, parserState, driverState);
+					remember(seen, key, chunk);
+					rerun++;
+				}
+				time += chunk.time;
+				parserState = chunk.exitParser;
+				driverState = chunk.exitDriver;
+				lines.clear();
+				hash = FNV_OFFSET;
+				total++;
+			}
+		}
+		if (!lines.isEmpty()) {
+			long key = chunkKey(hash, lines);
+			Chunk chunk = chunkFor(key, parserState, driverState, seen);
+			if (chunk == null) {
+				chunk = run(lines, parserState, driverState);
+				remember(seen, key, chunk);
+				rerun++;
+			}
+			time += chunk.time;
+			driverState = chunk.exitDriver;
+			total++;
+		}
+
+		// Let the last moves run out of the planner
+		estimator.restore(driverState);
+		time += estimator.getBuildTime();
+
+		// Only keep what the current code uses, so old edits don't pile up
+		chunks = seen;
+		Base.logger.fine("Estimated " + rerun + " of " + total + " chunks again");
+		return time;
+	}
+
+	// Mix the length in with the text, to tell apart chunks that only differ by blank lines
+	private static long chunkKey(long hash, List<String> lines) {
+		return hash * 31 + lines.size();
+	}
+
+	// Find an earlier result for the chunk, keeping it for next time if there is one
+	private Chunk chunkFor(long key, GCodeParser.ModalState parserState,
+			EstimationDriver.Snapshot driverState, Map<Long, List<Chunk>> seen) {
+		List<Chunk> candidates = chunks.get(key);
+		if (candidates == null) {
+			return null;
+		}
+		for (Chunk chunk : candidates) {
+			if (chunk.entryParser.equals(parserState) && chunk.entryDriver.equals(driverState)) {
+				remember(seen, key, chunk);
+				return chunk;
+			}
+		}
+		return null;
+	}
+
+	private void remember(Map<Long, List<Chunk>> seen, long key, Chunk chunk) {
+		List<Chunk> list = seen.get(key);
+		if (list == null) {
+			list = new ArrayList<Chunk>(1);
+			seen.put(key, list);
+		}
+		list.add(chunk);
+	}
+
+	// Run the lines through the estimator from the given state
+	private Chunk run(List<String> lines, GCodeParser.ModalState parserState,
+			EstimationDriver.Snapshot driverState) {
+		parser.setModalState(parserState);
+		estimator.restore(driverState);
+
+		for (String line : lines) {
+			try {
+				gcode.parse(line);
+			} catch (Exception e) {
+				// The safety check reports these; there's nothing to time
+				continue;
+			}
+			parser.parse(gcode, queue);
+			for (DriverCommand command : queue) {
+				try {
+					command.run(estimator);
+				} catch (RetryException r) {
+					// Ignore.
+				} catch (StopException e) {
+					// TODO: Stop the estimator at this point?
+				}
+			}
+			queue.clear();
+		}
+		return new Chunk(parserState, driverState, parser.getModalState(), estimator.snapshot(),
+				estimator.getElapsedTime());
+	}
+
+	private static long hashLine(long hash, String line) {
+		for (int i = 0; i < line.length(); i++) {
+			hash = (hash ^ line.charAt(i)) * FNV_PRIME;
+		}
+		return (hash ^ '\n') * FNV_PRIME;
+	}
+}
@@ -25,11 +25,11 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -48,24 +48,21 @@ import net.miginfocom.swing.MigLayout;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
-import replicatorg.app.gcode.GCodeCommand;
-import replicatorg.app.gcode.GCodeEnumeration;
-import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.GCodeIndex;
+import replicatorg.app.gcode.MappedGCodeSource;
+import replicatorg.drivers.AccelerationProfile;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
-import replicatorg.drivers.RetryException;
+import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.SimulationDriver;
-import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.MachineState.State;
-import replicatorg.machine.model.AxisId;
-import replicatorg.machine.model.Endstops;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
-import replicatorg.util.Point5d;
+import replicatorg.model.JEditTextAreaSource;
 
 /**
  * The MachineController object controls a single machine. It contains a single
@@ -96,6 +93,7 @@ public class Machine implements MachineInterface {
 		// Start a build
 		SIMULATE, // Build to the simulator
 		BUILD_DIRECT, // Build in real time on the machine
+		RESUME_DIRECT, // Build in real time on the machine, starting part way through a file
 		BUILD_TO_FILE, // Build, but instruct the machine to save it to the
 						// local filesystem
 		BUILD_TO_REMOTE_FILE, // Build, but instruct the machine to save it to
@@ -151,6 +149,9 @@ public class Machine implements MachineInterface {
 
 	MachineThread machineThread;
 	final MachineCallbackHandler callbackHandler;
+
+	// Keeps the results for each part of the code in the editor between estimates
+	private IncrementalEstimator editorEstimator = null;
 	
 	// TODO: WTF is this here for.
 	// this is the xml config for this machine.
@@ -205,11 +206,14 @@ public class Machine implements MachineInterface {
 				
 				Base.logger.info("Estimating build time and scanning code for errors...");
 				
+				// One pass finds both the problems and the build time
+				emitStateChange(new MachineState(State.BUILDING), "Running safety checks...");
+				PreflightAnalysis analysis = PreflightAnalysis.analyze(source, machineThread.getModel(),
+						getAccelerationProfile());
+
 				if(Base.preferences.getBoolean("build.safetyChecks", true))
 				{
-					emitStateChange(new MachineState(State.BUILDING), "Running safety checks...");
-					
-					safetyCheck(source, messages);
+					analysis.getSafetyMessages(messages);
 
 					if(! messages.isEmpty())
 					{
@@ -306,9 +310,7 @@ public class Machine implements MachineInterface {
 
 				if(!cancelled)
 				{
-					// estimate build time.
-					emitStateChange(new MachineState(State.BUILDING), "Estimating time to completion...");
-					estimate(source);
+					setEstimatedBuildTime(analysis.getBuildTime());
 					
 					// do that build!
 					Base.logger.info("Beginning build.");
@@ -325,6 +327,35 @@ public class Machine implements MachineInterface {
 		Executors.newSingleThreadExecutor().execute(prepareAndStart);
 	}
 
+	/**
+	 * Begin running a job from the given line of a GCode file, using the
+	 * file's index to pick up the parser state at that line.
+	 */
+	@Override
+	public void resumeDirect(final File file, final int line) {
+		Runnable prepareAndStart = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					emitStateChange(new MachineState(State.BUILDING), "Finding line " + line + "...");
+					MappedGCodeSource source = new MappedGCodeSource(file);
+					GCodeIndex index = GCodeIndex.forSource(source, getModel());
+					machineThread.scheduleRequest(new MachineCommand(RequestType.RESUME_DIRECT, index, line));
+				} catch (IOException e) {
+					Base.logger.log(Level.SEVERE, "Couldn't resume " + file.getName(), e);
+					// Get the main window to forget it was printing, as a
+					// cancelled build does
+					boolean connected = getMachineState().canPrint();
+					emitStateChange(new MachineState(State.ERROR), "Couldn't resume " + file.getName());
+					emitStateChange(new MachineState(State.NOT_ATTACHED), "Couldn't resume " + file.getName());
+					if (connected)
+						emitStateChange(new MachineState(State.READY), "Couldn't resume " + file.getName());
+				}
+			}
+		};
+		Executors.newSingleThreadExecutor().execute(prepareAndStart);
+	}
+
 	public void simulate(GCodeSource source) {
 		// start simulator
 		// if (simulator != null)
@@ -340,186 +371,62 @@ public class Machine implements MachineInterface {
 				source, null));
 	}
 
-	public void safetyCheck(GCodeSource source, Map<String, Integer> messages)
-	{
-		int nToolheads = machineThread.getModel().getTools().size();
-		Point5d maxRates = machineThread.getModel().getMaximumFeedrates();
-		
-//		BuildVolume buildVolume = new BuildVolume();
-//		buildVolume.setX(machineThread.getModel().getBuildVolume().getX()/2);
-//		buildVolume.setY(machineThread.getModel().getBuildVolume().getY()/2);
-//		buildVolume.setZ(machineThread.getModel().getBuildVolume().getZ()/2);
-		
-		GCodeCommand gcode;
-		String message, cmd, mainCode;
-		Integer lineNumber = 0;
-		
-		for(String line : source)
-		{
-			try
-			{
-				gcode = new GCodeCommand(line);
-			} //Catching every kind of exception is generally bad form,
-			//  It can hide where the problem is happening, and should be avoided
-			//  But I'm doing it anyway.
-			catch(Exception e)
-			{
-				message = "ReplicatorG can't parse '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				continue;
-			}
-
-			cmd = gcode.getCommand();
-			if(cmd.split(" ").length < 1) continue; //to avoid null index problems
-			
-			mainCode = cmd.split(" ")[0];
-
-			if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
-			{
-				message = "ReplicatorG doesn't recognize GCode '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-			
-			// Check for homing in the wrong direction
-			if(!homingDirectionIsSafe(gcode))
-			{
-				message = "Homing in the wrong direction for selected machine: '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-
-			// we're going to check for the correct number of toolheads in each command
-			// the list of exceptions keeps growing, do we really need to do this check?
-			// maybe we should just specify the things to check, rather than the reverse
-			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
-													   && gcode.getCodeValue('M') != 106
-													   && gcode.getCodeValue('M') != 107)
-			{
-				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
-				messages.put(message, lineNumber);
-				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				return; //TRICKY: see footnote [1]
-			}
-			if(gcode.hasCode('F'))
-			{
-				double fVal = gcode.getCodeValue('F');
-				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
-					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
-// we're going to ignore this for now, since most of the time the z isn't actually moving 
-//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
-					(gcode.hasCode('A') && fVal > maxRates.a()) ||
-					(gcode.hasCode('B') && fVal > maxRates.b()))
-				{
-					message = "You're moving too fast! " + line +
-							 " turns at least one axis faster than it's max speed.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.WARNING, message);
-				}
-				//BUGFIX! Can cause problems when used on reprap machines!
-				if (fVal < 0)
-				{
-					message = "Negative feedrate detected! '" + line +
-							 "' causes crashes in the reprap driver.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.SEVERE, message);
-				}
-			}
-			
-			lineNumber++;
-		}
-	}
-	//footnote [1]:
-	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
-	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to 
-	// thousands of exactly the same error
-	
-	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
-		Endstops xstop, ystop, zstop;
-		
-		// If it doesn't have the code, ignore it
-		xstop = ystop = zstop = Endstops.BOTH;
-		
-		if(gcode.hasCode('X'))
-			xstop = machineThread.getModel().getEndstops(AxisId.X);
-		if(gcode.hasCode('Y'))
-			ystop = machineThread.getModel().getEndstops(AxisId.Y);
-		if(gcode.hasCode('Z'))
-			zstop = machineThread.getModel().getEndstops(AxisId.Z);
-		
-		if(gcode.getCodeValue('G') == 161)
-		{
-			if((xstop != Endstops.MIN) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MIN) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MIN) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		else if(gcode.getCodeValue('G') == 162)
-		{
-			if((xstop != Endstops.MAX) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MAX) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MAX) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		return true;
-	}
-	
 	// TODO: Spawn a new thread to handle this for us?
 	public void estimate(GCodeSource source) {
 		if (source == null) {
 			return;
 		}
 
-		EstimationDriver estimator = new EstimationDriver();
-		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
-		
-		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
-
-		GCodeParser estimatorParser = new GCodeParser();
-		estimatorParser.init(estimator);
-
-		// run each line through the estimator
-		for (String line : source) {
-			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
-			
-			for (DriverCommand command : estimatorQueue) {
-				try {
-					command.run(estimator);
-				} catch (RetryException r) {
-					// Ignore.
-				} catch (StopException e) {
-					// TODO: Should we stop the estimator when we get a stop???
+		// Code from the editor is estimated again after every change, so
+		// only run the parts that changed
+		if (source instanceof JEditTextAreaSource) {
+			MachineModel model = machineThread.getModel();
+			AccelerationProfile profile = getAccelerationProfile();
+			synchronized (this) {
+				if (editorEstimator == null || !editorEstimator.isFor(model, profile)) {
+					editorEstimator = new IncrementalEstimator(model, profile);
 				}
 			}
-			estimatorQueue.clear();
+			setEstimatedBuildTime(editorEstimator.estimate(source));
+			return;
 		}
 
+		// TODO: Hooks for plugins to add estimated time?
+		PreflightAnalysis analysis = PreflightAnalysis.analyze(source, machineThread.getModel(),
+				getAccelerationProfile());
+
 		// TODO: Set simulator up properly.
 		// if (simulator != null) {
-		// simulator.setSimulationBounds(estimator.getBounds());
+		// simulator.setSimulationBounds(analysis.getBounds());
 		// }
 		// // oh, how this needs to be cleaned up...
 		// if (driver instanceof SimulationDriver) {
-		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
+		// ((SimulationDriver)driver).setSimulationBounds(analysis.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
+		setEstimatedBuildTime(analysis.getBuildTime());
+	}
+
+	/**
+	 * The planner settings of the connected machine, if it accelerates and
+	 * accelerated estimates haven't been turned off.
+	 */
+	private AccelerationProfile getAccelerationProfile() {
+		if (!Base.preferences.getBoolean("build.estimateAcceleration", true))
+			return null;
+		Driver driver = machineThread.getDriver();
+		if (!(driver instanceof OnboardParameters) || !driver.isInitialized())
+			return null;
+		AccelerationProfile profile = ((OnboardParameters)driver).getAccelerationProfile();
+		if (profile != null)
+			Base.logger.fine("Estimating with " + profile);
+		return profile;
+	}
+
+	private void setEstimatedBuildTime(double buildTime) {
+		machineThread.setEstimatedBuildTime(buildTime);
 		Base.logger.info("Estimated build time is: " + 
-					EstimationDriver.getBuildTimeString(estimator.getBuildTime()));
+					EstimationDriver.getBuildTimeString(buildTime));
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
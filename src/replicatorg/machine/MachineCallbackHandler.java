@@ -1,101 +1,199 @@
 package replicatorg.machine;
 
-import java.util.Vector;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import replicatorg.app.Base;
+import replicatorg.machine.model.ToolModel;
 
 
 /** Thread that handles callbacks for events from the machine controller.
- * TODO: There /has/ to be a better way of doing this.
+ *
+ * Machines hand their events over without waiting for any listener.  Only
+ * the latest progress of each machine and the latest status of each tool
+ * are kept, and progress is sent at most once every progress interval, so
+ * a fast build can't flood the listeners with events nobody will see.
+ * State changes are sent as soon as they come, along with any progress
+ * waiting ahead of them, so that listeners see things in the order they
+ * happened.
  * @author mattmets
  *
  */
 public class MachineCallbackHandler extends Thread {
-	
+
+	/// The kinds of events a listener can ask for
+	public enum EventType {
+		STATE_CHANGE,
+		PROGRESS,
+		TOOL_STATUS
+	}
+
+	/// How often to send progress, in ms, unless the preferences say otherwise
+	public static final long DEFAULT_PROGRESS_INTERVAL = 250;
+
+	private static class Subscription {
+		final MachineListener listener;
+		final EnumSet<EventType> types;
+
+		Subscription(MachineListener listener, EnumSet<EventType> types) {
+			this.listener = listener;
+			this.types = types;
+		}
+	}
+
 	// Send messages to these listeners
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
-
-	// We have to send these kinds of messages.
-	// TODO: Make this abstract.
-	ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
-	ConcurrentLinkedQueue<MachineProgressEvent> machineProgressEventQueue;
-	ConcurrentLinkedQueue<MachineToolStatusEvent> machineToolStatusEventQueue;
-	
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	private final ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
+	// Everything below is guarded by the lock
+	private final Object lock = new Object();
+	private Map<MachineInterface,MachineProgressEvent> latestProgress;
+	private Map<ToolModel,MachineToolStatusEvent> latestToolStatus;
+	private long progressInterval;
+	private long nextProgressTime = 0;
+
 	public MachineCallbackHandler() {
 		super("Machine Callback Handler");
-		
+
 		machineStateChangeEventQueue = new ConcurrentLinkedQueue<MachineStateChangeEvent>();
-		machineProgressEventQueue = new ConcurrentLinkedQueue<MachineProgressEvent>();
-		machineToolStatusEventQueue = new ConcurrentLinkedQueue<MachineToolStatusEvent>();
+		latestProgress = new LinkedHashMap<MachineInterface,MachineProgressEvent>();
+		latestToolStatus = new LinkedHashMap<ToolModel,MachineToolStatusEvent>();
+		progressInterval = Base.preferences.getLong("machinecontroller.progressInterval",
+				DEFAULT_PROGRESS_INTERVAL);
 	}
-	
-	private synchronized void sendMessages() {
-		while (!machineStateChangeEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineStateChanged(machineStateChangeEventQueue.peek());
+
+	/** Send progress at most once every so many ms. */
+	public void setProgressInterval(long millis) {
+		synchronized (lock) {
+			progressInterval = Math.max(0, millis);
+			lock.notify();
+		}
+	}
+
+	private void sendMessages(long now) {
+		boolean stateChanged = !machineStateChangeEventQueue.isEmpty();
+
+		// Send progress when it's due, or ahead of a state change it came before
+		Map<MachineInterface,MachineProgressEvent> progress = null;
+		Map<ToolModel,MachineToolStatusEvent> toolStatus = null;
+		synchronized (lock) {
+			if (!latestProgress.isEmpty() && (stateChanged || now >= nextProgressTime)) {
+				progress = latestProgress;
+				latestProgress = new LinkedHashMap<MachineInterface,MachineProgressEvent>();
+				nextProgressTime = now + progressInterval;
+			}
+			if (!latestToolStatus.isEmpty()) {
+				toolStatus = latestToolStatus;
+				latestToolStatus = new LinkedHashMap<ToolModel,MachineToolStatusEvent>();
 			}
-			Base.logger.fine("Sending machine state change event: "
-					+ machineStateChangeEventQueue.peek().getState().getState().toString());
-			machineStateChangeEventQueue.remove();
 		}
-		
-		while (!machineProgressEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineProgress(machineProgressEventQueue.peek());
+
+		if (progress != null) {
+			for (MachineProgressEvent e : progress.values()) {
+				for (Subscription s : subscriptions) {
+					if (s.types.contains(EventType.PROGRESS)) {
+						s.listener.machineProgress(e);
+					}
+				}
 			}
-			machineProgressEventQueue.remove();
 		}
-		
-		while (!machineToolStatusEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.toolStatusChanged(machineToolStatusEventQueue.peek());
+
+		MachineStateChangeEvent stateChange;
+		while ((stateChange = machineStateChangeEventQueue.poll()) != null) {
+			for (Subscription s : subscriptions) {
+				if (s.types.contains(EventType.STATE_CHANGE)) {
+					s.listener.machineStateChanged(stateChange);
+				}
+			}
+			Base.logger.fine("Sending machine state change event: "
+					+ stateChange.getState().getState().toString());
+		}
+
+		if (toolStatus != null) {
+			for (MachineToolStatusEvent e : toolStatus.values()) {
+				for (Subscription s : subscriptions) {
+					if (s.types.contains(EventType.TOOL_STATUS)) {
+						s.listener.toolStatusChanged(e);
+					}
+				}
 			}
-			machineToolStatusEventQueue.remove();
 		}
 	}
-	
+
 	@Override
 	public void run() {
-		while(true) {
-			// If we have any messages to send out, do so, otherwise wait.
-			try {
-				sendMessages();
-	
-				sleep(100);
-			} catch (InterruptedException e) {
-				// Terminate!
-				Base.logger.fine("taking callback handler down, state change queue: "
-						+ machineStateChangeEventQueue.size());
-				break;
+		try {
+			while (true) {
+				// Wait until there's a state change or tool status, or progress is due
+				long now = System.currentTimeMillis();
+				synchronized (lock) {
+					while (machineStateChangeEventQueue.isEmpty() && latestToolStatus.isEmpty()) {
+						long wait = 0;
+						if (!latestProgress.isEmpty()) {
+							wait = nextProgressTime - now;
+							if (wait <= 0) {
+								break;
+							}
+						}
+						lock.wait(wait);
+						now = System.currentTimeMillis();
+					}
+				}
+				sendMessages(now);
 			}
+		} catch (InterruptedException e) {
+			// Terminate!
+			Base.logger.fine("taking callback handler down, state change queue: "
+					+ machineStateChangeEventQueue.size());
 		}
 	}
-	
-	synchronized public void addMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.add(listener);
+
+	public void addMachineListener(MachineListener listener) {
+		addMachineListener(listener, EnumSet.allOf(EventType.class));
+	}
+
+	/** Listen to only the given kinds of events. */
+	public void addMachineListener(MachineListener listener, EnumSet<EventType> types) {
+		subscriptions.add(new Subscription(listener, EnumSet.copyOf(types)));
 		// TODO: Was this important?
 //		listener.machineStateChanged(new MachineStateChangeEvent(this,
 //				getMachineState()));
 	}
 
-	synchronized public void removeMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.remove(listener);
+	public void removeMachineListener(MachineListener listener) {
+		for (Subscription s : subscriptions) {
+			if (s.listener == listener) {
+				subscriptions.remove(s);
+			}
+		}
 	}
 
-	synchronized public void schedule(MachineStateChangeEvent status) {
+	public void schedule(MachineStateChangeEvent status) {
 		machineStateChangeEventQueue.add(status);
 		Base.logger.fine("Scheduling machine state change event: "
 				+ status.getState().getState().toString());
+		synchronized (lock) {
+			lock.notify();
+		}
 	}
 
-	synchronized public void schedule(MachineProgressEvent progress) {
-		machineProgressEventQueue.add(progress);
+	public void schedule(MachineProgressEvent progress) {
+		synchronized (lock) {
+			// Only the latest is worth sending; it's sent when it's due, which
+			// the handler is already waiting for unless this is the first
+			if (latestProgress.put(progress.getSource(), progress) == null) {
+				lock.notify();
+			}
+		}
 	}
 
-	synchronized public void schedule(MachineToolStatusEvent e) {
-		machineToolStatusEventQueue.add(e);
+	public void schedule(MachineToolStatusEvent e) {
+		synchronized (lock) {
+			latestToolStatus.put(e.getTool(), e);
+			lock.notify();
+		}
 	}
 }
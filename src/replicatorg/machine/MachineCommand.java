@@ -1,5 +1,6 @@
 package replicatorg.machine;
 
+import replicatorg.app.gcode.GCodeIndex;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.RequestType;
 import replicatorg.model.GCodeSource;
@@ -10,6 +11,8 @@ public class MachineCommand {
 	final GCodeSource source;
 	final String remoteName;
 	final DriverCommand command;
+	final GCodeIndex index;
+	final int startLine;
 
 	public MachineCommand(RequestType type, GCodeSource source,
 			String remoteName) {
@@ -18,6 +21,8 @@ public class MachineCommand {
 		this.remoteName = remoteName;
 		
 		this.command = null;
+		this.index = null;
+		this.startLine = 0;
 	}
 
 	public MachineCommand(RequestType type, DriverCommand command) {
@@ -26,5 +31,17 @@ public class MachineCommand {
 		
 		this.source = null;
 		this.remoteName = null;
+		this.index = null;
+		this.startLine = 0;
+	}
+
+	public MachineCommand(RequestType type, GCodeIndex index, int startLine) {
+		this.type = type;
+		this.index = index;
+		this.startLine = startLine;
+
+		this.source = index.getSource();
+		this.remoteName = null;
+		this.command = null;
 	}
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package replicatorg.machine;
 
+import java.io.File;
+
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.SimulationDriver;
@@ -73,6 +75,8 @@ public interface MachineInterface {
 	public void simulate(GCodeSource source);
 	
 	public void buildDirect(GCodeSource source);
+	/** Build a file on the machine, starting from the given line (numbered from 0) **/
+	public void resumeDirect(File file, int line);
 	public boolean buildRemote(String remoteName);
 	public void buildToFile(GCodeSource source, String path);
 	public void upload(GCodeSource source, String remoteName);
@@ -1,5 +1,7 @@
 package replicatorg.machine;
 
+import java.util.EnumSet;
+
 import replicatorg.app.Base;
 import replicatorg.drivers.Driver;
 
@@ -116,6 +118,11 @@ import replicatorg.drivers.Driver;
 			callbackHandler.addMachineListener(listener);
 		}
 
+		public void addMachineListener(MachineListener listener,
+				EnumSet<MachineCallbackHandler.EventType> types) {
+			callbackHandler.addMachineListener(listener, types);
+		}
+
 		public void removeMachineListener(MachineListener listener) {
 			callbackHandler.removeMachineListener(listener);
 		}
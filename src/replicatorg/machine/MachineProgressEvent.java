@@ -3,17 +3,26 @@ package replicatorg.machine;
 import replicatorg.drivers.EstimationDriver;
 
 public class MachineProgressEvent {
+	private final MachineInterface source;
 	private double elapsed;
 	private double estimated;
 	private int lines;
 	private int totalLines;
 	public MachineProgressEvent(double elapsed, double estimated, int lines, int totalLines) {
+		this(null, elapsed, estimated, lines, totalLines);
+	}
+
+	public MachineProgressEvent(MachineInterface source, double elapsed, double estimated,
+			int lines, int totalLines) {
+		this.source = source;
 		this.elapsed = elapsed;
 		this.estimated = estimated;
 		this.lines = lines;
 		this.totalLines = totalLines;
 	}
 	
+	/// The machine that's building, or null if nobody said
+	public MachineInterface getSource() { return source; }
 	public double getElapsed() { return elapsed; }
 	public double getEstimated() { return estimated; }
 	public int getLines() { return lines; }
@@ -0,0 +1,118 @@
+package replicatorg.machine;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import replicatorg.app.Base;
+
+/**
+ * Hosts any number of machines at once, each with its own driver and
+ * connection, so that one ReplicatorG can run a room full of printers.
+ *
+ * Where MachineLoader keeps one machine, the registry keeps each machine
+ * under a name of the caller's choosing, such as the port it's on.  All of
+ * them share one callback thread, and their status polls share one
+ * scheduler, so each machine added costs little more than its own thread
+ * and connection.  Events say which machine they're from with getSource().
+ */
+public class MachineRegistry {
+
+	private final Map<String,Machine> machines = new LinkedHashMap<String,Machine>();
+	private final MachineCallbackHandler callbackHandler;
+
+	public MachineRegistry() {
+		callbackHandler = new MachineCallbackHandler();
+		callbackHandler.start();
+	}
+
+	/**
+	 * Load a machine and keep it under the given name.  If there's already
+	 * one under that name, it's disposed of first.
+	 * @param id the name to keep the machine under
+	 * @param machineType the name of the machine descriptor in the machine XML files
+	 * @return the machine, or null if there's no such type of machine
+	 */
+	public synchronized MachineInterface add(String id, String machineType) {
+		remove(id);
+		Machine machine = MachineFactory.load(machineType, callbackHandler);
+		if (machine != null) {
+			machines.put(id, machine);
+			Base.logger.fine("Registered " + machineType + " as '" + id + "'; "
+					+ machines.size() + " machines loaded");
+		}
+		return machine;
+	}
+
+	/// Load a machine and connect it to a port, keeping it under the port's name
+	public synchronized MachineInterface connect(String portName, String machineType) {
+		MachineInterface machine = add(portName, machineType);
+		if (machine != null) {
+			machine.connect(portName);
+		}
+		return machine;
+	}
+
+	/** The machine kept under the given name, or null if there isn't one. */
+	public synchronized MachineInterface get(String id) {
+		return machines.get(id);
+	}
+
+	/** The names of all the machines, in the order they were added. */
+	public synchronized Vector<String> getIds() {
+		return new Vector<String>(machines.keySet());
+	}
+
+	/** The name a machine is kept under, or null if it isn't one of ours. */
+	public synchronized String getId(MachineInterface machine) {
+		for (Map.Entry<String,Machine> entry : machines.entrySet()) {
+			if (entry.getValue() == machine) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	public synchronized int size() {
+		return machines.size();
+	}
+
+	/** Disconnect and dispose of the machine kept under the given name, if any. */
+	public synchronized void remove(String id) {
+		Machine machine = machines.remove(id);
+		if (machine != null) {
+			machine.dispose();
+		}
+	}
+
+	/** Dispose of every machine, and stop sending their events. */
+	public synchronized void dispose() {
+		for (Machine machine : machines.values()) {
+			machine.dispose();
+		}
+		machines.clear();
+
+		callbackHandler.interrupt();
+		try {
+			callbackHandler.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Listen to events from all the machines. */
+	public void addMachineListener(MachineListener listener) {
+		callbackHandler.addMachineListener(listener);
+	}
+
+	/** Listen to only the given kinds of events from all the machines. */
+	public void addMachineListener(MachineListener listener,
+			EnumSet<MachineCallbackHandler.EventType> types) {
+		callbackHandler.addMachineListener(listener, types);
+	}
+
+	public void removeMachineListener(MachineListener listener) {
+		callbackHandler.removeMachineListener(listener);
+	}
+}
@@ -0,0 +1,53 @@
+package replicatorg.machine;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import replicatorg.app.Base;
+
+/**
+ * Runs the periodic work of every loaded machine, such as status polls, on
+ * one thread.  The work itself only hands requests to each machine's own
+ * thread, so one thread serves any number of machines.
+ */
+final class MachineScheduler {
+
+	private static ScheduledExecutorService executor = null;
+
+	private MachineScheduler() {
+		throw new AssertionError();
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Machine Scheduler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Run a task every so often, starting a period from now, until the
+	 * returned future is cancelled.  A task that throws is logged and kept.
+	 */
+	static ScheduledFuture<?> every(long periodMillis, final Runnable task) {
+		return getExecutor().scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// An uncaught exception would cancel the task for good
+					Base.logger.warning("Scheduled machine task failed: " + e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+}
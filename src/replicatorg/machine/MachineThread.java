@@ -1,7 +1,13 @@
 package replicatorg.machine;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -11,18 +17,20 @@ import replicatorg.app.tools.XML;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.EstimationDriver;
 import replicatorg.drivers.OnboardParameters;
+import replicatorg.drivers.OnboardParameters.CommunicationStatistics;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.UsesSerial;
 import replicatorg.drivers.commands.AssessState;
-import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
 import replicatorg.machine.builder.Direct;
 import replicatorg.machine.builder.MachineBuilder;
+import replicatorg.machine.builder.ResumeFromLine;
 import replicatorg.machine.builder.ToLocalFile;
 import replicatorg.machine.builder.ToRemoteFile;
 import replicatorg.machine.builder.UsingRemoteFile;
@@ -37,70 +45,19 @@ import replicatorg.model.StringListSource;
  */
 class MachineThread extends Thread {
 
-	AssessStatusThread statusThread;
-	
-	// TODO: Should this be here?
-	class AssessStatusThread extends Thread {
-		
-		MachineThread machineThread;
-		
-		public AssessStatusThread(MachineThread machineThread) {
-			super("Assess Status");
-			this.machineThread = machineThread;
-		}
-		
-		public void run() {
-			while (true) {
-				try {
-					synchronized(this) {
-						// Send out a request, then sleep for a bit, then start over.
-						DriverCommand assessCommand = new AssessState();
-						
-						machineThread.scheduleRequest(new MachineCommand(
-								RequestType.RUN_COMMAND, assessCommand));
-						
-						sleep(1000);
-					}
-				} catch(InterruptedException e) {
-					Base.logger.fine("taking assess status thread down");
-					break;
-				}
-			}
-		}
-	}
-	
-	// TODO: The timeout/elapse behaivor of this is 
-	// a little wonky. It could be converted to some standard timer someday
-	class MachineTimer {
-		private long lastEventTime = 0;
-		private boolean enabled = false;
-		private long intervalMs = 3000;
-		
-		public void start(long interval) {
-			enabled = true;
-			intervalMs = interval;
-			lastEventTime = System.currentTimeMillis();
-		}
-		
-		public void stop() {
-			enabled = false;
-		}
-		
-		// checks for timeout elapsing, and resets the time for a new interval
-		public boolean elapsed() {
-			if (!enabled) {
-				return false;
-			}
-			long curMillis = System.currentTimeMillis();
-			if (lastEventTime + intervalMs <= curMillis) {
-				lastEventTime = curMillis;
-				return true;
-			}
-			return false;
-		}
-	}
-	
-	private MachineTimer pollingTimer;
+	/// How often to ask the machine how it is, and read its temperatures
+	static final long STATUS_POLL_MILLIS = 1000;
+
+	/// How close to its target a heater is taken to be up to temperature, in degrees C
+	static final double HEATED_MARGIN = 2;
+
+	// Our status polls, on the scheduler shared by all machines
+	private ScheduledFuture<?> statusPoll;
+	// Set by each poll; the temperatures are read the next time round the loop
+	private volatile boolean pollDue = false;
+	// Read the motherboard's communication statistics every so many polls
+	private int commsPollInterval;
+	private int pollsSinceComms = 0;
 
 	// Link of machine commands to run
 	ConcurrentLinkedQueue<MachineCommand> pendingQueue;
@@ -123,6 +80,8 @@ class MachineThread extends Thread {
 	
 		// Build statistics
 		private double startTimeMillis = -1;
+		// When the machine was first up to temperature, or -1 if it hasn't been yet
+		private double heatedTimeMillis = -1;
 	
 	// Our driver object. Null when no driver is selected.
 	private Driver driver = null;
@@ -136,13 +95,13 @@ class MachineThread extends Thread {
 	MachineModel cachedModel = null;
 	
 	private MachineBuilder machineBuilder;
+	// The build and lines processed at the last progress event
+	private MachineBuilder progressBuilder = null;
+	private int progressLines = -1;
 	
 	public MachineThread(Machine controller, Node machineNode) {
 		super("Machine Thread");
 		
-		pollingTimer = new MachineTimer();
-		pollingTimer.start(1000);
-		
 		pendingQueue = new ConcurrentLinkedQueue<MachineCommand>();
 		
 		// save our XML
@@ -154,8 +113,18 @@ class MachineThread extends Thread {
 		loadExtraPrefs();
 		parseName();
 		
-		statusThread = new AssessStatusThread(this);
-		statusThread.start();
+		if (Base.preferences.getBoolean("machinecontroller.jmx", true)) {
+			driver.getPipelineStats().register(name);
+		}
+		commsPollInterval = Base.preferences.getInt("machinecontroller.commsPollInterval", 10);
+		
+		statusPoll = MachineScheduler.every(STATUS_POLL_MILLIS, new Runnable() {
+			public void run() {
+				driver.getPipelineStats().update();
+				pollDue = true;
+				scheduleRequest(new MachineCommand(RequestType.RUN_COMMAND, new AssessState()));
+			}
+		});
 
 
 	}
@@ -302,7 +271,7 @@ class MachineThread extends Thread {
 			break;
 		case BUILD_DIRECT:
 			if (state.canPrint()) {
-				startTimeMillis = System.currentTimeMillis();
+				startTiming();
 
 				if (!isSimulating()) {
 					driver.getCurrentPosition(false); // reconcile position
@@ -320,6 +289,20 @@ class MachineThread extends Thread {
 				setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
 			}
 			break;
+		case RESUME_DIRECT:
+			if (state.canPrint()) {
+				startTiming();
+
+				if (!isSimulating()) {
+					driver.getCurrentPosition(false); // reconcile position
+				}
+
+				machineBuilder = new ResumeFromLine(driver, simulator, command.index, command.startLine,
+						new StringListSource(warmupCommands), new StringListSource(cooldownCommands));
+
+				setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
+			}
+			break;
 		case SIMULATE:
 //			// TODO: Implement this.
 //			setState(new MachineState(MachineState.State.BUILDING));
@@ -330,7 +313,7 @@ class MachineThread extends Thread {
 					break;
 				}
 				
-				startTimeMillis = System.currentTimeMillis();
+				startTiming();
 				
 				// Pad the job with start and end code
 				GCodeSource combinedSource = buildGCodeJob(command.source);
@@ -367,7 +350,7 @@ class MachineThread extends Thread {
 					break;
 				}
 				
-				startTimeMillis = System.currentTimeMillis();
+				startTiming();
 
 				// There is no need to reconcile the position.
 				
@@ -406,7 +389,7 @@ class MachineThread extends Thread {
 					break;
 				}
 				
-				startTimeMillis = System.currentTimeMillis();
+				startTiming();
 				
 				machineBuilder = new UsingRemoteFile(driver, command.remoteName);
 			
@@ -480,6 +463,16 @@ class MachineThread extends Thread {
 						command.command.run(driver);
 						completed = true;
 					} catch (RetryException e) {
+						// Don't hold a stop up behind a command the machine has no room for
+						if (isStopPending()) {
+							break;
+						}
+						try {
+							Thread.sleep(Math.max(1, e.getRetryAfterMillis()));
+						} catch (InterruptedException ie) {
+							interrupt();
+							break;
+						}
 					} catch (StopException e) {
 					}
 				}
@@ -528,11 +521,14 @@ class MachineThread extends Thread {
 			if(state.isConnected())
 			{
 				/// Check the status poll machine.
-				if ( pollingTimer.elapsed() ) {
+				if ( pollDue ) {
+					pollDue = false;
 					/// if we're not building, or if we are have 'moniter temp during build' enabled, 
 					//check for temp
 					boolean checkTempDuringBuild = Base.preferences.getBoolean("build.monitor_temp", true);
 
+					pollCommunicationStatistics();
+
 					if ( false == state.isBuilding() || checkTempDuringBuild ) {
 						MachineCommand pollCmd = new MachineCommand( RequestType.RUN_COMMAND, new replicatorg.drivers.commands.ReadTemperature() );
 						this.scheduleRequest( pollCmd );
@@ -540,25 +536,34 @@ class MachineThread extends Thread {
 						for (ToolModel t : tools) {
 							controller.emitToolStatus(t);
 						}
+						if (state.isBuilding()) {
+							checkHeated(tools);
+						}
 					}
 				}
 			}
 			
 			// If we are building
+			long idleMillis = 0;
 			if ( state.isBuilding() && !state.isPaused() ) {
 				//run another instruction on the machine.
 				machineBuilder.runNext();
 				
-				// Send out a progress event
-				// TODO: Should these be rate limited?
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							machineBuilder.getLinesProcessed(),
-							machineBuilder.getLinesTotal());
-				controller.emitProgress(progress);
+				// Send out a progress event, if there's been any
+				int linesProcessed = machineBuilder.getLinesProcessed();
+				if (machineBuilder != progressBuilder || linesProcessed != progressLines) {
+					progressBuilder = machineBuilder;
+					progressLines = linesProcessed;
+					MachineProgressEvent progress = 
+						new MachineProgressEvent(controller, (double)System.currentTimeMillis()-startTimeMillis,
+								estimatedBuildTime,
+								linesProcessed,
+								machineBuilder.getLinesTotal());
+					controller.emitProgress(progress);
+				}
 				
 				if (machineBuilder.finished()) {
+					recordBuildTime();
 					// TODO: Exit correctly.
 					if (state.getState() == MachineState.State.BUILDING) {
 						setState(new MachineState(MachineState.State.READY),
@@ -567,14 +572,25 @@ class MachineThread extends Thread {
 						setState(new MachineState(MachineState.State.NOT_ATTACHED),
 								notConnectedMessage());
 					}
+				} else {
+					// The machine may be too busy to take anything for a while
+					idleMillis = machineBuilder.getWaitMillis();
 				}
 			}
 			
-			// If there is nothing to do, sleep.
-			if ( !state.isBuilding() ) {
+			// If there is nothing to do, sleep until there's a request, or
+			// until the machine should have room again.  Requests are checked
+			// under the lock they're notified under, so none are missed.
+			if ( !state.isBuilding() || state.isPaused() || idleMillis > 0 ) {
 				try {
 					synchronized(this) {
-						wait();
+						if (pendingQueue.isEmpty()) {
+							if (idleMillis > 0 && state.isBuilding() && !state.isPaused()) {
+								wait(idleMillis);
+							} else {
+								wait();
+							}
+						}
 					}
 				} catch(InterruptedException e) {
 					break;
@@ -591,6 +607,15 @@ class MachineThread extends Thread {
 		dispose();
 	}
 	
+	private boolean isStopPending() {
+		for (MachineCommand pending : pendingQueue) {
+			if (pending.type == RequestType.STOP_ALL || pending.type == RequestType.STOP_MOTION) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public boolean scheduleRequest(MachineCommand request) {
 		pendingQueue.add(request);
 		synchronized(this) { notify(); }
@@ -646,6 +671,10 @@ class MachineThread extends Thread {
 	private void setState(MachineState state, String message) {
 		MachineState oldState = this.state;
 		this.state = state;
+		// Stop the builder's background work once its build is over
+		if (oldState.isBuilding() && !state.isBuilding() && machineBuilder != null) {
+			machineBuilder.dispose();
+		}
 		if (!oldState.equals(state)) {
 			controller.emitStateChange(state, message);
 		}
@@ -688,23 +717,46 @@ class MachineThread extends Thread {
 	
 	private void dispose() {
 		if (driver != null) {
+			driver.getPipelineStats().unregister();
 			driver.dispose();
 		}
 		if (simulator != null) {
 			simulator.dispose();
 		}
 		
-		if (statusThread != null) {
-			try {
-				statusThread.interrupt();
-				statusThread.join(1000);
-			} catch (InterruptedException e) {
-			}
+		if (statusPoll != null) {
+			statusPoll.cancel(false);
 		}
 		
 		setState(new MachineState(MachineState.State.NOT_ATTACHED));
 	}
 	
+	/**
+	 * Every so many status polls, copy the motherboard's own count of
+	 * packets and retries into the pipeline statistics.  Not while the
+	 * driver's capturing a build to a file, as queries go nowhere then.
+	 */
+	private void pollCommunicationStatistics() {
+		if (commsPollInterval <= 0 || !(driver instanceof OnboardParameters)) {
+			return;
+		}
+		if (state.isBuilding() && machineBuilder.getTarget() != JobTarget.MACHINE) {
+			return;
+		}
+		if (++pollsSinceComms < commsPollInterval) {
+			return;
+		}
+		pollsSinceComms = 0;
+		try {
+			CommunicationStatistics stats = ((OnboardParameters)driver).getCommunicationStatistics();
+			if (stats != null) {
+				driver.getPipelineStats().setCommunicationStatistics(stats);
+			}
+		} catch (RuntimeException e) {
+			Base.logger.fine("Could not read communication statistics: " + e);
+		}
+	}
+	
 	public void readName() {
 		if (driver instanceof OnboardParameters) {
 			String n = ((OnboardParameters)driver).getMachineName();
@@ -749,6 +801,72 @@ class MachineThread extends Thread {
 	public void setEstimatedBuildTime(double estimatedBuildTime) {
 		this.estimatedBuildTime = estimatedBuildTime;
 	}
+
+	/// A build is starting: time it from now until it's up to temperature
+	private void startTiming() {
+		startTimeMillis = System.currentTimeMillis();
+		heatedTimeMillis = -1;
+	}
+
+	/**
+	 * Note when every heater that has been given a temperature first reaches
+	 * it.  The estimate leaves heating up out, so the build is timed from
+	 * then on; a build that never heats anything is timed from the start.
+	 */
+	private void checkHeated(Vector<ToolModel> tools) {
+		if (heatedTimeMillis >= 0)
+			return;
+		boolean heating = false;
+		for (ToolModel t : tools) {
+			if (t.hasHeater() && t.getTargetTemperature() > 0) {
+				heating = true;
+				if (t.getCurrentTemperature() < t.getTargetTemperature() - HEATED_MARGIN)
+					return;
+			}
+			if (t.hasHeatedPlatform() && t.getPlatformTargetTemperature() > 0) {
+				heating = true;
+				if (t.getPlatformCurrentTemperature() < t.getPlatformTargetTemperature() - HEATED_MARGIN)
+					return;
+			}
+		}
+		if (heating) {
+			heatedTimeMillis = System.currentTimeMillis();
+			Base.logger.fine("Up to temperature after "
+					+ EstimationDriver.getBuildTimeString(heatedTimeMillis - startTimeMillis, true));
+		}
+	}
+
+	/**
+	 * Log how close the estimate came to the time a finished build really
+	 * took, and add both to build-times.csv in the user's directory, so the
+	 * estimator can be checked against real prints.
+	 */
+	private void recordBuildTime() {
+		if (machineBuilder.getTarget() != JobTarget.MACHINE || estimatedBuildTime <= 0)
+			return;
+
+		// Heating up isn't estimated, so it isn't counted
+		double from = heatedTimeMillis >= 0 ? heatedTimeMillis : startTimeMillis;
+		double actual = System.currentTimeMillis() - from;
+		Base.logger.info("Build took " + EstimationDriver.getBuildTimeString(actual, true)
+				+ ", estimated " + EstimationDriver.getBuildTimeString(estimatedBuildTime, true)
+				+ " (" + Math.round(100 * (estimatedBuildTime - actual) / actual) + "% out)");
+
+		File log = Base.getUserFile("build-times.csv", false);
+		try {
+			boolean isNew = !log.exists();
+			PrintWriter out = new PrintWriter(new FileWriter(log, true));
+			if (isNew)
+				out.println("finished,machine,lines,estimated_ms,actual_ms");
+			out.println(System.currentTimeMillis() + "," + name + "," + machineBuilder.getLinesTotal()
+					+ "," + Math.round(estimatedBuildTime) + "," + Math.round(actual));
+			out.close();
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Couldn't record build time in " + log.getPath(), e);
+		}
+		// Don't count it again against a build that wasn't estimated
+		estimatedBuildTime = 0;
+	}
 	
 	public String getMachineName() { return name; }
 }
\ No newline at end of file
@@ -0,0 +1,409 @@
+package replicatorg.machine;
+
+import java.awt.geom.Rectangle2D;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.CompiledGCodeSource;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.UnparseableLineException;
+import replicatorg.drivers.AccelerationProfile;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Everything we want to know about a GCode program before building it,
+ * found in one pass over the code: the safety check messages, the estimated
+ * build time, the XY bounds of the moves, how much each extruder axis
+ * pushes out and how many layers there are.
+ *
+ * Each line is parsed once, and the same parsed command is given to both
+ * the safety check and the estimator.  A long text program is parsed and
+ * checked in chunks on a pool of threads, while the estimator, which has to
+ * see the lines in order, takes each chunk as it comes back.  Results are kept for the last few
+ * programs, keyed by a hash of their text, so building the same code again
+ * on the same machine skips the pass altogether.
+ */
+public class PreflightAnalysis {
+
+	/// How many programs' results are kept
+	private static final int CACHE_SIZE = 8;
+
+	/// Lines handed to each worker at a time, when there are enough to share out
+	static final int CHUNK_LINES = 8192;
+
+	private static final Map<String, PreflightAnalysis> cache =
+		new LinkedHashMap<String, PreflightAnalysis>(CACHE_SIZE, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreflightAnalysis> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+
+	// The machine the code was checked against; results for another machine don't apply
+	private final MachineModel model;
+	// The planner settings the time was estimated with, or null for none
+	private final AccelerationProfile profile;
+
+	private SafetyCheck.Result safety;
+	private double buildTime;
+	private Rectangle2D.Double bounds;
+	// Total positive travel of the A and B axes, in mm
+	private double extrudedA = 0, extrudedB = 0;
+	private int layers = 0;
+
+	private PreflightAnalysis(MachineModel model, AccelerationProfile profile) {
+		this.model = model;
+		this.profile = profile;
+	}
+
+	/**
+	 * Analyze the given code for the given machine, or fetch the results of
+	 * an earlier analysis of the same code.
+	 * @param profile the firmware's planner settings, to estimate accelerated
+	 * moves with, or null if it doesn't accelerate
+	 */
+	public static PreflightAnalysis analyze(GCodeSource source, MachineModel model,
+			AccelerationProfile profile) {
+		String key = contentHash(source);
+		if (key != null) {
+			synchronized (cache) {
+				PreflightAnalysis cached = cache.get(key);
+				if (cached != null && cached.model == model
+						&& (profile == null ? cached.profile == null : profile.equals(cached.profile))) {
+					Base.logger.fine("Reusing pre-flight results for unchanged code");
+					return cached;
+				}
+			}
+		}
+
+		PreflightAnalysis analysis = new PreflightAnalysis(model, profile);
+		analysis.run(source);
+
+		if (key != null) {
+			synchronized (cache) {
+				cache.put(key, analysis);
+			}
+		}
+		return analysis;
+	}
+
+	/// Forget all cached results
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private void run(GCodeSource source) {
+		SafetyCheck check = new SafetyCheck(model);
+		Estimate estimate = new Estimate();
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (source instanceof CompiledGCodeSource || threads < 2
+				|| source.getLineCount() <= CHUNK_LINES) {
+			safety = runInline(source, check, estimate);
+		} else {
+			// This thread does the estimating, which has to be done in order
+			safety = runChunked(source, check, estimate, threads - 1);
+		}
+		buildTime = estimate.estimator.getBuildTime();
+		bounds = (Rectangle2D.Double)estimate.estimator.getBounds().clone();
+	}
+
+	/// Parse, check and estimate each line in turn on this thread
+	private SafetyCheck.Result runInline(GCodeSource source, SafetyCheck check, Estimate estimate) {
+		SafetyCheck.LineChecker checker = check.new LineChecker();
+		boolean checking = true;
+
+		Iterator<GCodeCommand> commands = null;
+		Iterator<String> lines = null;
+		GCodeCommand gcode = null;
+		if (source instanceof CompiledGCodeSource) {
+			// Already tokenized, so there's nothing to parse
+			commands = ((CompiledGCodeSource)source).commandIterator();
+		} else {
+			lines = source.iterator();
+			gcode = new GCodeCommand();
+		}
+
+		while (commands != null ? commands.hasNext() : lines.hasNext()) {
+			String line = null;
+			try {
+				if (commands != null) {
+					gcode = commands.next();
+					line = gcode.getLine();
+				} else {
+					line = lines.next();
+					gcode.parse(line);
+				}
+			} catch (UnparseableLineException e) {
+				// A compiled line that couldn't be tokenized
+				if (checking) {
+					checker.unparseable(e.getLine());
+				}
+				continue;
+			} catch (Exception e) {
+				// Only the safety check cares about lines we can't read
+				if (checking) {
+					checker.unparseable(line);
+				}
+				continue;
+			}
+
+			// Stop collecting messages after the first toolhead error, as the
+			// safety check does, but keep estimating to the end
+			if (checking) {
+				checking = checker.check(gcode, line);
+			}
+			estimate.add(gcode);
+		}
+		return checker.finish();
+	}
+
+	/**
+	 * Parse and check chunks of lines on a pool of threads, and estimate
+	 * the parsed lines here as each chunk comes back, in line order.  The
+	 * chunks' messages are merged as a single pass would have found them.
+	 */
+	private SafetyCheck.Result runChunked(GCodeSource source, SafetyCheck check,
+			Estimate estimate, int threads) {
+		SafetyCheck.Result safety = new SafetyCheck.Result();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+		try {
+			List<String> lines = new ArrayList<String>(CHUNK_LINES);
+			for (String line : source) {
+				lines.add(line);
+				if (lines.size() == CHUNK_LINES) {
+					pending.add(pool.submit(new Chunk(check, lines)));
+					lines = new ArrayList<String>(CHUNK_LINES);
+
+					// Don't get too far ahead of the estimate, so that only
+					// a few chunks of parsed lines are held at once
+					while (pending.size() > 2 * threads) {
+						pending.removeFirst().get().finish(safety, estimate);
+					}
+				}
+			}
+			if (!lines.isEmpty()) {
+				pending.add(pool.submit(new Chunk(check, lines)));
+			}
+			while (!pending.isEmpty()) {
+				pending.removeFirst().get().finish(safety, estimate);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return safety;
+	}
+
+	/// A run of lines parsed and safety checked on its own
+	private static class Chunk implements Callable<Chunk> {
+		private final SafetyCheck check;
+		private final List<String> lines;
+		// Each line parsed, or null where it couldn't be
+		private GCodeCommand[] commands;
+		private SafetyCheck.Result result;
+
+		Chunk(SafetyCheck check, List<String> lines) {
+			this.check = check;
+			this.lines = lines;
+		}
+
+		/// Parse and check the lines.  This touches nothing shared.
+		public Chunk call() {
+			SafetyCheck.LineChecker checker = check.new LineChecker();
+			boolean checking = true;
+			commands = new GCodeCommand[lines.size()];
+			for (int i = 0; i < commands.length; i++) {
+				String line = lines.get(i);
+				GCodeCommand gcode = new GCodeCommand();
+				try {
+					gcode.parse(line);
+				} catch (Exception e) {
+					if (checking) {
+						checker.unparseable(line);
+					}
+					continue;
+				}
+				if (checking) {
+					checking = checker.check(gcode, line);
+				}
+				commands[i] = gcode;
+			}
+			result = checker.finish();
+			return this;
+		}
+
+		/// Add what the chunk found to the whole, and estimate its lines
+		void finish(SafetyCheck.Result safety, Estimate estimate) {
+			SafetyCheck.append(safety, result);
+			for (GCodeCommand gcode : commands) {
+				if (gcode != null) {
+					estimate.add(gcode);
+				}
+			}
+		}
+	}
+
+	/// Runs parsed lines through the estimator, counting extrusion and layers as it goes
+	private class Estimate {
+		final EstimationDriver estimator = new EstimationDriver();
+		private final GCodeParser parser = new GCodeParser();
+		private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+		private Point5d last;
+		private double layerZ = Double.NEGATIVE_INFINITY;
+
+		Estimate() {
+			estimator.setMachine(model);
+			estimator.setAccelerationProfile(profile);
+			parser.init(estimator);
+			last = estimator.getCurrentPosition(false);
+		}
+
+		void add(GCodeCommand gcode) {
+			parser.parse(gcode, queue);
+			for (DriverCommand command : queue) {
+				try {
+					command.run(estimator);
+				} catch (RetryException r) {
+					// Ignore.
+				} catch (StopException e) {
+					// TODO: Stop the estimator at this point?
+				}
+			}
+			queue.clear();
+
+			if (gcode.hasCode('G') && gcode.getCodeValue('G') <= 3) {
+				Point5d now = estimator.getCurrentPosition(false);
+				double da = now.a() - last.a();
+				double db = now.b() - last.b();
+				if (da > 0) extrudedA += da;
+				if (db > 0) extrudedB += db;
+
+				// A new layer starts with the first extruding move above the last one
+				if ((da > 0 || db > 0 || motorRunning()) && now.z() > layerZ) {
+					layers++;
+					layerZ = now.z();
+				}
+				last = now;
+			}
+		}
+	}
+
+	// Older GCode extrudes by turning the extruder motor on, not by moving an axis
+	private boolean motorRunning() {
+		for (ToolModel tool : model.getTools()) {
+			if (tool.isMotorEnabled()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A hash of every line of the source, or null if there's no MD5 here.
+	 * Characters are hashed two bytes at a time through a scratch buffer,
+	 * so no copies of the lines are made.
+	 */
+	private static String contentHash(GCodeSource source) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+		byte[] buffer = new byte[4096];
+		int used = 0;
+		for (String line : source) {
+			for (int i = 0; i <= line.length(); i++) {
+				// End each line with a newline, so a split line doesn't hash the same
+				char c = (i < line.length()) ? line.charAt(i) : '\n';
+				if (used + 2 > buffer.length) {
+					digest.update(buffer, 0, used);
+					used = 0;
+				}
+				buffer[used++] = (byte)(c >> 8);
+				buffer[used++] = (byte)c;
+			}
+		}
+		digest.update(buffer, 0, used);
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Put the safety check's messages into the given map, along with the
+	 * line each was last found on, logging them as the safety check does.
+	 */
+	public void getSafetyMessages(Map<String, Integer> messages) {
+		SafetyCheck.merge(safety, messages);
+	}
+
+	/// Estimated build time, as EstimationDriver.getBuildTime() gives it
+	public double getBuildTime() {
+		return buildTime;
+	}
+
+	/// XY extent of every move, in mm
+	public Rectangle2D.Double getBounds() {
+		return (Rectangle2D.Double)bounds.clone();
+	}
+
+	/// How far the given axis moves forward over the whole build, in mm
+	public double getExtrusion(AxisId axis) {
+		if (axis == AxisId.A) return extrudedA;
+		if (axis == AxisId.B) return extrudedB;
+		return 0;
+	}
+
+	/**
+	 * How much the given tool extrudes over the whole build, in mm of
+	 * filament, or 0 if its motor isn't driven by a stepper axis.
+	 */
+	public double getToolExtrusion(int toolIndex) {
+		ToolModel tool = model.getTool(toolIndex);
+		if (tool == null || tool.getMotorStepperAxis() == null) {
+			return 0;
+		}
+		return getExtrusion(tool.getMotorStepperAxis());
+	}
+
+	/// Number of distinct heights at which something was extruded
+	public int getLayerCount() {
+		return layers;
+	}
+}
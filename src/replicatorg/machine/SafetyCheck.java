@@ -0,0 +1,229 @@
+package replicatorg.machine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeEnumeration;
+import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.Endstops;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Looks through GCode for problems before it is built: codes we don't know,
+ * homing towards the wrong endstops, toolheads the machine doesn't have and
+ * feedrates that are too fast or negative.
+ *
+ * Each line is checked on its own, so a long source can be cut into chunks
+ * that are checked at once, each with its own LineChecker.  Appending their
+ * results in line order gives the same messages, line numbers and log
+ * output as a single pass.
+ */
+class SafetyCheck {
+
+	private final int nToolheads;
+	private final Point5d maxRates;
+	private final Endstops xstop, ystop, zstop;
+
+	SafetyCheck(MachineModel model) {
+		nToolheads = model.getTools().size();
+		maxRates = model.getMaximumFeedrates();
+		xstop = model.getEndstops(AxisId.X);
+		ystop = model.getEndstops(AxisId.Y);
+		zstop = model.getEndstops(AxisId.Z);
+	}
+
+	/// A message for a line, and how loudly to log it (null for not at all)
+	static class Message {
+		final String text;
+		final int line;
+		final Level level;
+
+		Message(String text, int line, Level level) {
+			this.text = text;
+			this.line = line;
+			this.level = level;
+		}
+	}
+
+	/// What a chunk found, with line numbers counted from the start of the chunk
+	static class Result {
+		final List<Message> messages = new ArrayList<Message>();
+		// How far the line numbering moved over the chunk
+		int linesCounted = 0;
+		// Set if the chunk found a toolhead error, which ends the check
+		boolean stopped = false;
+	}
+
+	/// Add a chunk's messages to the map, logging them
+	static void merge(Result result, Map<String, Integer> messages) {
+		for (Message message : result.messages) {
+			messages.put(message.text, message.line);
+			if (message.level != null) {
+				Base.logger.log(message.level, message.text);
+			}
+		}
+	}
+
+	/**
+	 * Add the next chunk's messages to those of the chunks before it,
+	 * numbering its lines on from theirs.  Nothing is added once a chunk
+	 * has stopped the check.
+	 */
+	static void append(Result whole, Result chunk) {
+		if (whole.stopped) {
+			return;
+		}
+		for (Message message : chunk.messages) {
+			whole.messages.add(new Message(message.text, whole.linesCounted + message.line, message.level));
+		}
+		whole.linesCounted += chunk.linesCounted;
+		whole.stopped = chunk.stopped;
+	}
+
+	/**
+	 * Checks lines one at a time, for callers that are already parsing the
+	 * lines for some other reason and don't want to parse them twice.
+	 */
+	class LineChecker {
+		private final Result result = new Result();
+		// Whether each main code seen so far is one we know
+		private final Map<String, Boolean> known = new HashMap<String, Boolean>();
+		private int lineNumber = 0;
+
+		/// Note a line that couldn't be parsed
+		void unparseable(String line) {
+			String message = "ReplicatorG can't parse '" + line +"'";
+			result.messages.add(new Message(message, lineNumber, Level.SEVERE));
+		}
+
+		/**
+		 * Check a parsed line.
+		 * @return false if the line ends the check, and no more should be given
+		 */
+		boolean check(GCodeCommand gcode, String line) {
+			String message;
+
+			// The main code is everything up to the first space.  A command
+			// made only of spaces is skipped, as it always has been, without
+			// counting towards the line number.
+			String cmd = gcode.getCommand();
+			int space = cmd.indexOf(' ');
+			if (cmd.length() > 0 && allSpaces(cmd)) return true;
+			String mainCode = (space < 0) ? cmd : cmd.substring(0, space);
+
+			if(!("").equals(mainCode))
+			{
+				Boolean recognized = known.get(mainCode);
+				if (recognized == null) {
+					recognized = (GCodeEnumeration.getGCode(mainCode) != null);
+					known.put(mainCode, recognized);
+				}
+				if (!recognized) {
+					message = "ReplicatorG doesn't recognize GCode '" + line +"'";
+					result.messages.add(new Message(message, lineNumber, Level.SEVERE));
+				}
+			}
+
+			// Check for homing in the wrong direction
+			if(!homingDirectionIsSafe(gcode))
+			{
+				message = "Homing in the wrong direction for selected machine: '" + line +"'";
+				result.messages.add(new Message(message, lineNumber, Level.SEVERE));
+			}
+
+			// we're going to check for the correct number of toolheads in each command
+			// the list of exceptions keeps growing, do we really need to do this check?
+			// maybe we should just specify the things to check, rather than the reverse
+			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
+													   && gcode.getCodeValue('M') != 106
+													   && gcode.getCodeValue('M') != 107)
+			{
+				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
+				result.messages.add(new Message(message, lineNumber, null));
+				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
+				result.messages.add(new Message(message, lineNumber, Level.SEVERE));
+				result.stopped = true; //TRICKY: see footnote [1]
+				return false;
+			}
+			if(gcode.hasCode('F'))
+			{
+				double fVal = gcode.getCodeValue('F');
+				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
+					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
+// we're going to ignore this for now, since most of the time the z isn't actually moving
+//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||
+					(gcode.hasCode('A') && fVal > maxRates.a()) ||
+					(gcode.hasCode('B') && fVal > maxRates.b()))
+				{
+					message = "You're moving too fast! " + line +
+							 " turns at least one axis faster than it's max speed.";
+					result.messages.add(new Message(message, lineNumber, Level.WARNING));
+				}
+				//BUGFIX! Can cause problems when used on reprap machines!
+				if (fVal < 0)
+				{
+					message = "Negative feedrate detected! '" + line +
+							 "' causes crashes in the reprap driver.";
+					result.messages.add(new Message(message, lineNumber, Level.SEVERE));
+				}
+			}
+
+			lineNumber++;
+			return true;
+		}
+
+		/// Everything found so far
+		Result finish() {
+			result.linesCounted = lineNumber;
+			return result;
+		}
+	}
+
+	//footnote [1]:
+	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
+	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to 
+	// thousands of exactly the same error
+	
+	private static boolean allSpaces(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) != ' ')
+				return false;
+		}
+		return true;
+	}
+
+	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
+		Endstops x, y, z;
+
+		// If it doesn't have the code, ignore it
+		x = gcode.hasCode('X') ? xstop : Endstops.BOTH;
+		y = gcode.hasCode('Y') ? ystop : Endstops.BOTH;
+		z = gcode.hasCode('Z') ? zstop : Endstops.BOTH;
+
+		if(gcode.getCodeValue('G') == 161)
+		{
+			if((x != Endstops.MIN) && (x != Endstops.BOTH))
+				return false;
+			if((y != Endstops.MIN) && (y != Endstops.BOTH))
+				return false;
+			if((z != Endstops.MIN) && (z != Endstops.BOTH))
+				return false;
+		}
+		else if(gcode.getCodeValue('G') == 162)
+		{
+			if((x != Endstops.MAX) && (x != Endstops.BOTH))
+				return false;
+			if((y != Endstops.MAX) && (y != Endstops.BOTH))
+				return false;
+			if((z != Endstops.MAX) && (z != Endstops.BOTH))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,39 @@
+package replicatorg.machine.builder;
+
+/**
+ * How long a builder should leave the machine alone after finding it busy.
+ *
+ * If the driver said how long it'll be busy, that's how long we wait.  If
+ * not, the wait starts short, so a buffer that had only just filled costs
+ * next to nothing, and doubles each time the machine is still busy, so that
+ * a long move or a heat-up isn't polled hundreds of times a second.
+ */
+class Backoff {
+
+	static final long MIN_MILLIS = 1;
+	static final long MAX_MILLIS = 100;
+
+	private long next = MIN_MILLIS;
+	private long wait = 0;
+
+	/// The machine is busy; hint is how long the driver expects it to be, or 0 if it can't say
+	void busy(long hintMillis) {
+		if (hintMillis > 0) {
+			wait = Math.min(hintMillis, MAX_MILLIS);
+		} else {
+			wait = next;
+			next = Math.min(2 * next, MAX_MILLIS);
+		}
+	}
+
+	/// The machine took what we gave it
+	void ready() {
+		next = MIN_MILLIS;
+		wait = 0;
+	}
+
+	/// How long to wait before trying again; 0 to carry straight on
+	long getWaitMillis() {
+		return wait;
+	}
+}
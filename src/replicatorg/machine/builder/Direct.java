@@ -8,15 +8,22 @@ import java.util.logging.Level;
 import javax.swing.JOptionPane;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.CompiledGCodeSource;
+import replicatorg.app.gcode.GCodeCommand;
 import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.ParallelLexer;
+import replicatorg.app.gcode.UnparseableLineException;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.PipelineStats;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.util.Point5d;
 
 /**
  * Machine builder for building a GCodeSource on a Driver
@@ -34,12 +41,16 @@ public class Direct implements MachineBuilder{
 	
 	GCodeSource source;
 	Iterator<String> i;
+	// Used in place of i when the source is already tokenized
+	Iterator<GCodeCommand> commands;
 	
 	int linesProcessed;
 	int linesTotal;
 	
 	Driver driver;
 	GCodeParser parser;
+	// Where the builder counts lines, parses and retries
+	PipelineStats stats;
 	Queue<DriverCommand> driverQueue;
 	boolean building;		// True if we are running to the machine
 	
@@ -49,10 +60,30 @@ public class Direct implements MachineBuilder{
 	boolean simulating;		// True if we are running to the simulator
 	
 	boolean retry = false;
+	// How long to leave the machine alone when it's busy
+	Backoff backoff = new Backoff();
+	
+	// Parsing on another thread, ahead of the machine
+	boolean parseAhead;
+	ParseAhead lookahead = null;
+	// The next line from the lookahead, once we've had to look at it
+	ParseAhead.ParsedLine nextParsed = null;
+	// The parser's state after the last line taken from the lookahead
+	GCodeParser.ModalState lookaheadState = null;
+	int linesParsedAhead = 0;
+	int linesReparsed = 0;
 	
 	State state;
 	
 	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source) {
+		this(driver, simulator, source, false);
+	}
+
+	/**
+	 * @param lexAhead tokenize the source on other threads, ahead of
+	 * building it; worth it when the driver never waits on a machine
+	 */
+	public Direct(Driver driver, SimulationDriver simulator, GCodeSource source, boolean lexAhead) {
 		this.driver = driver;
 		this.source = source;
 	
@@ -60,12 +91,23 @@ public class Direct implements MachineBuilder{
 		linesTotal = source.getLineCount();
 		
 		// Initialize our gcode provider
-		i = source.iterator();
+		if (source instanceof CompiledGCodeSource) {
+			commands = ((CompiledGCodeSource)source).commandIterator();
+		} else if (source instanceof GCodeSourceCollection
+				&& ((GCodeSourceCollection)source).hasCompiledSource()) {
+			// A compiled file between the start and end code
+			commands = ((GCodeSourceCollection)source).commandIterator();
+		} else if (lexAhead) {
+			commands = new ParallelLexer(source);
+		} else {
+			i = source.iterator();
+		}
 		
 		if (driver == null) {
 			building = false;
 		} else {
 			building = true;
+			stats = driver.getPipelineStats();
 			// Set up a parser to talk to the driver
 			parser = new GCodeParser();
 			
@@ -91,6 +133,10 @@ public class Direct implements MachineBuilder{
 		}
 		
 		simulating = false;
+		
+		// Parsing ahead only pays when the driver waits on a machine
+		parseAhead = building && !lexAhead && !simulating
+				&& Base.preferences.getBoolean("build.parseAhead", true);
 	
 		state = State.RUNNING_GCODE;
 	}
@@ -104,12 +150,24 @@ public class Direct implements MachineBuilder{
 	// Run the next command on the driver
 	@Override
 	public void runNext() { 
-		if (!i.hasNext()) {
+		// Start parsing ahead once anything queued before the file has gone,
+		// so the lookahead starts from where the file does
+		if (parseAhead && lookahead == null && retry == false && driverQueue.isEmpty()) {
+			lookahead = new ParseAhead(driver, new LinkedList<Object>(),
+					commands != null ? commands : i, parser.getModalState(), null);
+		}
+		
+		if (!hasNextLine()) {
 			// TODO: This is clunky.
 			if (driver.isFinished()) {
+				if (lookahead != null && state != State.FINISHED) {
+					Base.logger.fine("Parsed " + linesParsedAhead + " lines ahead of the machine, "
+							+ linesReparsed + " parsed again");
+				}
 				state = State.FINISHED;
 			} else {
 				state = State.WAITING_FOR_MACHINE_FINISH;
+				backoff.busy(0);
 			}
 			return;
 		}
@@ -118,24 +176,72 @@ public class Direct implements MachineBuilder{
 		// TODO: Do we need to check if we are building?
 		if (building && driver.hasError()) {
 			Base.logger.severe("Driver reported an error, aborting build");
+			backoff.busy(0);
 			return;
 		}
 		
 		// Read and process next line
-		if (retry == false) {
-			String line = i.next();
+		if (retry == false && lookahead != null) {
+			ParseAhead.ParsedLine parsed = takeParsed();
+			Base.logger.log(Level.INFO,"Sending Line "
+                + linesProcessed + ": " + parsed.line);
+			linesProcessed++;
+			if (building) {
+				stats.lineSent();
+				stats.setLookaheadDepth(getLookaheadDepth());
+			}
+			
+			// Only use what was parsed ahead if it was parsed for where the machine is
+			Point5d actual = null;
+			if (parsed.assumed != null) {
+				actual = driver.getCurrentPosition(false);
+			}
+			if (parsed.unsafe || (actual != null && !samePosition(actual, parsed.assumed))) {
+				reparse(parsed, actual);
+			} else {
+				driverQueue.addAll(parsed.commands);
+				lookaheadState = parsed.after;
+				linesParsedAhead++;
+			}
+		} else if (retry == false) {
+			String line;
+			GCodeCommand gcode = null;
+			if (commands != null) {
+				try {
+					gcode = commands.next();
+					line = gcode.getLine();
+				} catch (UnparseableLineException e) {
+					// Parse the text below, so it fails as a text source's would
+					line = e.getLine();
+				}
+			} else {
+				line = i.next();
+			}
 			Base.logger.log(Level.INFO,"Sending Line "
                 + linesProcessed + ": " + line);
 			linesProcessed++;
+			if (building) {
+				stats.lineSent();
+			}
 
 			// Parse a line for the actual machine
 			if (building) {
-				parser.parse(line, driverQueue);
+				long start = System.nanoTime();
+				if (gcode != null) {
+					parser.parse(gcode, driverQueue);
+				} else {
+					parser.parse(line, driverQueue);
+				}
+				stats.parsed(System.nanoTime() - start);
 			}
 			
 			// If we're simulating, parse a line to feed to the simulator 
 			if (simulating) {
-				simulationParser.parse(line, simulatorQueue);
+				if (gcode != null) {
+					simulationParser.parse(gcode, simulatorQueue);
+				} else {
+					simulationParser.parse(line, simulatorQueue);
+				}
 			}
 		}
 		
@@ -163,11 +269,14 @@ public class Direct implements MachineBuilder{
 			}
 			
 			retry = false;
+			backoff.ready();
 		} catch (RetryException r) {
 			// Indicate that we should retry the current line, rather
 			// than proceeding to the next, on the next go-round.
 			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+			stats.retried();
 			retry = true;
+			backoff.busy(r.getRetryAfterMillis());
 		} catch (StopException e) {
 			// TODO: Just returning here seems dangerous, better to notify the state machine.
 			
@@ -201,6 +310,86 @@ public class Direct implements MachineBuilder{
 		}
 	}
 	
+	private boolean hasNextLine() {
+		if (lookahead != null) {
+			if (nextParsed == null) {
+				nextParsed = takeParsed();
+			}
+			return nextParsed != ParseAhead.END;
+		}
+		return commands != null ? commands.hasNext() : i.hasNext();
+	}
+	
+	private ParseAhead.ParsedLine takeParsed() {
+		ParseAhead.ParsedLine parsed = nextParsed;
+		nextParsed = null;
+		while (parsed == null) {
+			try {
+				parsed = lookahead.take();
+			} catch (InterruptedException e) {
+				// Being shut down; the line will be there if we're asked again
+				Thread.currentThread().interrupt();
+				return ParseAhead.END;
+			}
+		}
+		return parsed;
+	}
+	
+	private static boolean samePosition(Point5d a, Point5d b) {
+		for (int axis = 0; axis < 5; axis++) {
+			if (a.get(axis) != b.get(axis)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Parse a line here, from the parser's state after the line before, as
+	 * what was parsed ahead can't be used; then start parsing ahead again
+	 * after it.
+	 * @param actual where the machine is, if we've asked
+	 */
+	private void reparse(ParseAhead.ParsedLine parsed, Point5d actual) {
+		linesReparsed++;
+		if (lookaheadState != null) {
+			parser.setModalState(lookaheadState);
+			lookaheadState = null;
+		}
+		long start = System.nanoTime();
+		if (parsed.gcode != null) {
+			parser.parse(parsed.gcode, driverQueue);
+		} else {
+			parser.parse(parsed.line, driverQueue);
+		}
+		stats.parsed(System.nanoTime() - start);
+		lookahead.restart(parser.getModalState(), ParseAhead.predict(actual, driverQueue));
+	}
+	
+	/// Lines parsed ahead and waiting to be sent
+	public int getLookaheadDepth() {
+		return lookahead == null ? 0 : lookahead.getDepth();
+	}
+	
+	/// Stop any work being done ahead of the build, if it's abandoned
+	@Override
+	public void dispose() {
+		if (commands instanceof ParallelLexer) {
+			((ParallelLexer)commands).close();
+		}
+		if (lookahead != null) {
+			lookahead.stop();
+			// Leave it there, stopped, so the build isn't started over
+			parseAhead = false;
+			stats.setLookaheadDepth(0);
+		}
+	}
+
+	@Override
+	public long getWaitMillis() {
+		return backoff.getWaitMillis();
+	}
+
 	public int getLinesTotal() {
 		return linesTotal;
 	}
@@ -17,6 +17,19 @@ public interface MachineBuilder {
 	// Run the next command on the machine, if possible.
 	public void runNext();
 	
+	/**
+	 * How long the machine is expected to be busy after the last runNext(),
+	 * so there's no point calling runNext() or finished() again before then.
+	 * @return the time to wait in ms, or 0 to carry straight on
+	 */
+	public long getWaitMillis();
+	
+	/**
+	 * Stop anything the builder is doing in the background, once the build
+	 * is over or abandoned.  Safe to call more than once.
+	 */
+	public void dispose();
+	
 	/**
 	 * True if this builder is managing a build on a live machine (i.e., not a file or buffer)
 	 * @return
@@ -0,0 +1,370 @@
+package replicatorg.machine.builder;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.UnparseableLineException;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.PipelineStats;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.commands.CloseValve;
+import replicatorg.drivers.commands.DataCaptureNote;
+import replicatorg.drivers.commands.Delay;
+import replicatorg.drivers.commands.DisableFan;
+import replicatorg.drivers.commands.DisableMotor;
+import replicatorg.drivers.commands.DisplayMessage;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.EnableExtruderMotor;
+import replicatorg.drivers.commands.EnableFan;
+import replicatorg.drivers.commands.OpenValve;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.SendBeep;
+import replicatorg.drivers.commands.SetBuildPercent;
+import replicatorg.drivers.commands.SetChamberTemperature;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.drivers.commands.SetFeedrate;
+import replicatorg.drivers.commands.SetLedStrip;
+import replicatorg.drivers.commands.SetMotorDirection;
+import replicatorg.drivers.commands.SetMotorSpeedPWM;
+import replicatorg.drivers.commands.SetMotorSpeedRPM;
+import replicatorg.drivers.commands.SetPlatformTemperature;
+import replicatorg.drivers.commands.SetServo;
+import replicatorg.drivers.commands.SetTemperature;
+import replicatorg.drivers.commands.WaitUntilBufferEmpty;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Parses the lines of a build on a thread of its own, a few hundred lines
+ * ahead of the machine thread, so that the machine thread only has to send
+ * the commands.
+ *
+ * Parsing a line can depend on where the machine is, which isn't known
+ * until the lines before it have been sent, so parsing ahead is a guess:
+ * each line is parsed as if the machine will be where the lines before it
+ * took it.  The guess is kept with the line, and the machine thread only
+ * uses the line if the driver agrees with it when the time comes; if not,
+ * or if parsing the line asked the driver anything else that sending
+ * earlier lines could change, the line is parsed again on the machine
+ * thread and parsing ahead starts over after it.  Either way each line is
+ * turned into exactly the commands it would have been without parsing ahead.
+ */
+class ParseAhead implements Runnable {
+
+	/// Lines parsed ahead of the machine, at most
+	static final int DEPTH = 500;
+
+	/// A line, and the commands it was turned into
+	static class ParsedLine {
+		final GCodeCommand gcode;
+		final String line;
+		final LinkedList<DriverCommand> commands = new LinkedList<DriverCommand>();
+		/// Where the machine was taken to be when the line was parsed, if it mattered
+		Point5d assumed = null;
+		/// Parsing it asked something we couldn't answer ahead of time
+		boolean unsafe = false;
+		/// The parser's modal state after the line
+		GCodeParser.ModalState after;
+
+		ParsedLine(GCodeCommand gcode, String line) {
+			this.gcode = gcode;
+			this.line = line;
+		}
+	}
+
+	/// Marks the end of the source
+	static final ParsedLine END = new ParsedLine(null, null);
+
+	// Commands that leave the position alone and change nothing the parser asks about
+	private static final Class<?>[] NEUTRAL = {
+		SetFeedrate.class, SetTemperature.class, SetPlatformTemperature.class,
+		SetChamberTemperature.class, EnableFan.class, DisableFan.class,
+		EnableExtruderMotor.class, DisableMotor.class, SetMotorDirection.class,
+		SetMotorSpeedRPM.class, SetMotorSpeedPWM.class, OpenValve.class,
+		CloseValve.class, SetServo.class, SetBuildPercent.class, DisplayMessage.class,
+		SendBeep.class, SetLedStrip.class, Delay.class, WaitUntilBufferEmpty.class,
+		DataCaptureNote.class
+	};
+
+	/**
+	 * What the parser asks the driver, answered as the driver will answer
+	 * once the lines before have been sent.  Anything that depends on what's
+	 * been sent, other than the position, marks the line as unsafe.
+	 */
+	private class Query implements DriverQueryInterface {
+		ParsedLine current;
+
+		private void unsafe() {
+			// Nothing's being parsed while the parser is set up
+			if (current != null) {
+				current.unsafe = true;
+			}
+		}
+
+		public Point5d getCurrentPosition(boolean forceUpdate) {
+			if (position == null || forceUpdate) {
+				current.unsafe = true;
+				return new Point5d();
+			}
+			current.assumed = position;
+			return new Point5d(position);
+		}
+
+		// These come from the machine's description and never change
+		public Point5d getMaximumFeedrates() { return driver.getMaximumFeedrates(); }
+		public MachineModel getMachine() { return driver.getMachine(); }
+		public boolean isPassthroughDriver() { return driver.isPassthroughDriver(); }
+		public boolean hasAutomatedBuildPlatform() { return driver.hasAutomatedBuildPlatform(); }
+
+		// These can be changed by the commands being sent
+		public Point3d getOffset(int i) { unsafe(); return driver.getOffset(i); }
+		public double getSpindleRPM() { unsafe(); return driver.getSpindleRPM(); }
+		public double getMotorRPM() { unsafe(); return driver.getMotorRPM(); }
+		public int getMotorSpeedPWM() { unsafe(); return driver.getMotorSpeedPWM(); }
+		public double getTemperature(int toolhead) { unsafe(); return driver.getTemperature(toolhead); }
+		public double getTemperatureSetting() { unsafe(); return driver.getTemperatureSetting(); }
+		public double getPlatformTemperature(int toolhead) { unsafe(); return driver.getPlatformTemperature(toolhead); }
+		public double getPlatformTemperatureSetting() { unsafe(); return driver.getPlatformTemperatureSetting(); }
+		public Version getVersion() { unsafe(); return driver.getVersion(); }
+		public Version getPreferredVersion() { unsafe(); return driver.getPreferredVersion(); }
+		public String getConfigValue(String value, String baseline) {
+			unsafe();
+			return driver.getConfigValue(value, baseline);
+		}
+	}
+
+	private final DriverQueryInterface driver;
+	private final PipelineStats stats;
+	private final GCodeParser parser = new GCodeParser();
+	private final Query query = new Query();
+	// Where the machine will be after the lines parsed so far, or null if we can't tell
+	private Point5d position;
+
+	// Where lines come from: lines given back from an earlier run, then the source
+	private final LinkedList<Object> replay;
+	private final Iterator<?> source;
+
+	private final ArrayBlockingQueue<ParsedLine> ready = new ArrayBlockingQueue<ParsedLine>(DEPTH);
+	private final Thread thread;
+	// Guarded by this: the thread is to wait, is waiting, or has reached the end
+	private boolean stopped = false;
+	private boolean paused = false;
+	private boolean parked = false;
+	private boolean atEnd = false;
+	private volatile int parsed = 0;
+
+	/**
+	 * @param replay lines, as GCodeCommands or Strings, to parse before the source
+	 * @param source the rest of the lines, as GCodeCommands or Strings
+	 * @param state the parser's modal state at the first line
+	 * @param position where the machine will be at the first line, or null if unknown
+	 */
+	ParseAhead(Driver driver, LinkedList<Object> replay, Iterator<?> source,
+			GCodeParser.ModalState state, Point5d position) {
+		this.driver = (DriverQueryInterface)driver;
+		this.stats = driver.getPipelineStats();
+		this.replay = replay;
+		this.source = source;
+		this.position = position == null ? null : new Point5d(position);
+		parser.init(query);
+		parser.setModalState(state);
+		thread = new Thread(this, "GCode Lookahead");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				// Wait out a restart, or for one after the end of the source
+				while ((paused || atEnd) && !stopped) {
+					parked = true;
+					notifyAll();
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Meant to get us out of put(); we're out of it already
+					}
+				}
+				parked = false;
+				if (stopped) {
+					return;
+				}
+				// An interrupt that came while we were on our way here
+				Thread.interrupted();
+			}
+			Object next;
+			if (!replay.isEmpty()) {
+				next = replay.removeFirst();
+			} else if (source.hasNext()) {
+				try {
+					next = source.next();
+					if (next instanceof GCodeCommand) {
+						// Compiled sources refill one command for every line, and
+						// we keep lines until they're sent, or to parse again
+						next = ((GCodeCommand)next).copy();
+					}
+				} catch (UnparseableLineException e) {
+					// Parsing the text fails too, and the machine thread is left to fail on it
+					next = e.getLine();
+				}
+			} else {
+				next = null;
+			}
+			ParsedLine p = (next == null) ? END : parse(next);
+			try {
+				ready.put(p);
+			} catch (InterruptedException e) {
+				// Paused or stopped; the line is parsed again from replay afterwards
+				if (p != END) {
+					replay.addFirst(next);
+				}
+				continue;
+			}
+			if (p == END) {
+				synchronized (this) {
+					atEnd = true;
+				}
+			}
+		}
+	}
+
+	private ParsedLine parse(Object next) {
+		GCodeCommand gcode = null;
+		String line;
+		if (next instanceof GCodeCommand) {
+			gcode = (GCodeCommand)next;
+			line = gcode.getLine();
+		} else {
+			line = (String)next;
+		}
+		ParsedLine p = new ParsedLine(gcode, line);
+		query.current = p;
+		try {
+			if (gcode == null) {
+				gcode = new GCodeCommand();
+				gcode.parse(line);
+			}
+			long start = System.nanoTime();
+			parser.parse(gcode, p.commands);
+			stats.parsed(System.nanoTime() - start);
+		} catch (RuntimeException e) {
+			// Let it fail on the machine thread, as it would have
+			p.unsafe = true;
+		}
+		p.after = parser.getModalState();
+		position = predict(position, p.commands);
+		parsed++;
+		return p;
+	}
+
+	/**
+	 * Where the machine will be after the given commands have been sent,
+	 * if it was at the given position before; null if we can't tell.
+	 */
+	static Point5d predict(Point5d position, Iterable<DriverCommand> commands) {
+		for (DriverCommand c : commands) {
+			if (c instanceof QueuePoint) {
+				position = ((QueuePoint)c).getDestination();
+			} else if (c instanceof SetCurrentPosition) {
+				position = ((SetCurrentPosition)c).getPoint();
+			} else if (!isNeutral(c)) {
+				return null;
+			}
+		}
+		return position;
+	}
+
+	private static boolean isNeutral(DriverCommand c) {
+		for (Class<?> n : NEUTRAL) {
+			if (n == c.getClass()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/// The next line, waiting for it to be parsed if need be
+	ParsedLine take() throws InterruptedException {
+		return ready.take();
+	}
+
+	/// Lines parsed and waiting to be sent
+	int getDepth() {
+		return ready.size();
+	}
+
+	int getParsed() {
+		return parsed;
+	}
+
+	/**
+	 * Throw away what's been parsed ahead and parse it again, on the same
+	 * thread, from a new state; for when a line had to be parsed again on
+	 * the machine thread, so the lines after it were parsed from the wrong one.
+	 * @param state the parser's modal state at the first line not yet taken
+	 * @param position where the machine will be at that line, or null if unknown
+	 */
+	void restart(GCodeParser.ModalState state, Point5d position) {
+		synchronized (this) {
+			paused = true;
+			thread.interrupt();
+			while (!parked && !stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					Base.logger.warning("Interrupted waiting for the lookahead to pause");
+					return;
+				}
+			}
+			replay.addAll(0, drain());
+			parser.setModalState(state);
+			this.position = position == null ? null : new Point5d(position);
+			atEnd = false;
+			paused = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Stop parsing ahead.
+	 * @return the lines not yet taken, as GCodeCommands or Strings, followed
+	 * by the rest of the source
+	 */
+	LinkedList<Object> stop() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Base.logger.warning("Interrupted waiting for the lookahead to stop");
+		}
+		LinkedList<Object> lines = drain();
+		lines.addAll(replay);
+		return lines;
+	}
+
+	/// The lines parsed but not yet taken, as they were given to us
+	private LinkedList<Object> drain() {
+		LinkedList<Object> lines = new LinkedList<Object>();
+		for (ParsedLine p : ready) {
+			if (p != END) {
+				lines.add(p.gcode != null ? p.gcode : p.line);
+			}
+		}
+		ready.clear();
+		return lines;
+	}
+}
@@ -0,0 +1,170 @@
+package replicatorg.machine.builder;
+
+import java.util.Vector;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeIndex;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.SimulationDriver;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.SelectTool;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.drivers.commands.SetFeedrate;
+import replicatorg.machine.Machine.JobTarget;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.util.Point5d;
+
+/**
+ * Build a GCode file on a Driver, starting part way through.
+ *
+ * The warmup code is run first, as for any build.  Then the parser state at
+ * the starting line is looked up in the file's GCodeIndex and given to the
+ * parser, the tool the file was using at that line is selected, and the
+ * toolhead is moved to where the file expects it to be: up to the higher
+ * of the two Z heights first, then across, then down, so it doesn't drag
+ * through the part.  The extruder axes are not moved; their
+ * positions are just relabelled to match the file.  The rest of the file and
+ * the cooldown code then run as in Direct.
+ *
+ * The machine must already have been homed, so that its idea of where it
+ * is can be trusted.
+ */
+public class ResumeFromLine implements MachineBuilder {
+
+	Driver driver;
+	SimulationDriver simulator;
+	GCodeIndex.Entry start;
+	GCodeSource remainder;
+
+	// Runs the warmup code, and then the rest of the file
+	Direct directBuilder;
+	boolean warmingUp;
+
+	int linesTotal;
+	int warmupLines;
+
+	/**
+	 * @param index index of the file to build
+	 * @param line line to start from, numbered from 0
+	 * @param warmup warmup code to run before starting
+	 * @param cooldown cooldown code to run after the file ends
+	 */
+	public ResumeFromLine(Driver driver, SimulationDriver simulator, GCodeIndex index, int line,
+			GCodeSource warmup, GCodeSource cooldown) {
+		this.driver = driver;
+		this.simulator = simulator;
+
+		start = index.locate(line);
+		Base.logger.info("Resuming build at line " + line);
+
+		Vector<GCodeSource> sources = new Vector<GCodeSource>();
+		sources.add(index.getSource().tail(start.offset, start.line));
+		if (cooldown.getLineCount() > 0) {
+			sources.add(cooldown);
+		}
+		remainder = new GCodeSourceCollection(sources);
+
+		warmupLines = warmup.getLineCount();
+		linesTotal = index.getSource().getLineCount() + cooldown.getLineCount();
+
+		if (warmupLines > 0) {
+			directBuilder = new Direct(driver, simulator, warmup);
+			warmingUp = true;
+		} else {
+			startRemainder();
+		}
+	}
+
+	// Set up the parser and position for the starting line, then carry on from there
+	private void startRemainder() {
+		warmingUp = false;
+		if (directBuilder != null) {
+			// Done with the warmup; stop its lookahead
+			directBuilder.dispose();
+		}
+		directBuilder = new Direct(driver, simulator, remainder);
+		directBuilder.parser.setModalState(start.state);
+		directBuilder.driverQueue.add(new SelectTool(start.state.tool));
+
+		Point5d target = start.position;
+		Point5d maxRates = driver.getMachine().getMaximumFeedrates();
+		Point5d current = driver.getCurrentPosition(false);
+		double safeZ = Math.max(current.z(), target.z());
+
+		Point5d relabelled = new Point5d(current);
+		relabelled.setA(target.a());
+		relabelled.setB(target.b());
+		directBuilder.driverQueue.add(new SetCurrentPosition(relabelled));
+
+		directBuilder.driverQueue.add(new SetFeedrate(maxRates.z()));
+		Point5d up = new Point5d(relabelled);
+		up.setZ(safeZ);
+		directBuilder.driverQueue.add(new QueuePoint(up));
+
+		directBuilder.driverQueue.add(new SetFeedrate(maxRates.x()));
+		Point5d across = new Point5d(up);
+		across.setX(target.x());
+		across.setY(target.y());
+		directBuilder.driverQueue.add(new QueuePoint(across));
+
+		directBuilder.driverQueue.add(new SetFeedrate(maxRates.z()));
+		directBuilder.driverQueue.add(new QueuePoint(new Point5d(target)));
+
+		if (start.state.feedrate > 0) {
+			directBuilder.driverQueue.add(new SetFeedrate(start.state.feedrate));
+		}
+
+		// Send the moves before reading any more of the file
+		directBuilder.retry = true;
+	}
+
+	@Override
+	public boolean finished() {
+		if (warmingUp) {
+			return false;
+		}
+		return directBuilder.finished();
+	}
+
+	@Override
+	public void runNext() {
+		if (warmingUp && directBuilder.finished()) {
+			startRemainder();
+		}
+		directBuilder.runNext();
+	}
+
+	@Override
+	public long getWaitMillis() {
+		return directBuilder.getWaitMillis();
+	}
+
+	@Override
+	public void dispose() {
+		directBuilder.dispose();
+	}
+
+	@Override
+	public int getLinesTotal() {
+		return linesTotal;
+	}
+
+	@Override
+	public int getLinesProcessed() {
+		if (warmingUp) {
+			return 0;
+		}
+		return start.line + directBuilder.getLinesProcessed();
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
@@ -21,6 +21,9 @@ import replicatorg.model.GCodeSource;
  *
  */
 public class ToLocalFile implements MachineBuilder {
+
+	/// Lines built on each call to runNext(); none of them wait on a machine
+	static final int LINES_PER_STEP = 256;
 	
 	Direct directBuilder;
 	
@@ -39,7 +42,9 @@ public class ToLocalFile implements MachineBuilder {
 		
 		try {
 			sdcc.beginFileCapture(remoteName);
-			directBuilder = new Direct(driver, simulator, source);
+			// Writing to a file never waits, so the lexing is worth doing ahead
+			directBuilder = new Direct(driver, simulator, source,
+					Base.preferences.getBoolean("build.parallelLexing", true));
 			setupFailed = false;
 		} catch (FileNotFoundException e) {
 			Base.logger.log(Level.WARNING, "Build to file failed: File Not Found!");
@@ -53,6 +58,7 @@ public class ToLocalFile implements MachineBuilder {
 		if(!directBuilder.finished()) 
 			return false;
 		
+		directBuilder.dispose();
 		try {
 			sdcc.endFileCapture();
 			Base.logger.info("Finished writing to file!");
@@ -65,8 +71,24 @@ public class ToLocalFile implements MachineBuilder {
 	
 	@Override
 	public void runNext() {
-		if(directBuilder != null)
+		if(directBuilder == null)
+			return;
+		for (int n = 0; n < LINES_PER_STEP && !directBuilder.finished(); n++) {
 			directBuilder.runNext();
+		}
+	}
+
+	@Override
+	public long getWaitMillis() {
+		if(directBuilder == null)
+			return 0;
+		return directBuilder.getWaitMillis();
+	}
+
+	@Override
+	public void dispose() {
+		if(directBuilder != null)
+			directBuilder.dispose();
 	}
 
 	@Override
@@ -51,6 +51,19 @@ public class ToRemoteFile implements MachineBuilder {
 			directBuilder.runNext();
 	}
 
+	@Override
+	public long getWaitMillis() {
+		if(directBuilder == null)
+			return 0;
+		return directBuilder.getWaitMillis();
+	}
+
+	@Override
+	public void dispose() {
+		if(directBuilder != null)
+			directBuilder.dispose();
+	}
+
 	@Override
 	public int getLinesTotal() {
 		if(directBuilder == null)
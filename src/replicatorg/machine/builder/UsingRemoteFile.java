@@ -16,6 +16,8 @@ public class UsingRemoteFile implements MachineBuilder{
 
 	SDCardCapture sdcc;
 	boolean setupFailed = true;
+	// The machine is building on its own; just look in on it now and then
+	Backoff backoff = new Backoff();
 	
 	public UsingRemoteFile(Driver driver, String remoteName) {
 		if(!(driver instanceof SDCardCapture))
@@ -39,6 +41,16 @@ public class UsingRemoteFile implements MachineBuilder{
 
 	@Override
 	public void runNext() {
+		backoff.busy(0);
+	}
+	
+	@Override
+	public long getWaitMillis() {
+		return backoff.getWaitMillis();
+	}
+	
+	@Override
+	public void dispose() {
 	}
 	
 	@Override
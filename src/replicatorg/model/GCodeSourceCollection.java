@@ -3,8 +3,13 @@ package replicatorg.model;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Vector;
 
+import replicatorg.app.gcode.CompiledGCodeSource;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.UnparseableLineException;
+
 
 /**
  * A collection of GCode sources that act as a single source
@@ -52,6 +57,68 @@ public class GCodeSourceCollection implements GCodeSource {
 		}
 	}
 	
+	/**
+	 * Hands back the commands of each source in turn: a compiled source's
+	 * straight from its records, any other's lexed a line at a time.  Like
+	 * a compiled source's, the command handed back may be refilled by the
+	 * next call.
+	 */
+	public class CommandIterator implements Iterator<GCodeCommand> {
+		private final Iterator<GCodeSource> rest = sources.iterator();
+		private Iterator<GCodeCommand> commands = null;
+		private Iterator<String> lines = null;
+		private final GCodeCommand gcode = new GCodeCommand();
+
+		CommandIterator() {
+			advance();
+		}
+
+		// Move on to the next source that has anything in it
+		private void advance() {
+			while ((commands == null || !commands.hasNext())
+					&& (lines == null || !lines.hasNext()) && rest.hasNext()) {
+				GCodeSource source = rest.next();
+				if (source instanceof CompiledGCodeSource) {
+					commands = ((CompiledGCodeSource)source).commandIterator();
+					lines = null;
+				} else {
+					lines = source.iterator();
+					commands = null;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (commands != null && commands.hasNext()) || (lines != null && lines.hasNext());
+		}
+
+		@Override
+		public GCodeCommand next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			try {
+				if (commands != null) {
+					return commands.next();
+				}
+				String line = lines.next();
+				try {
+					return gcode.parse(line);
+				} catch (NumberFormatException e) {
+					throw new UnparseableLineException(line, e.getMessage());
+				}
+			} finally {
+				advance();
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
 	public GCodeSourceCollection(Vector<GCodeSource> sources) {
 		this.sources = sources;
 		
@@ -68,6 +135,21 @@ public class GCodeSourceCollection implements GCodeSource {
 		return new GCodeSourceCollectionIterator(sources);
 	}
 
+	/// Whether any of the sources is compiled, so commandIterator() saves lexing it
+	public boolean hasCompiledSource() {
+		for (GCodeSource source : sources) {
+			if (source instanceof CompiledGCodeSource) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/// The commands of all the sources, in order, without lexing the compiled ones again
+	public CommandIterator commandIterator() {
+		return new CommandIterator();
+	}
+
 	@Override
 	public int getLineCount() {
 		return lineCount;
@@ -24,8 +24,11 @@ public class PluginEngine implements GCodeSource {
 		return parent.getLineCount();
 	}
 
+	// Reused for every line; plugins must not hold on to it after processMCode returns
+	private final GCodeCommand mcode = new GCodeCommand();
+
 	private void processLine(String line) {
-		GCodeCommand mcode = new GCodeCommand(line);
+		mcode.parse(line);
 		if( mcode.hasCode('M')) {
 			double code = mcode.getCodeValue('M');
 		